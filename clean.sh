@@ -10,6 +10,8 @@ rm -r bin  2>  /dev/null
 rm $(find . | grep '~$')        2>  /dev/null
 rm $(find . | grep '\.class$')  2>  /dev/null
 rm $(find . | egrep '/(.|)#')   2>  /dev/null
+rm $(find . | egrep '/\.[^/]*\.cache$')  2>  /dev/null
+rm $(find . | egrep '/\.[^/]*\.journal$')  2>  /dev/null
 
 for file in $(find src | grep '\.java$'); do
     expand $file > $file"~"
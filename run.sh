@@ -45,7 +45,7 @@ if [[ $hasMain = 1 ]]; then
 fi
 
 ## custom runs
-runs+=''
+runs+=' export bench test instrument daemon connect next today year stats'
 
 
 ## default run
@@ -67,11 +67,133 @@ elif [[ $hasMain  &&  $hasHome  &&  $1 = "falsehome" ]]; then
     javaSeven -ea -cp bin$jars "$package".${mainClass} ./schema
     HOME=$__myhome
 
+elif [[ $1 = "instrument" ]]; then
+    javaSeven -da -cp bin$jars "$package".${mainClass} --instrument ./schema
+
+elif [[ $1 = "daemon" ]]; then
+    javaSeven -ea -cp bin$jars "$package".${mainClass} --daemon ./socket ./schema
+
+elif [[ $1 = "connect" ]]; then
+    javaSeven -ea -cp bin$jars "$package".${mainClass} --connect ./socket ./schema
+
+elif [[ $1 = "year" ]]; then
+    javaSeven -ea -cp bin$jars "$package".${mainClass} ./vt12-schema ./schema
+
+elif [[ $1 = "next" ]]; then
+    javaSeven -ea -cp bin$jars "$package".${mainClass} --next ./schema
+
+elif [[ $1 = "today" ]]; then
+    javaSeven -ea -cp bin$jars "$package".${mainClass} --today ./schema
+
+elif [[ $1 = "stats" ]]; then
+    javaSeven -ea -cp bin$jars "$package".${mainClass} --stats ./vt12-schema ./schema
+
+elif [[ $1 = "export" ]]; then
+    shift 1
+    javaSeven -ea -cp bin$jars "$package".${mainClass} --export "$@" ./schema
+
 
 ## demo runs
 
 
 ## test runs
+elif [[ $1 = "bench" ]]; then
+    shift 1
+    javaSeven -da -cp bin$jars "$package".Benchmark "$@" ./schema ./vt12-schema
+
+elif [[ $1 = "test" ]]; then
+    ## iCalendar round trips of the bundled schedules, in both directions
+    tmp="$(mktemp -d)"
+    status=0
+    function mtk()
+    {   javaSeven -ea -cp bin$jars "$package".${mainClass} "$@"
+    }
+    ## event lines without the weekday, which is not checked on export, and trailing blanks
+    function events()
+    {   expand | LC_ALL=C.UTF-8 sed -n 's/^.\{5\}\(.\{11\}.[0-9][0-9]:[0-9][0-9].*\)$/\1/p' | sed -e 's/ *$//'
+    }
+    function markers()
+    {   expand | LC_ALL=C.UTF-8 sed -n 's/^.\{16\}\(.\)[0-9][0-9]:[0-9][0-9].*$/\1/p'
+    }
+    function categories()
+    {   tr -d '\r' | awk '/^BEGIN:VEVENT/ { c = " " } /^CATEGORIES:/ { c = substr($0, 12) } /^END:VEVENT/ { print c }'
+    }
+    function unstamped()
+    {   tr -d '\r' | grep -v '^DTSTAMP:'
+    }
+    function check()
+    {
+	if cmp -s "$tmp/expected" "$tmp/actual"; then
+	    echo "pass: $1"
+	else
+	    echo "FAIL: $1"
+	    diff "$tmp/expected" "$tmp/actual" | head -n 20
+	    status=1
+	fi
+    }
+    for schedule in ./schema ./vt12-schema; do
+	name=$(basename $schedule)
+	mtk --ics-export $schedule > "$tmp/$name.ics" &&
+	mtk --ics-import "$tmp/$name.ics" > "$tmp/$name" &&
+	mtk --ics-export "$tmp/$name" > "$tmp/$name.again.ics" || status=1
+	events < $schedule > "$tmp/expected"
+	events < "$tmp/$name" > "$tmp/actual"
+	check "$name: schedule -> ics -> schedule"
+	markers < $schedule > "$tmp/expected"
+	categories < "$tmp/$name.ics" > "$tmp/actual"
+	check "$name: markers exported as CATEGORIES"
+	markers < "$tmp/$name" > "$tmp/actual"
+	check "$name: markers imported from CATEGORIES"
+	unstamped < "$tmp/$name.ics" > "$tmp/expected"
+	unstamped < "$tmp/$name.again.ics" > "$tmp/actual"
+	check "$name: ics -> schedule -> ics"
+    done
+    
+    ## merging schedules whose weeks overlap: schema has weeks 13 and 14 too
+    cat > "$tmp/overlap-schema" <<EOF
+Other schedule
+
+--- Legend ---
+
+! framför tid: har lovat att gå på
+
+--- Period 3 ---
+
+
+::Vecka 13, 2013
+Mån  (03)mar-25 !12:00-13:00  Möte         XX1000    Q2
+Tis  (03)mar-26  08:00-10:00  Föreläsning  XX1000    Q1
+                 10:00-12:00  Övning       XX1000    Q1
+Fre  (03)mar-29  10:00-12:00  Föreläsning  XX1000    Q1                Långfredag?
+
+
+::Vecka 14, 2013
+Tis  (04)apr-02 >13:00-15:00  Laboration   XX1000    Spel
+
+
+EOF
+    mtk --merge ./schema "$tmp/overlap-schema" > "$tmp/merged" || status=1
+    : > "$tmp/expected"
+    grep '^::' "$tmp/merged" | sort | uniq -d > "$tmp/actual"
+    check "merge: one header per week"
+    LC_ALL=C.UTF-8 sed -n -e 's/^::.*, \([0-9]*\)$/y\1/p' -e 's/^.\{5\}(\([0-9][0-9]\))[a-z]*-\([0-9][0-9]\) .*$/\1\2/p' < "$tmp/merged" |
+	awk '/^y/ { year = substr($0, 2); next } { print year $0 }' > "$tmp/actual"
+    sort -u "$tmp/actual" > "$tmp/expected"
+    check "merge: one date line per day, in date order"
+    cat ./schema "$tmp/overlap-schema" | expand | LC_ALL=C.UTF-8 sed -n 's/^.\{16\}\(.[0-9][0-9]:[0-9][0-9].*\)$/\1/p' | sort > "$tmp/expected"
+    expand < "$tmp/merged" | LC_ALL=C.UTF-8 sed -n 's/^.\{16\}\(.[0-9][0-9]:[0-9][0-9].*\)$/\1/p' | sort > "$tmp/actual"
+    check "merge: every event is kept"
+    function sections()
+    {   awk '/^--- Legend ---/ { legend = 1; next } legend && /^--- / { sections[n++] = $0; next }
+	     /^::/ { for (i = 0; i < n; i++) print sections[i] " -> " $0; n = 0 }
+	     END { for (i = 0; i < n; i++) print sections[i] " -> end" }' "$1"
+    }
+    ( sections ./schema ; sections "$tmp/overlap-schema" ) | sort -u > "$tmp/expected"
+    sections "$tmp/merged" | sort -u > "$tmp/actual"
+    check "merge: section headers are before the same week as in their file"
+    
+    rm -r "$tmp"
+    exit $status
 
 
 ## completion
@@ -0,0 +1,180 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+
+
+/**
+ * Agenda queries for status bars and scripts: the next event, today's events,
+ * or the events in a range of dates, one event per line, looked up in a
+ * {@link Timeline}, so only attended events are listed
+ * <p>
+ * The queries are {@code --next FILE}, {@code --today FILE} and
+ * {@code --range FROM TO FILE}, where the dates are written {@code yyyy-mm-dd}
+ * and the range includes both dates. The same queries can be sent to a
+ * {@link Daemon} as {@code agenda next FILE} and so on, to avoid parsing the file.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class Agenda
+{
+    /**
+     * Hidden constructor
+     */
+    private Agenda()
+    {
+        //Nullify default constructor
+    }
+
+
+
+    /**
+     * Runs an agenda query from the command line
+     *
+     * @param   args         The arguments, starting with {@code --next}, {@code --today} or {@code --range}
+     * @param   today        Today's date, as {@code yyyymmdd}
+     * @param   minute       The time, in minutes after midnight
+     * @return               The exit value: zero if any event was listed, one if none was
+     * @throws  IOException  On I/O error
+     */
+    public static int run(final String[] args, final int today, final int minute) throws IOException
+    {
+        final String[] query = args.clone();
+        query[0] = query[0].substring(2);
+        if (isQuery(query) == false)
+        {
+            System.err.println("usage: mastertimekeeper (--next | --today | --range FROM TO) FILE");
+            return 2;
+        }
+        final ScheduleFile file = new ScheduleFile(new File(query[query.length - 1]));
+        final EventStore events = new EventStore(new StringPool());
+        ScheduleCache.parse(file, events, null, null, null);
+        final OutputBuffer buf;
+        try
+        {
+            buf = answer(new Timeline(events), query, today, minute);
+        }
+        catch (final IOException err)
+        {
+            System.err.println("mastertimekeeper: " + err.getMessage());
+            return 2;
+        }
+        final boolean found = buf.length() > 0;
+        buf.writeTo(new FileOutputStream(FileDescriptor.out).getChannel());
+        return found ? 0 : 1;
+    }
+
+    /**
+     * Checks whether a query has the right number of arguments
+     *
+     * @param   query  The query: {@code next}, {@code today} or {@code range}, followed by its arguments and the file
+     * @return         Whether the query is well-formed
+     */
+    public static boolean isQuery(final String[] query)
+    {
+        if (query.length == 2)
+            return query[0].equals("next") || query[0].equals("today");
+        return (query.length == 4) && query[0].equals("range");
+    }
+
+    /**
+     * Answers an agenda query
+     *
+     * @param   timeline     The timeline of the file
+     * @param   query        The query: {@code next}, {@code today} or {@code range}, followed by its arguments and the file
+     * @param   today        Today's date, as {@code yyyymmdd}
+     * @param   minute       The time, in minutes after midnight
+     * @return               The listed events, one per line
+     * @throws  IOException  If the query is malformed
+     */
+    public static OutputBuffer answer(final Timeline timeline, final String[] query, final int today, final int minute) throws IOException
+    {
+        final int start, end;
+        if (isQuery(query) == false)
+            throw new IOException("Malformed agenda query");
+        if (query[0].equals("next"))
+        {
+            start = timeline.find(today, minute);
+            end = Math.min(start + 1, timeline.size());
+        }
+        else if (query[0].equals("today"))
+        {
+            start = timeline.find(today, 0);
+            end = timeline.findEnd(today);
+        }
+        else
+        {
+            start = timeline.find(parseDate(query[1]), 0);
+            end = timeline.findEnd(parseDate(query[2]));
+        }
+
+        final OutputBuffer buf = new OutputBuffer(1 << 10);
+        final EventStore events = timeline.getEvents();
+        final StringPool strings = events.getStrings();
+        for (int i = start; i < end; i++)
+        {
+            final int event = timeline.getEvent(i);
+            final int date = events.getDate(event);
+            buf.append(String.format("%04d-%02d-%02d ", Integer.valueOf(date / 10000), Integer.valueOf(date / 100 % 100),
+                                     Integer.valueOf(date % 100)));
+            appendTime(buf, events.getStart(event));
+            buf.append('-');
+            appendTime(buf, events.getEnd(event));
+            for (final int string : new int[] { events.getType(event), events.getCourse(event), events.getRoom(event) })
+                if (strings.get(string).isEmpty() == false)
+                {
+                    buf.append("  ");
+                    buf.append(strings.get(string));
+                }
+            buf.append('\n');
+        }
+        return buf;
+    }
+
+
+    /**
+     * Appends a time on the form {@code HH:MM}
+     *
+     * @param  buf     The buffer to append to
+     * @param  minute  The time, in minutes after midnight, -1 if unknown
+     */
+    private static void appendTime(final OutputBuffer buf, final int minute)
+    {
+        if (minute < 0)
+            buf.append("..:..");
+        else
+            buf.append(String.format("%02d:%02d", Integer.valueOf(minute / 60), Integer.valueOf(minute % 60)));
+    }
+
+    /**
+     * Parses a date on the form {@code yyyy-mm-dd}
+     *
+     * @param   text         The date
+     * @return               The date, as {@code yyyymmdd}
+     * @throws  IOException  If the date is malformed
+     */
+    private static int parseDate(final String text) throws IOException
+    {
+        if (text.matches("[0-9]{4}-[0-9]{2}-[0-9]{2}") == false)
+            throw new IOException("Malformed date, expected yyyy-mm-dd: " + text);
+        return Integer.parseInt(text.substring(0, 4) + text.substring(5, 7) + text.substring(8, 10));
+    }
+    
+}
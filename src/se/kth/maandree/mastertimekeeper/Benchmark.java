@@ -0,0 +1,317 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Micro-benchmarks for the hot paths: loading a file, colourising lines, and
+ * producing frames for a one line scroll, a page scroll and a resize
+ * <p>
+ * Each benchmark is run for a number of warmup iterations, whose results are
+ * discarded, and then for a number of measured iterations of fixed length,
+ * and the mean and standard deviation of the throughput is reported. Results
+ * are fed to a sink so that the work cannot be optimised away.
+ * <p>
+ * Usage: {@code Benchmark [--filter NAME] [--synthetic WEEKS] [FILE...]}
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class Benchmark
+{
+    /**
+     * Hidden constructor
+     */
+    private Benchmark()
+    {
+        //Nullify default constructor
+    }
+
+
+
+    /**
+     * The number of warmup iterations
+     */
+    private static final int WARMUP_ITERATIONS = 5;
+
+    /**
+     * The number of measured iterations
+     */
+    private static final int MEASURED_ITERATIONS = 10;
+
+    /**
+     * The length of an iteration, in nanoseconds
+     */
+    private static final long ITERATION_TIME = 200000000L;
+
+    /**
+     * The size of the simulated terminal
+     */
+    private static final int WIDTH = 120, HEIGHT = 40;
+
+    /**
+     * Results are accumulated here so that the work cannot be optimised away
+     */
+    private static volatile int sink;
+
+
+
+    /**
+     * A benchmarked operation
+     */
+    private static interface Operation
+    {
+        /**
+         * Performs the operation once
+         *
+         * @return               A value derived from the result
+         * @throws  IOException  On I/O error
+         */
+        public int run() throws IOException;
+    }
+
+
+
+    /**
+     * Runs the benchmarks
+     *
+     * @param   args         Command line arguments
+     * @throws  IOException  On I/O error
+     */
+    public static void main(final String... args) throws IOException
+    {
+        String filter = null;
+        int syntheticWeeks = 2000;
+        final ArrayList<File> files = new ArrayList<File>();
+        final ArrayList<String> names = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++)
+            if (args[i].equals("--filter") && (i + 1 < args.length))
+                filter = args[++i];
+            else if (args[i].equals("--synthetic") && (i + 1 < args.length))
+                syntheticWeeks = Integer.parseInt(args[++i]);
+            else
+            {
+                files.add(new File(args[i]));
+                names.add(new File(args[i]).getName());
+            }
+        if (syntheticWeeks > 0)
+        {
+            files.add(synthesise(syntheticWeeks));
+            names.add("synthetic-" + syntheticWeeks);
+        }
+
+        System.out.println(String.format("%-12s %-24s %14s %12s  %s", "Benchmark", "Input", "Score", "Error", "Units"));
+        for (int index = 0; index < files.size(); index++)
+        {
+            final File file = files.get(index);
+            final ScheduleFile schedule = new ScheduleFile(file);
+            final EventStore events = new EventStore(new StringPool());
+            final BlockMap blocks = new BlockMap();
+            new ScheduleParser(events, new WeekIndex(), new SearchIndex(), blocks).parse(schedule);
+            final Colouriser colouriser = new Colouriser(schedule, events, ClashDetector.detect(events), blocks,
+                                                         ColourRules.fromLegend(schedule, blocks), 0, 0, 0);
+            final int lineCount = schedule.getLineCount();
+            final String[] lines = new String[lineCount];
+            for (int i = 0; i < lineCount; i++)
+                lines[i] = colouriser.colourise(i);
+            final String name = names.get(index);
+
+            run(filter, "load", name, "ops/s", 1, new Operation()
+                    {
+                        @Override
+                        public int run() throws IOException
+                        {
+                            final ScheduleFile f = new ScheduleFile(file);
+                            final EventStore e = new EventStore(new StringPool());
+                            new ScheduleParser(e, new WeekIndex(), new SearchIndex(), new BlockMap()).parse(f);
+                            return ClashDetector.detect(e).length;
+                        }
+                    });
+
+            ScheduleCache.parse(schedule, null, null, null, null);
+            run(filter, "load-cached", name, "ops/s", 1, new Operation()
+                    {
+                        @Override
+                        public int run() throws IOException
+                        {
+                            final ScheduleFile f = new ScheduleFile(file);
+                            final EventStore e = new EventStore(new StringPool());
+                            ScheduleCache.parse(f, e, new WeekIndex(), new SearchIndex(), new BlockMap());
+                            return ClashDetector.detect(e).length;
+                        }
+                    });
+
+            run(filter, "colourise", name, "lines/s", lineCount, new Operation()
+                    {
+                        @Override
+                        public int run()
+                        {
+                            int hash = 0;
+                            for (int i = 0; i < lineCount; i++)
+                                hash += colouriser.colourise(i).length();
+                            return hash;
+                        }
+                    });
+
+            final Screen screen = new Screen(WIDTH, HEIGHT);
+            final OutputBuffer buf = new OutputBuffer(1 << 14);
+            final int[] position = { 0 };
+            run(filter, "frame-line", name, "frames/s", 1, new Operation()
+                    {
+                        @Override
+                        public int run()
+                        {
+                            return frame(screen, buf, lines, position, 1);
+                        }
+                    });
+            run(filter, "frame-page", name, "frames/s", 1, new Operation()
+                    {
+                        @Override
+                        public int run()
+                        {
+                            return frame(screen, buf, lines, position, HEIGHT - 2);
+                        }
+                    });
+            run(filter, "frame-resize", name, "frames/s", 1, new Operation()
+                    {
+                        @Override
+                        public int run()
+                        {
+                            screen.resize(position[0] % 2 == 0 ? WIDTH : WIDTH - 20, HEIGHT);
+                            return frame(screen, buf, lines, position, 1);
+                        }
+                    });
+        }
+    }
+
+
+    /**
+     * Produces a frame, moving the viewport and wrapping around at the end of the file
+     *
+     * @param   screen    The screen
+     * @param   buf       The output buffer, cleared afterwards
+     * @param   lines     The colourised lines
+     * @param   position  The first line in the viewport, updated
+     * @param   move      The number of lines to move
+     * @return            The number of bytes in the frame
+     */
+    private static int frame(final Screen screen, final OutputBuffer buf, final String[] lines, final int[] position, final int move)
+    {
+        final int rows = HEIGHT - 2;
+        int next = position[0] + move;
+        if (next + rows > lines.length)
+            next = 0;
+        screen.scroll(buf, 0, rows, next - position[0]);
+        for (int i = 0; i < rows; i++)
+            screen.setRow(i, next + i < lines.length ? lines[next + i] : "~\n");
+        screen.setRow(rows, "\033[44;33;1m\033[2K  " + (next % 100) + "%  \033[49;39;21m\n");
+        screen.flush(buf);
+        position[0] = next;
+        final int length = buf.length();
+        buf.clear();
+        return length;
+    }
+
+    /**
+     * Runs a benchmark and prints its result
+     *
+     * @param   filter       Only benchmarks whose names contain this are run, {@code null} for all
+     * @param   name         The name of the benchmark
+     * @param   input        The name of the input
+     * @param   units        The units of the throughput
+     * @param   scale        The number of units per operation
+     * @param   operation    The operation
+     * @throws  IOException  On I/O error
+     */
+    private static void run(final String filter, final String name, final String input, final String units,
+                            final int scale, final Operation operation) throws IOException
+    {
+        if ((filter != null) && (name.contains(filter) == false))
+            return;
+        final double[] scores = new double[MEASURED_ITERATIONS];
+        for (int iteration = -WARMUP_ITERATIONS; iteration < MEASURED_ITERATIONS; iteration++)
+        {
+            long ops = 0;
+            int hash = 0;
+            final long start = System.nanoTime();
+            long elapsed;
+            do
+            {
+                hash += operation.run();
+                ops++;
+            }
+            while ((elapsed = System.nanoTime() - start) < ITERATION_TIME);
+            sink += hash;
+            if (iteration >= 0)
+                scores[iteration] = ops * (double)scale * 1e9 / elapsed;
+        }
+
+        double mean = 0, variance = 0;
+        for (final double score : scores)
+            mean += score / scores.length;
+        for (final double score : scores)
+            variance += (score - mean) * (score - mean) / (scores.length - 1);
+        System.out.println(String.format("%-12s %-24s %14.1f %12.1f  %s", name, input, Double.valueOf(mean),
+                                         Double.valueOf(Math.sqrt(variance)), units));
+    }
+
+    /**
+     * Writes a synthetic schedule to a temporary file
+     *
+     * @param   weeks        The number of weeks
+     * @return               The file
+     * @throws  IOException  On I/O error
+     */
+    private static File synthesise(final int weeks) throws IOException
+    {
+        final String[] days = { "Mån", "Tis", "Ons", "Tor", "Fre" };
+        final String[] types = { "Föreläsning  ", "Övning       ", "Laboration   ", "TENTAMEN     " };
+        final String markers = " !*~^-+/?&#>";
+        final File file = File.createTempFile("mastertimekeeper-synthetic-", ".schema");
+        file.deleteOnExit();
+        ScheduleCache.getCacheFile(file).deleteOnExit();
+        final Random random = new Random(0);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8")))
+        {
+            out.write("Synthetic schedule\n\n--- Legend ---\n\n! framför tid: har lovat att gå på\n\n--- Synthetic ---\n");
+            for (int w = 0; w < weeks; w++)
+            {
+                final int year = 2000 + w / 52, week = w % 52 + 1;
+                out.write(String.format("\n\n::Vecka %02d, %d\n", Integer.valueOf(week), Integer.valueOf(year)));
+                for (int d = 0; d < days.length; d++)
+                    for (int e = 0, n = 1 + random.nextInt(4); e < n; e++)
+                    {
+                        final int hour = 8 + 2 * random.nextInt(5);
+                        final int month = (week - 1) * 12 / 52 + 1, day = (week * 7 + d) % 28 + 1;
+                        out.write(e == 0 ? String.format("%s  (%02d)jan-%02d ", days[d], Integer.valueOf(month), Integer.valueOf(day))
+                                         : "                ");
+                        out.write(String.format("%c%02d:00-%02d:00  %sDD%04d    Q%-16d %s\n",
+                                                Character.valueOf(markers.charAt(random.nextInt(markers.length()))),
+                                                Integer.valueOf(hour), Integer.valueOf(hour + 2),
+                                                types[random.nextInt(types.length)], Integer.valueOf(random.nextInt(40)),
+                                                Integer.valueOf(random.nextInt(100)), random.nextInt(4) == 0 ? "kommentar" : ""));
+                    }
+            }
+        }
+        return file;
+    }
+    
+}
@@ -0,0 +1,234 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+
+/**
+ * Map from lines to the context they are colourised in: the blocks of
+ * consecutive lines that are in the same section of the file and under the
+ * same week header. With it any line can be colourised on its own, and
+ * blocks can be colourised independently of each other.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class BlockMap
+{
+    /**
+     * Constructor
+     */
+    public BlockMap()
+    {
+        //Nothing to initialise
+    }
+
+
+
+    /**
+     * The first line of each block
+     */
+    private int[] starts = new int[16];
+
+    /**
+     * The {@code ScheduleParser.SECTION_*} section of each block
+     */
+    private byte[] sections = new byte[16];
+
+    /**
+     * The week of each block's week header, -1 if none
+     */
+    private int[] weeks = new int[16];
+
+    /**
+     * The year of each block's week header, -1 if none
+     */
+    private int[] weekYears = new int[16];
+
+    /**
+     * The number of blocks
+     */
+    private int count = 0;
+
+    /**
+     * The number of lines in the file, known once sealed
+     */
+    private int lineCount = 0;
+
+
+
+    /**
+     * Records the context of a line, a new block is started if it differs from the previous line's,
+     * lines must be added in order
+     *
+     * @param  line      The line
+     * @param  section   The {@code ScheduleParser.SECTION_*} section the line is in
+     * @param  weekYear  The year of the last week header, -1 if none
+     * @param  week      The week of the last week header, -1 if none
+     */
+    public void add(final int line, final int section, final int weekYear, final int week)
+    {
+        final int last = this.count - 1;
+        if ((last >= 0) && (this.sections[last] == section) && (this.weeks[last] == week) && (this.weekYears[last] == weekYear))
+            return;
+        if (this.count == this.starts.length)
+        {
+            this.starts    = Arrays.copyOf(this.starts,    this.count << 1);
+            this.sections  = Arrays.copyOf(this.sections,  this.count << 1);
+            this.weeks     = Arrays.copyOf(this.weeks,     this.count << 1);
+            this.weekYears = Arrays.copyOf(this.weekYears, this.count << 1);
+        }
+        this.starts[this.count] = line;
+        this.sections[this.count] = (byte)section;
+        this.weeks[this.count] = week;
+        this.weekYears[this.count] = weekYear;
+        this.count++;
+    }
+
+    /**
+     * Finishes the map
+     *
+     * @param  lineCount  The number of lines in the file
+     */
+    public void seal(final int lineCount)
+    {
+        this.lineCount = lineCount;
+        if (this.count == 0)
+            this.add(0, ScheduleParser.SECTION_HEAD, -1, -1);
+    }
+
+    /**
+     * Writes the sealed map to a {@link ScheduleCache}
+     *
+     * @param   out          The output stream
+     * @throws  IOException  On I/O error
+     */
+    public void write(final DataOutputStream out) throws IOException
+    {
+        out.writeInt(this.count);
+        out.writeInt(this.lineCount);
+        ScheduleCache.writeInts(out, this.starts, this.count);
+        out.write(this.sections, 0, this.count);
+        ScheduleCache.writeInts(out, this.weeks, this.count);
+        ScheduleCache.writeInts(out, this.weekYears, this.count);
+    }
+
+    /**
+     * Replaces the map with a sealed map read from a {@link ScheduleCache}
+     *
+     * @param  in  The cache, positioned at the map
+     */
+    public void read(final ByteBuffer in)
+    {
+        this.count = in.getInt();
+        this.lineCount = in.getInt();
+        this.starts = ScheduleCache.readInts(in, this.count);
+        this.sections = ScheduleCache.readBytes(in, this.count);
+        this.weeks = ScheduleCache.readInts(in, this.count);
+        this.weekYears = ScheduleCache.readInts(in, this.count);
+    }
+
+    /**
+     * Gets the number of blocks
+     *
+     * @return  The number of blocks
+     */
+    public int size()
+    {
+        return this.count;
+    }
+
+    /**
+     * Finds the block a line is in
+     *
+     * @param   line  The line
+     * @return        The block
+     */
+    public int find(final int line)
+    {
+        int low = 0, high = this.count - 1;
+        while (low < high)
+        {
+            final int mid = (low + high + 1) >>> 1;
+            if (this.starts[mid] <= line)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+
+    /**
+     * Gets the first line of a block
+     *
+     * @param   block  The block
+     * @return         The first line
+     */
+    public int getStart(final int block)
+    {
+        return this.starts[block];
+    }
+
+    /**
+     * Gets the end of a block
+     *
+     * @param   block  The block
+     * @return         The line after the last line
+     */
+    public int getEnd(final int block)
+    {
+        return block + 1 < this.count ? this.starts[block + 1] : this.lineCount;
+    }
+
+    /**
+     * Gets the section of a block
+     *
+     * @param   block  The block
+     * @return         The {@code ScheduleParser.SECTION_*} section
+     */
+    public int getSection(final int block)
+    {
+        return this.sections[block];
+    }
+
+    /**
+     * Gets the week of a block's week header
+     *
+     * @param   block  The block
+     * @return         The week, -1 if none
+     */
+    public int getWeek(final int block)
+    {
+        return this.weeks[block];
+    }
+
+    /**
+     * Gets the year of a block's week header
+     *
+     * @param   block  The block
+     * @return         The year, -1 if none
+     */
+    public int getWeekYear(final int block)
+    {
+        return this.weekYears[block];
+    }
+    
+}
@@ -0,0 +1,178 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.util.*;
+
+
+/**
+ * Finds events that clash, that is overlap in time on the same day, and compares
+ * them with the clash markers ('~', '*' and '^') written in the schedule
+ * <p>
+ * Events that will not be attended regardless of clashes, those marked '/', '-'
+ * or '#' and those with the type marked '-' (cancelled), cannot clash.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class ClashDetector
+{
+    /**
+     * Hidden constructor
+     */
+    private ClashDetector()
+    {
+        //Nullify default constructor
+    }
+
+
+
+    /**
+     * The event does not clash and is not marked as clashing
+     */
+    public static final byte NONE = 0;
+
+    /**
+     * The event clashes and is marked as clashing
+     */
+    public static final byte AGREED = 1;
+
+    /**
+     * The event clashes but is not marked as clashing
+     */
+    public static final byte UNMARKED = 2;
+
+    /**
+     * The event is marked as clashing but does not clash
+     */
+    public static final byte STALE = 3;
+
+
+
+    /**
+     * Finds the clashes among events, one interval tree is built per day
+     *
+     * @param   store  The events
+     * @return         {@link #NONE}, {@link #AGREED}, {@link #UNMARKED} or {@link #STALE} for each event
+     */
+    public static byte[] detect(final EventStore store)
+    {
+        final int n = store.size();
+        final byte[] rc = new byte[n];
+
+        final long[] byDate = new long[n];
+        int count = 0;
+        for (int i = 0; i < n; i++)
+            if (canClash(store, i))
+                byDate[count++] = ((long)(store.getDate(i)) << 32) | i;
+        Arrays.sort(byDate, 0, count);
+
+        final IntervalTree tree = new IntervalTree();
+        int[] starts = new int[16], ends = new int[16], ids = new int[16];
+        for (int first = 0, last; first < count; first = last)
+        {
+            final long date = byDate[first] >>> 32;
+            for (last = first; (last < count) && ((byDate[last] >>> 32) == date); last++)
+                ;
+            final int m = last - first;
+            if (starts.length < m)
+            {
+                starts = new int[m];
+                ends = new int[m];
+                ids = new int[m];
+            }
+            for (int i = 0; i < m; i++)
+            {
+                final int event = (int)(byDate[first + i]);
+                starts[i] = store.getStart(event);
+                ends[i] = store.getEnd(event);
+                ids[i] = event;
+            }
+            tree.build(starts, ends, ids, m);
+            for (int i = 0; i < m; i++)
+                if (tree.overlaps(starts[i], ends[i], ids[i]))
+                    rc[ids[i]] = 1;
+        }
+
+        for (int i = 0; i < n; i++)
+            rc[i] = state(store, i, rc[i] == 1);
+        return rc;
+    }
+
+    /**
+     * Finds the clashes on one date again, for when the attendance marker of one of its events has changed
+     *
+     * @param  store   The events
+     * @param  states  The states found by {@link #detect(EventStore)}, the events' states are updated
+     * @param  events  All events on the date
+     */
+    public static void detect(final EventStore store, final byte[] states, final int[] events)
+    {
+        final int n = events.length;
+        final int[] starts = new int[n], ends = new int[n], ids = new int[n], positions = new int[n];
+        int m = 0;
+        for (int i = 0; i < n; i++)
+            if (canClash(store, events[i]))
+            {
+                starts[m] = store.getStart(events[i]);
+                ends[m] = store.getEnd(events[i]);
+                ids[m] = events[i];
+                positions[m++] = i;
+            }
+        final IntervalTree tree = new IntervalTree();
+        tree.build(starts, ends, ids, m);
+        final boolean[] clashing = new boolean[n];
+        for (int i = 0; i < m; i++)
+            clashing[positions[i]] = tree.overlaps(starts[i], ends[i], ids[i]);
+        for (int i = 0; i < n; i++)
+            states[events[i]] = state(store, events[i], clashing[i]);
+    }
+
+    /**
+     * Gets the state of an event
+     *
+     * @param   store     The events
+     * @param   event     The event
+     * @param   clashing  Whether the event clashes with another event
+     * @return            {@link #NONE}, {@link #AGREED}, {@link #UNMARKED} or {@link #STALE}
+     */
+    private static byte state(final EventStore store, final int event, final boolean clashing)
+    {
+        final byte marker = store.getAttendance(event);
+        final boolean marked = (marker == '~') || (marker == '*') || (marker == '^');
+        if (clashing)
+            return marked ? AGREED : UNMARKED;
+        return marked ? STALE : NONE;
+    }
+
+    /**
+     * Checks whether an event can clash
+     *
+     * @param   store  The events
+     * @param   event  The event
+     * @return         Whether the event can clash
+     */
+    private static boolean canClash(final EventStore store, final int event)
+    {
+        final byte marker = store.getAttendance(event);
+        if ((marker == '/') || (marker == '-') || (marker == '#') || (store.getTypeMarker(event) == '-'))
+            return false;
+        return (store.getStart(event) >= 0) && (store.getStart(event) < store.getEnd(event));
+    }
+    
+}
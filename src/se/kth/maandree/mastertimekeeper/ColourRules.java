@@ -0,0 +1,392 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Colour rules for the marker, type and room columns, compiled into tables
+ * of escape sequences so that colourising a line needs no allocation: the
+ * markers are looked up by their character, and the type and room rules are
+ * prefixes matched in place.
+ * <p>
+ * The markers a file uses are read from its legend, lines on the form
+ * {@code C framför tid: …} declare attendance markers and lines on the form
+ * {@code C framför typ: …} declare type markers. A rules file can override
+ * and extend these, it has one rule per line, blank lines and lines starting
+ * with {@code #} are ignored:
+ * <pre>
+ * attendance  C            SGR
+ * type-marker C            SGR
+ * type-case   none|upper|lower|mixed  SGR
+ * type        PREFIX       SGR
+ * room        PREFIX       SGR
+ * room-unknown             SGR
+ * </pre>
+ * where {@code SGR} is the parameters of a select graphic rendition sequence,
+ * for example {@code 33;1}, or {@code -} to remove the colour.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class ColourRules
+{
+    /**
+     * Constructor, without any rules
+     */
+    public ColourRules()
+    {
+        //Do nothing
+    }
+
+
+
+    /**
+     * Resets the colours after a marker
+     */
+    public static final String MARKER_RESET = "\033[21;39;49;0m";
+
+    /**
+     * The number of characters markers can be, markers are stored as bytes in {@link EventStore}
+     */
+    private static final int MARKERS = 256;
+
+    /**
+     * The colours of markers that are declared in a legend, by character
+     */
+    private static final String[] PALETTE = new String[MARKERS];
+
+    /**
+     * The colour of declared markers that are not in {@link #PALETTE}
+     */
+    private static final String PALETTE_DEFAULT = "1";
+
+    static
+    {
+        PALETTE['!'] = "31";
+        PALETTE['*'] = "33;1";
+        PALETTE['~'] = "35;1";
+        PALETTE['^'] = "36";
+        PALETTE['-'] = "35";
+        PALETTE['+'] = "31";
+        PALETTE['/'] = "32;1";
+        PALETTE['?'] = "33";
+        PALETTE['&'] = "34";
+        PALETTE['#'] = "32";
+        PALETTE['>'] = "34;1";
+    }
+
+
+
+    /**
+     * The escape sequence that starts the colour of each attendance marker, {@code null} for none
+     */
+    private final String[] attendance = new String[MARKERS];
+
+    /**
+     * The escape sequence that starts the colour of each type marker, {@code null} for none
+     */
+    private final String[] typeMarker = new String[MARKERS];
+
+    /**
+     * The rule for each {@code EventStore.TYPE_*} case of the type column, {@code null} for none
+     */
+    private final String[][] typeCase = new String[4][];
+
+    /**
+     * The type prefixes with colours, in the order they are tried
+     */
+    private final ArrayList<String[]> types = new ArrayList<String[]>();
+
+    /**
+     * The room prefixes with colours, in the order they are tried
+     */
+    private final ArrayList<String[]> rooms = new ArrayList<String[]>();
+
+    /**
+     * The escape sequences that start and end the colour of unknown rooms, {@code null} for none
+     */
+    private String[] unknownRoom = null;
+
+
+
+    /**
+     * Creates the rules for a file from its legend; if the legend declares no markers,
+     * all markers in the default palette are used for both marker columns
+     *
+     * @param   file    The schedule file
+     * @param   blocks  The context of each line of the file
+     * @return          The rules
+     */
+    public static ColourRules fromLegend(final ScheduleFile file, final BlockMap blocks)
+    {
+        final ColourRules rules = new ColourRules();
+        boolean declared = false;
+        for (int block = 0, n = blocks.size(); block < n; block++)
+            if (blocks.getSection(block) == ScheduleParser.SECTION_LEGEND)
+                for (int i = blocks.getStart(block), end = blocks.getEnd(block); i < end; i++)
+                {
+                    final String line = file.getLine(i);
+                    if ((line.length() < 2) || (line.charAt(0) >= MARKERS) || (line.charAt(1) != ' '))
+                        continue;
+                    final char c = line.charAt(0);
+                    final String colour = PALETTE[c] == null ? PALETTE_DEFAULT : PALETTE[c];
+                    if (line.startsWith("framför tid", 2))
+                        rules.attendance[c] = start(colour);
+                    else if (line.startsWith("framför typ", 2))
+                        rules.typeMarker[c] = start(colour);
+                    else
+                        continue;
+                    declared = true;
+                }
+        if (declared == false)
+            for (int c = 0; c < MARKERS; c++)
+                if (PALETTE[c] != null)
+                    rules.attendance[c] = rules.typeMarker[c] = start(PALETTE[c]);
+
+        rules.typeCase[EventStore.TYPE_NO_LETTERS] = rule(null, "32");
+        rules.typeCase[EventStore.TYPE_UPPER_CASE] = rule(null, "31");
+        rules.typeCase[EventStore.TYPE_LOWER_CASE] = rule(null, "33");
+        rules.unknownRoom = rule(null, "31");
+        return rules;
+    }
+
+    /**
+     * Reads a rules file
+     *
+     * @param   file         The file
+     * @return               The rules
+     * @throws  IOException  On I/O error or if the file is malformed
+     */
+    public static ColourRules load(final File file) throws IOException
+    {
+        final ColourRules rules = new ColourRules();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8")))
+        {
+            int lineNumber = 0;
+            for (String line; (line = in.readLine()) != null;)
+            {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                final String[] fields = line.split("\\s+");
+                final String kind = fields[0];
+                final int arguments = kind.equals("room-unknown") ? 1 : 2;
+                if ((fields.length != arguments + 1) || (validColour(fields[arguments]) == false))
+                    throw new IOException(file + ":" + lineNumber + ": malformed rule");
+                final String colour = fields[arguments].equals("-") ? null : fields[arguments];
+                final String key = fields[1];
+
+                if (kind.equals("attendance") || kind.equals("type-marker"))
+                {
+                    if ((key.length() != 1) || (key.charAt(0) >= MARKERS))
+                        throw new IOException(file + ":" + lineNumber + ": marker must be one character");
+                    (kind.equals("attendance") ? rules.attendance : rules.typeMarker)[key.charAt(0)] = colour == null ? "" : start(colour);
+                }
+                else if (kind.equals("type-case"))
+                {
+                    final int typeCase = Arrays.asList("mixed", "none", "upper", "lower").indexOf(key);
+                    if (typeCase < 0)
+                        throw new IOException(file + ":" + lineNumber + ": unknown type case: " + key);
+                    rules.typeCase[typeCase] = rule(null, colour);
+                }
+                else if (kind.equals("type") || kind.equals("room"))
+                    (kind.equals("type") ? rules.types : rules.rooms).add(rule(key, colour));
+                else if (kind.equals("room-unknown"))
+                    rules.unknownRoom = rule(null, colour);
+                else
+                    throw new IOException(file + ":" + lineNumber + ": unknown rule: " + kind);
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * Overrides these rules with other rules, the prefix rules of the other rules are tried first
+     *
+     * @param  rules  The overriding rules, {@code null} for none
+     */
+    public void override(final ColourRules rules)
+    {
+        if (rules == null)
+            return;
+        for (int c = 0; c < MARKERS; c++)
+        {
+            if (rules.attendance[c] != null)
+                this.attendance[c] = rules.attendance[c].isEmpty() ? null : rules.attendance[c];
+            if (rules.typeMarker[c] != null)
+                this.typeMarker[c] = rules.typeMarker[c].isEmpty() ? null : rules.typeMarker[c];
+        }
+        for (int i = 0; i < this.typeCase.length; i++)
+            if (rules.typeCase[i] != null)
+                this.typeCase[i] = rules.typeCase[i][1].isEmpty() ? null : rules.typeCase[i];
+        this.types.addAll(0, rules.types);
+        this.rooms.addAll(0, rules.rooms);
+        if (rules.unknownRoom != null)
+            this.unknownRoom = rules.unknownRoom[1].isEmpty() ? null : rules.unknownRoom;
+    }
+
+
+    /**
+     * Gets the escape sequence that starts the colour of an attendance marker
+     *
+     * @param   marker  The marker
+     * @return          The escape sequence, {@code null} if the marker has no colour
+     */
+    public String getAttendance(final int marker)
+    {
+        return this.attendance[marker & (MARKERS - 1)];
+    }
+
+    /**
+     * Gets the escape sequence that starts the colour of a type marker
+     *
+     * @param   marker  The marker
+     * @return          The escape sequence, {@code null} if the marker has no colour
+     */
+    public String getTypeMarker(final int marker)
+    {
+        return this.typeMarker[marker & (MARKERS - 1)];
+    }
+
+    /**
+     * Gets the escape sequence that starts the colour of the first character of a legend line
+     *
+     * @param   c  The character
+     * @return     The escape sequence, {@code null} if the character is not a marker with a colour
+     */
+    public String getLegend(final char c)
+    {
+        if (c >= MARKERS)
+            return null;
+        return this.attendance[c] != null ? this.attendance[c] : this.typeMarker[c];
+    }
+
+    /**
+     * Gets the rule for the type column of a line
+     *
+     * @param   line      The line
+     * @param   typeCase  The {@code EventStore.TYPE_*} case of the type column
+     * @return            The rule, the escape sequences that start and end the colour are its
+     *                    second and third elements, {@code null} if the type has no colour
+     */
+    public String[] getType(final String line, final byte typeCase)
+    {
+        final String[] rule = match(this.types, line, 30);
+        if (rule != null)
+            return rule[1].isEmpty() ? null : rule;
+        return this.typeCase[typeCase];
+    }
+
+    /**
+     * Gets the rule for the room column of a line
+     *
+     * @param   line  The line
+     * @return        The rule, the escape sequences that start and end the colour are its
+     *                second and third elements, {@code null} if the room has no colour
+     */
+    public String[] getRoom(final String line)
+    {
+        final String[] rule = match(this.rooms, line, ScheduleParser.ROOM_COLUMN);
+        return (rule == null) || rule[1].isEmpty() ? null : rule;
+    }
+
+    /**
+     * Gets the rule for the question mark of unknown rooms
+     *
+     * @return  The rule, the escape sequences that start and end the colour are its
+     *          second and third elements, {@code null} for no colour
+     */
+    public String[] getUnknownRoom()
+    {
+        return this.unknownRoom;
+    }
+
+
+    /**
+     * Creates a rule
+     *
+     * @param   prefix  The prefix the rule matches, {@code null} if not a prefix rule
+     * @param   colour  The select graphic rendition parameters, {@code null} to remove the colour
+     * @return          The prefix followed by the escape sequences that start and end the colour,
+     *                  which are empty if the colour is removed
+     */
+    private static String[] rule(final String prefix, final String colour)
+    {
+        if (colour == null)
+            return new String[] { prefix, "", "" };
+        return new String[] { prefix, start(colour), reset(colour) };
+    }
+
+    /**
+     * Finds the first prefix rule that matches a column of a line
+     *
+     * @param   rules   The prefix rules
+     * @param   line    The line
+     * @param   column  The column
+     * @return          The rule, {@code null} if none matches
+     */
+    private static String[] match(final ArrayList<String[]> rules, final String line, final int column)
+    {
+        for (int i = 0, n = rules.size(); i < n; i++)
+        {
+            final String[] rule = rules.get(i);
+            if (line.startsWith(rule[0], column))
+                return rule;
+        }
+        return null;
+    }
+
+    /**
+     * Creates the escape sequence that starts a colour
+     *
+     * @param   colour  The select graphic rendition parameters
+     * @return          The escape sequence
+     */
+    private static String start(final String colour)
+    {
+        return "\033[" + colour + "m";
+    }
+
+    /**
+     * Creates the escape sequence that ends a colour, only the foreground
+     * is reset if that is the only thing the colour sets
+     *
+     * @param   colour  The select graphic rendition parameters
+     * @return          The escape sequence
+     */
+    private static String reset(final String colour)
+    {
+        return colour.matches("3[0-7]|9[0-7]") ? "\033[39m" : MARKER_RESET;
+    }
+
+    /**
+     * Checks whether a colour in a rules file is valid
+     *
+     * @param   colour  The colour, select graphic rendition parameters or {@code -}
+     * @return          Whether the colour is valid
+     */
+    private static boolean validColour(final String colour)
+    {
+        return colour.equals("-") || colour.matches("[0-9]+(;[0-9]+)*");
+    }
+    
+}
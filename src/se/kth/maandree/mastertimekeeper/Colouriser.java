@@ -0,0 +1,376 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.util.concurrent.*;
+
+
+/**
+ * Adds colours to the lines of a schedule file. It keeps no state between
+ * lines, the context a line is colourised in is looked up in a {@link BlockMap},
+ * so any line can be colourised on its own, from any thread, and ranges of
+ * lines can be colourised in parallel, one block per task.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class Colouriser
+{
+    /**
+     * Constructor
+     *
+     * @param  file     The schedule file
+     * @param  events   The parsed events of the file
+     * @param  clashes  The {@link ClashDetector} state of each event
+     * @param  blocks   The context of each line
+     * @param  rules    The colour rules
+     * @param  today    Today's date, as {@code yyyymmdd}
+     * @param  year     The current year
+     * @param  week     The current week of the year
+     */
+    public Colouriser(final ScheduleFile file, final EventStore events, final byte[] clashes, final BlockMap blocks,
+                      final ColourRules rules, final int today, final int year, final int week)
+    {
+        this.file = file;
+        this.events = events;
+        this.clashes = clashes;
+        this.blocks = blocks;
+        this.rules = rules;
+        this.today = today;
+        this.year = year;
+        this.week = week;
+    }
+
+
+
+    /**
+     * Lines in a block are colourised in one task when there are at most this many of them
+     */
+    private static final int TASK_LINES = 256;
+
+    /**
+     * The schedule file
+     */
+    private final ScheduleFile file;
+
+    /**
+     * The parsed events of the file
+     */
+    private final EventStore events;
+
+    /**
+     * The {@link ClashDetector} state of each event
+     */
+    private final byte[] clashes;
+
+    /**
+     * The context of each line
+     */
+    private final BlockMap blocks;
+
+    /**
+     * The colour rules
+     */
+    private final ColourRules rules;
+
+    /**
+     * Today's date, as {@code yyyymmdd}
+     */
+    private final int today;
+
+    /**
+     * The current year
+     */
+    private final int year;
+
+    /**
+     * The current week of the year
+     */
+    private final int week;
+
+
+
+    /**
+     * Colourises a line
+     *
+     * @param   line  The line's index in the file
+     * @return        The line colourised
+     */
+    public String colourise(final int line)
+    {
+        final int block = this.blocks.find(line);
+        return this.colourise(line, this.blocks.getSection(block), this.isCurrentWeek(block));
+    }
+
+    /**
+     * Colourises a range of lines in parallel
+     *
+     * @param   start  The first line
+     * @param   end    The line after the last line
+     * @param   pool   The pool to colourise in
+     * @return         The lines colourised, the first element is the line {@code start}
+     */
+    public String[] colourise(final int start, final int end, final ForkJoinPool pool)
+    {
+        final String[] lines = new String[end - start];
+        if (end > start)
+            pool.invoke(new Task(lines, start, start, end));
+        return lines;
+    }
+
+
+    /**
+     * Checks whether a block is under the current week's header
+     *
+     * @param   block  The block
+     * @return         Whether the block is in the current week
+     */
+    private boolean isCurrentWeek(final int block)
+    {
+        return (this.blocks.getWeek(block) == this.week) && (this.blocks.getWeekYear(block) == this.year);
+    }
+
+    /**
+     * Checks whether an event is today
+     *
+     * @param   event  The event
+     * @return         Whether the event has its date written out and the date is today
+     */
+    private boolean isToday(final int event)
+    {
+        return ((this.events.getFlags(event) & EventStore.FLAG_DATED) != 0) && (this.events.getDate(event) == this.today);
+    }
+
+    /**
+     * Colourises a line
+     *
+     * @param   index        The line's index in the file
+     * @param   section      The {@code ScheduleParser.SECTION_*} section the line is in
+     * @param   currentWeek  Whether the line is under the current week's header
+     * @return               The line colourised
+     */
+    private String colourise(final int index, final int section, final boolean currentWeek)
+    {
+        final String line = ScheduleParser.expandTabs(this.file.getLine(index));
+        final StringBuilder out = new StringBuilder();
+        final int event = this.events.findByLine(index);
+
+        if (line.startsWith("--- "))
+        {
+            out.append("\033[47;30m\033[2K");
+            out.append(line);
+            out.append("\033[49;39m\n");
+        }
+        else if (section < ScheduleParser.SECTION_SCHEDULE)
+        {
+            final String colour;
+            if ((section == ScheduleParser.SECTION_LEGEND) && (line.length() > 0) && ((colour = this.rules.getLegend(line.charAt(0))) != null))
+            {
+                out.append(colour);
+                out.append(line.charAt(0));
+                out.append(ColourRules.MARKER_RESET);
+                out.append(line, 1, line.length());
+            }
+            else
+                out.append(line);
+            out.append('\n');
+        }
+        else if (line.startsWith(">>"))
+        {
+            out.append("\033[31m");
+            out.append(line);
+            out.append("\033[39m\n");
+        }
+        else if (line.startsWith("::"))
+        {
+            if (currentWeek)
+                out.append("\033[32;1m");
+            else
+                out.append("\033[34;1m");
+            out.append(line.substring(0, 2));
+            out.append("\033[21m");
+            out.append(line.substring(2));
+            out.append("\033[39m\n");
+        }
+        else if (line.startsWith("#"))
+        {
+            out.append("\033[32m");
+            out.append(line);
+            out.append("\033[39m\n");
+        }
+        else if (event >= 0)
+        {
+            if (this.isToday(event))
+            {
+                out.append("\033[1;32m");
+                out.append(line, 0, 15);
+                out.append("\033[21;39m");
+            }
+            else
+                out.append(line, 0, 15);
+            switch (this.clashes[event])
+            {
+                case ClashDetector.AGREED:    out.append("\033[2m×\033[22m");       break;
+                case ClashDetector.UNMARKED:  out.append("\033[1;31m×\033[21;39m");  break;
+                case ClashDetector.STALE:     out.append("\033[1;31m≠\033[21;39m");  break;
+                default:
+                    out.append(line.charAt(15));
+                    break;
+            }
+            String colour;
+            if ((colour = this.rules.getAttendance(this.events.getAttendance(event))) != null)
+            {
+                out.append(colour);
+                out.append(line.charAt(16));
+                out.append(ColourRules.MARKER_RESET);
+                if ((colour = this.rules.getTypeMarker(this.events.getTypeMarker(event))) != null)
+                {
+                    out.append(line, 17, 29);
+                    out.append(colour);
+                    out.append(line.charAt(29));
+                    out.append(ColourRules.MARKER_RESET);
+                }
+                else
+                    out.append(line, 17, 30);
+            }
+            else if ((colour = this.rules.getTypeMarker(this.events.getTypeMarker(event))) != null)
+            {
+                out.append(line, 16, 29);
+                out.append(colour);
+                out.append(line.charAt(29));
+                out.append(ColourRules.MARKER_RESET);
+            }
+            else
+                out.append(line, 16, 30);
+
+            final String[] type = this.rules.getType(line, this.events.getTypeCase(event));
+            if (type != null)
+                out.append(type[1]);
+            out.append(line, 30, 43);
+            out.append(type == null ? "\033[39m" : type[2]);
+            if ((this.events.getFlags(event) & EventStore.FLAG_COURSE_MARKED) != 0)
+                out.append("\033[31m");
+            out.append(line, 43, 53);
+            out.append("\033[39m");
+            final String[] unknownRoom = this.rules.getUnknownRoom(), room;
+            if (((this.events.getFlags(event) & EventStore.FLAG_UNKNOWN_ROOM) != 0) && (unknownRoom != null))
+            {
+                out.append(unknownRoom[1]);
+                out.append('?');
+                out.append(unknownRoom[2]);
+                out.append(line, 54, line.length());
+            }
+            else if ((room = this.rules.getRoom(line)) != null)
+            {
+                final int roomEnd = ScheduleParser.roomEnd(line);
+                out.append(room[1]);
+                out.append(line, 53, roomEnd);
+                out.append(room[2]);
+                out.append(line, roomEnd, line.length());
+            }
+            else
+                out.append(line, 53, line.length());
+            out.append('\n');
+        }
+        else
+        {
+            out.append(line);
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+
+
+    /**
+     * Task that colourises a range of lines, split into one task per block
+     */
+    private class Task extends RecursiveAction
+    {
+        /**
+         * Compatibility versioning for {@link java.io.Serializable}
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructor
+         *
+         * @param  lines   The output lines
+         * @param  offset  The line stored first in {@code lines}
+         * @param  start   The first line
+         * @param  end     The line after the last line
+         */
+        Task(final String[] lines, final int offset, final int start, final int end)
+        {
+            this.lines = lines;
+            this.offset = offset;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * The output lines
+         */
+        private final String[] lines;
+
+        /**
+         * The line stored first in {@link #lines}
+         */
+        private final int offset;
+
+        /**
+         * The first line
+         */
+        private final int start;
+
+        /**
+         * The line after the last line
+         */
+        private final int end;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void compute()
+        {
+            final BlockMap blocks = Colouriser.this.blocks;
+            final int first = blocks.find(this.start), last = blocks.find(this.end - 1);
+            if (first != last)
+            {
+                final int split = blocks.getStart((first + last + 1) >>> 1);
+                invokeAll(new Task(this.lines, this.offset, this.start, split),
+                          new Task(this.lines, this.offset, split, this.end));
+            }
+            else if (this.end - this.start > TASK_LINES)
+            {
+                final int split = (this.start + this.end) >>> 1;
+                invokeAll(new Task(this.lines, this.offset, this.start, split),
+                          new Task(this.lines, this.offset, split, this.end));
+            }
+            else
+            {
+                final int section = blocks.getSection(first);
+                final boolean currentWeek = Colouriser.this.isCurrentWeek(first);
+                for (int i = this.start; i < this.end; i++)
+                    this.lines[i - this.offset] = Colouriser.this.colourise(i, section, currentWeek);
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,892 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Resident daemon that keeps schedules parsed and colourised in memory and
+ * answers queries over a Unix-domain socket, and the client for it
+ * <p>
+ * A request is one line of tab-separated fields: the client's working
+ * directory, which relative file names are resolved against, the query and
+ * its arguments. The response starts with a line that is either {@code ok} or
+ * {@code error: } followed by a message, the rest of the response is the
+ * answer. The queries are:
+ * <pre>
+ * ping
+ * today  FILE                 the line for today
+ * lines  FILE START END       colourised lines
+ * export FORMAT FILE          the file exported as with --export
+ * frame  FILE WIDTH HEIGHT    the first frame of the viewer, rows cut at WIDTH columns and separated by NUL
+ * agenda next FILE            the next event, as with --next, see {@link Agenda}
+ * agenda today FILE           today's events, as with --today
+ * agenda range FROM TO FILE   the events in a range of dates, as with --range
+ * </pre>
+ * Only the files given on the daemon's command line, and other files that are
+ * schedules, with a legend and a section after it, are served. Files are
+ * reparsed when they change on disk, and when the date changes.
+ * <p>
+ * Unix-domain socket channels were added in Java 16, they are opened by
+ * reflection so that the program still builds for Java 7. On older runtimes
+ * the daemon listens on a loopback TCP port instead, and writes the port
+ * number and a random token to a regular file at the socket's path; the client
+ * connects to whichever of the two it finds. A loopback port can be reached by
+ * every user on the machine, so the client must send the token on a line before
+ * the request. Both the socket and the port file can only be used by their owner.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class Daemon
+{
+    /**
+     * Constructor
+     *
+     * @param  rules  Colour rules that override the rules from each file's legend, {@code null} for none
+     * @param  pool   The pool lines are colourised in
+     */
+    public Daemon(final ColourRules rules, final ForkJoinPool pool)
+    {
+        this.rules = rules;
+        this.pool = pool;
+    }
+
+
+
+    /**
+     * The number of lines at the bottom of the viewer, the status bar and the bottom line
+     */
+    private static final int BOTTOM = 2;
+
+    /**
+     * Whether the runtime supports Unix-domain sockets
+     */
+    private static final boolean UNIX_SOCKETS = hasUnixSockets();
+
+
+
+    /**
+     * Colour rules that override the rules from each file's legend, {@code null} for none
+     */
+    private final ColourRules rules;
+
+    /**
+     * The pool lines are colourised in
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * The files given on the command line, by canonical file, other files are only served if they are
+     * schedules; it is only changed before the daemon starts serving
+     */
+    private final HashSet<File> files = new HashSet<File>();
+
+    /**
+     * The token clients must send before their request, {@code null} if none is required
+     */
+    private String token = null;
+
+    /**
+     * The loaded schedules, by canonical file
+     */
+    private final ConcurrentHashMap<File, Schedule> schedules = new ConcurrentHashMap<File, Schedule>();
+
+    /**
+     * Watches the directories of the loaded schedules, {@code null} if not watching
+     */
+    private WatchService watcher = null;
+
+    /**
+     * The directories registered with {@link #watcher}
+     */
+    private final HashSet<Path> watched = new HashSet<Path>();
+
+
+
+    /**
+     * A parsed and colourised schedule
+     */
+    private static class Schedule
+    {
+        /**
+         * The modification time of the file when it was loaded
+         */
+        long modified;
+
+        /**
+         * The size of the file when it was loaded
+         */
+        long length;
+
+        /**
+         * The date the schedule was colourised for, as {@code yyyymmdd}
+         */
+        int today;
+
+        /**
+         * The number of pinned lines at the top
+         */
+        int top;
+
+        /**
+         * The line for today, as found by {@link Program#findToday(WeekIndex, int, int, int)}
+         */
+        int todayLine;
+
+        /**
+         * The colourised lines
+         */
+        String[] lines;
+
+        /**
+         * The size of the file in bytes
+         */
+        int size;
+
+        /**
+         * The attended events, sorted by time
+         */
+        Timeline timeline;
+    }
+
+
+
+    /**
+     * Runs the daemon from the command line, it does not return unless it fails to start
+     * <p>
+     * The arguments are {@code SOCKET [--colours RULES] FILE...}, the files are loaded
+     * up front, other files are loaded when they are first queried
+     *
+     * @param   args         The arguments after {@code --daemon}
+     * @return               The exit value, zero on success
+     * @throws  IOException  On I/O error
+     */
+    public static int run(final String[] args) throws IOException
+    {
+        if (args.length < 1)
+        {
+            System.err.println("usage: mastertimekeeper --daemon SOCKET [--colours RULES] FILE...");
+            return 2;
+        }
+        ColourRules rules = null;
+        int first = 1;
+        if ((args.length > 2) && args[1].equals("--colours"))
+        {
+            rules = ColourRules.load(new File(args[2]));
+            first = 3;
+        }
+
+        final File socket = new File(args[0]);
+        if (socket.exists())
+        {
+            boolean running;
+            try (SocketChannel channel = connect(socket))
+            {
+                running = channel.isConnected();
+            }
+            catch (final IOException err)
+            {
+                running = false;
+            }
+            if (running)
+            {
+                System.err.println("mastertimekeeper: a daemon is already running on " + socket);
+                return 1;
+            }
+            if (socket.delete() == false)
+                throw new IOException("Cannot remove stale socket: " + socket);
+        }
+
+        final Daemon daemon = new Daemon(rules, new ForkJoinPool());
+        daemon.startWatching();
+        for (int i = first; i < args.length; i++)
+        {
+            daemon.files.add(new File(args[i]).getCanonicalFile());
+            daemon.get(new File(args[i]));
+        }
+
+        if (UNIX_SOCKETS == false)
+            daemon.token = newToken();
+        final ServerSocketChannel server = bind(socket, daemon.token);
+        Runtime.getRuntime().addShutdownHook(new Thread()
+                {
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    public void run()
+                    {
+                        socket.delete();
+                    }
+                });
+        daemon.serve(server);
+        return 0;
+    }
+
+    /**
+     * Runs a query from the command line, and prints the answer
+     * <p>
+     * The arguments are {@code SOCKET QUERY ARGUMENT...}
+     *
+     * @param   args         The arguments after {@code --client}
+     * @return               The exit value, zero on success
+     * @throws  IOException  On I/O error
+     */
+    public static int client(final String[] args) throws IOException
+    {
+        if (args.length < 2)
+        {
+            System.err.println("usage: mastertimekeeper --client SOCKET QUERY [ARGUMENT...]");
+            return 2;
+        }
+        final byte[] answer;
+        try
+        {
+            answer = query(new File(args[0]), Arrays.copyOfRange(args, 1, args.length));
+        }
+        catch (final IOException err)
+        {
+            System.err.println("mastertimekeeper: " + err.getMessage());
+            return 1;
+        }
+        final OutputStream out = new FileOutputStream(FileDescriptor.out);
+        out.write(answer);
+        out.flush();
+        return 0;
+    }
+
+    /**
+     * Gets the first frame of the viewer from a daemon
+     *
+     * @param   socket  The daemon's socket
+     * @param   file    The schedule file
+     * @param   width   The width of the terminal
+     * @param   height  The height of the terminal
+     * @return          The rows of the frame, the last row is the empty bottom line,
+     *                  {@code null} if the daemon could not be queried
+     */
+    public static String[] frame(final File socket, final File file, final int width, final int height)
+    {
+        try
+        {
+            final byte[] answer = query(socket, "frame", file.getPath(), Integer.toString(width), Integer.toString(height));
+            return new String(answer, "UTF-8").split("\0", -1);
+        }
+        catch (final IOException err)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Sends a query to a daemon
+     *
+     * @param   socket       The daemon's socket
+     * @param   query        The query and its arguments
+     * @return               The answer
+     * @throws  IOException  On I/O error, or if the daemon answered with an error
+     */
+    public static byte[] query(final File socket, final String... query) throws IOException
+    {
+        final StringBuilder request = new StringBuilder(new File("").getAbsolutePath());
+        for (final String field : query)
+        {
+            if ((field.indexOf('\t') >= 0) || (field.indexOf('\n') >= 0))
+                throw new IOException("Query arguments cannot contain tabs or line feeds");
+            request.append('\t').append(field);
+        }
+        request.append('\n');
+
+        final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        try (SocketChannel channel = connect(socket))
+        {
+            final OutputBuffer buf = new OutputBuffer(request.length() * 2);
+            buf.append(request.toString());
+            buf.writeTo(channel);
+            final InputStream in = Channels.newInputStream(channel);
+            final byte[] chunk = new byte[1 << 14];
+            for (int n; (n = in.read(chunk)) > 0;)
+                response.write(chunk, 0, n);
+        }
+        final byte[] bytes = response.toByteArray();
+        int newline = 0;
+        while ((newline < bytes.length) && (bytes[newline] != '\n'))
+            newline++;
+        final String status = new String(bytes, 0, newline, "UTF-8");
+        if (status.equals("ok") == false)
+            throw new IOException(status.startsWith("error: ") ? status.substring(7) : "Malformed response from daemon");
+        return Arrays.copyOfRange(bytes, Math.min(newline + 1, bytes.length), bytes.length);
+    }
+
+
+    /**
+     * Accepts connections and answers their queries, each connection on its own thread
+     *
+     * @param   server       The server socket
+     * @throws  IOException  On I/O error
+     */
+    public void serve(final ServerSocketChannel server) throws IOException
+    {
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        for (;;)
+        {
+            final SocketChannel channel = server.accept();
+            executor.execute(new Runnable()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        @Override
+                        public void run()
+                        {
+                            try (SocketChannel c = channel)
+                            {
+                                Daemon.this.answer(c);
+                            }
+                            catch (final IOException err)
+                            {
+                                //The client has gone away
+                            }
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Reads a query from a connection and writes the answer
+     *
+     * @param   channel      The connection
+     * @throws  IOException  On I/O error
+     */
+    private void answer(final SocketChannel channel) throws IOException
+    {
+        final BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), "UTF-8"));
+        final String token = this.token == null ? null : in.readLine();
+        final String request = in.readLine();
+        if (request == null)
+            return;
+        final OutputBuffer status = new OutputBuffer(1 << 8);
+        final OutputBuffer answer;
+        try
+        {
+            if ((token != null) && (MessageDigest.isEqual(token.getBytes("UTF-8"), this.token.getBytes("UTF-8")) == false))
+                throw new IOException("Wrong token");
+            final String[] fields = request.split("\t", -1);
+            answer = this.answer(new File(fields[0]), Arrays.copyOfRange(fields, 1, fields.length));
+        }
+        catch (final IOException | RuntimeException err)
+        {
+            status.append("error: " + String.valueOf(err.getMessage()).replace('\n', ' ') + "\n");
+            status.writeTo(channel);
+            return;
+        }
+        status.append("ok\n");
+        status.writeTo(channel);
+        answer.writeTo(channel);
+    }
+
+    /**
+     * Answers a query
+     *
+     * @param   directory    The client's working directory
+     * @param   query        The query and its arguments
+     * @return               The answer, without the status line
+     * @throws  IOException  On I/O error, or if the query is malformed
+     */
+    private OutputBuffer answer(final File directory, final String[] query) throws IOException
+    {
+        final String name = query.length == 0 ? "" : query[0];
+        final OutputBuffer buf = new OutputBuffer(1 << 12);
+        if (name.equals("ping") && (query.length == 1))
+            buf.append("pong\n");
+        else if (name.equals("today") && (query.length == 2))
+        {
+            buf.appendNumber(this.get(resolve(directory, query[1])).todayLine);
+            buf.append('\n');
+        }
+        else if (name.equals("lines") && (query.length == 4))
+        {
+            final String[] lines = this.get(resolve(directory, query[1])).lines;
+            final int start = Math.max(parseInt(query[2]), 0), end = Math.min(parseInt(query[3]), lines.length);
+            for (int i = start; i < end; i++)
+                buf.append(lines[i]);
+        }
+        else if (name.equals("export") && (query.length == 3))
+        {
+            final int format = Exporter.getFormat(query[1]);
+            if (format < 0)
+                throw new IOException("Unknown format: " + query[1]);
+            final File file = resolve(directory, query[2]);
+            final Schedule schedule = this.get(file);
+            return new Exporter(format, 0, 0, 0, null, this.pool).format(file.getName(), schedule.lines, schedule.size * 2);
+        }
+        else if (name.equals("frame") && (query.length == 4))
+        {
+            final Schedule schedule = this.get(resolve(directory, query[1]));
+            final int width = parseInt(query[2]), height = parseInt(query[3]), lineCount = schedule.lines.length;
+            final int top = schedule.top, dispheight = height - BOTTOM - top;
+            final int cur = Math.max(schedule.todayLine, top);
+            for (int i = 0, n = Math.min(top, height - BOTTOM); i < n; i++)
+            {
+                buf.append(clip(schedule.lines[i], width));
+                buf.append('\0');
+            }
+            for (int i = 0; i < dispheight; i++)
+            {
+                buf.append(cur + i < lineCount ? clip(schedule.lines[cur + i], width) : "\033[2m~\033[22m\n");
+                buf.append('\0');
+            }
+            if (height >= 2)
+            {
+                buf.append(Program.getStatusText(Program.getStatusPosition(cur, top, BOTTOM, height, lineCount), null));
+                buf.append('\0');
+            }
+        }
+        else if (name.equals("agenda") && Agenda.isQuery(Arrays.copyOfRange(query, 1, query.length)))
+        {
+            final Calendar now = Calendar.getInstance();
+            final int today = now.get(Calendar.YEAR) * 10000 + (now.get(Calendar.MONTH) + 1) * 100 + now.get(Calendar.DAY_OF_MONTH);
+            final int minute = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+            final Timeline timeline = this.get(resolve(directory, query[query.length - 1])).timeline;
+            return Agenda.answer(timeline, Arrays.copyOfRange(query, 1, query.length), today, minute);
+        }
+        else
+            throw new IOException("Unknown query: " + name + " with " + (query.length - 1) + " arguments");
+        return buf;
+    }
+
+    /**
+     * Gets a schedule, loading it if it is not loaded or has changed
+     *
+     * @param   file         The schedule file
+     * @return               The schedule
+     * @throws  IOException  On I/O error
+     */
+    private Schedule get(final File file) throws IOException
+    {
+        final File key = file.getCanonicalFile();
+        final Calendar now = Calendar.getInstance();
+        final int year = now.get(Calendar.YEAR);
+        final int week = now.get(Calendar.WEEK_OF_YEAR);
+        final int today = year * 10000 + (now.get(Calendar.MONTH) + 1) * 100 + now.get(Calendar.DAY_OF_MONTH);
+
+        Schedule schedule = this.schedules.get(key);
+        if ((schedule != null) && (schedule.today == today) && (schedule.modified == key.lastModified()) && (schedule.length == key.length()))
+            return schedule;
+        synchronized (this)
+        {
+            schedule = this.schedules.get(key);
+            if ((schedule != null) && (schedule.today == today) && (schedule.modified == key.lastModified()) && (schedule.length == key.length()))
+                return schedule;
+            schedule = this.load(key, today, year, week);
+            this.schedules.put(key, schedule);
+            this.watch(key);
+            return schedule;
+        }
+    }
+
+    /**
+     * Parses and colourises a schedule
+     *
+     * @param   file         The canonical schedule file
+     * @param   today        Today's date, as {@code yyyymmdd}
+     * @param   year         The current year
+     * @param   week         The current week of the year
+     * @return               The schedule
+     * @throws  IOException  On I/O error, or if the file was not given on the command line and is not a schedule
+     */
+    private Schedule load(final File file, final int today, final int year, final int week) throws IOException
+    {
+        final Schedule schedule = new Schedule();
+        schedule.modified = file.lastModified();
+        schedule.length = file.length();
+        schedule.today = today;
+
+        final ScheduleFile scheduleFile = new ScheduleFile(file);
+        /* Clients may name any file, it is checked before it is parsed, so that no cache is written next to it */
+        if ((this.files.contains(file) == false) && (isSchedule(scheduleFile) == false))
+            throw new IOException("Not a schedule: " + file);
+        final EventStore events = new EventStore(new StringPool());
+        final WeekIndex weeks = new WeekIndex();
+        final BlockMap blocks = new BlockMap();
+        ScheduleCache.parse(scheduleFile, events, weeks, null, blocks);
+        final ColourRules rules = ColourRules.fromLegend(scheduleFile, blocks);
+        rules.override(this.rules);
+        final Colouriser colouriser = new Colouriser(scheduleFile, events, ClashDetector.detect(events), blocks,
+                                                     rules, today, year, week);
+        final int lineCount = scheduleFile.getLineCount();
+        schedule.lines = colouriser.colourise(0, lineCount, this.pool);
+        schedule.size = (int)schedule.length;
+        schedule.timeline = new Timeline(events);
+        schedule.todayLine = Math.max(Program.findToday(weeks, today, year, week), 0);
+        int top = 0;
+        while ((top < lineCount) && (scheduleFile.startsWith(top, "--- ") == false))
+            top++;
+        schedule.top = top >= lineCount ? 0 : top;
+        return schedule;
+    }
+
+    /**
+     * Starts a thread that reloads schedules when they change
+     *
+     * @throws  IOException  On I/O error
+     */
+    private void startWatching() throws IOException
+    {
+        this.watcher = FileSystems.getDefault().newWatchService();
+        final Thread thread = new Thread("watcher")
+                {
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            for (;;)
+                            {
+                                final WatchKey key = Daemon.this.watcher.take();
+                                final Path directory = (Path)(key.watchable());
+                                for (final WatchEvent<?> event : key.pollEvents())
+                                    if (event.context() instanceof Path)
+                                    {
+                                        final File file = directory.resolve((Path)(event.context())).toFile();
+                                        if (Daemon.this.schedules.containsKey(file) && file.exists())
+                                            try
+                                            {
+                                                Daemon.this.get(file);
+                                            }
+                                            catch (final IOException err)
+                                            {
+                                                //Reloaded when it is next queried
+                                            }
+                                    }
+                                key.reset();
+                            }
+                        }
+                        catch (final InterruptedException err)
+                        {
+                            //Stop watching
+                        }
+                    }
+                };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Watches the directory of a schedule, if watching
+     *
+     * @param   file         The canonical schedule file
+     * @throws  IOException  On I/O error
+     */
+    private void watch(final File file) throws IOException
+    {
+        final Path directory = file.getParentFile().toPath();
+        if ((this.watcher != null) && this.watched.add(directory))
+            directory.register(this.watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+    }
+
+
+    /**
+     * Resolves a file name against a directory
+     *
+     * @param   directory  The directory
+     * @param   name       The file name
+     * @return             The file
+     */
+    private static File resolve(final File directory, final String name)
+    {
+        final File file = new File(name);
+        return file.isAbsolute() ? file : new File(directory, name);
+    }
+
+    /**
+     * Checks whether a file is a schedule, that is, whether it has a legend and a section after it
+     *
+     * @param   file  The file
+     * @return        Whether the file is a schedule
+     */
+    private static boolean isSchedule(final ScheduleFile file)
+    {
+        boolean legend = false;
+        for (int i = 0, n = file.getLineCount(); i < n; i++)
+            if (file.startsWith(i, "--- Legend ---"))
+                legend = true;
+            else if (legend && file.startsWith(i, "--- "))
+                return true;
+        return false;
+    }
+
+    /**
+     * Creates a token for clients to send over loopback TCP
+     *
+     * @return  128 random bits, in hexadecimal
+     */
+    private static String newToken()
+    {
+        final byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        final StringBuilder rc = new StringBuilder(32);
+        for (final byte b : bytes)
+            rc.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+        return rc.toString();
+    }
+
+    /**
+     * Cuts a colourised line after a number of columns, the escape sequences before the cut are kept
+     *
+     * @param   line   The colourised line
+     * @param   width  The number of columns
+     * @return         The line, cut
+     */
+    private static String clip(final String line, final int width)
+    {
+        int columns = 0;
+        for (int i = 0, n = line.length(); i < n;)
+            if (line.charAt(i) == '\033')
+                i = Program.escapeEnd(line, i);
+            else if ((line.charAt(i) == '\n') || (line.charAt(i) == '\r'))
+                i++;
+            else if (columns++ == width)
+                return line.substring(0, i);
+            else
+                i += Character.charCount(line.codePointAt(i));
+        return line;
+    }
+
+    /**
+     * Parses an integer argument of a query
+     *
+     * @param   text         The argument
+     * @return               The integer
+     * @throws  IOException  If the argument is not an integer
+     */
+    private static int parseInt(final String text) throws IOException
+    {
+        try
+        {
+            return Integer.parseInt(text);
+        }
+        catch (final NumberFormatException err)
+        {
+            throw new IOException("Not an integer: " + text);
+        }
+    }
+
+    /**
+     * Checks whether the runtime supports Unix-domain sockets, they were added in Java 16
+     *
+     * @return  Whether Unix-domain sockets are supported
+     */
+    private static boolean hasUnixSockets()
+    {
+        try
+        {
+            Class.forName("java.net.UnixDomainSocketAddress");
+            return true;
+        }
+        catch (final ClassNotFoundException err)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Creates a Unix-domain socket address
+     *
+     * @param   socket       The socket file
+     * @return               The address
+     * @throws  IOException  If the runtime does not support Unix-domain sockets
+     */
+    private static SocketAddress address(final File socket) throws IOException
+    {
+        try
+        {
+            return (SocketAddress)(Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, socket.getPath()));
+        }
+        catch (final ReflectiveOperationException err)
+        {
+            throw new IOException("Unix-domain sockets require Java 16 or newer", err);
+        }
+    }
+
+    /**
+     * Gets the protocol family of Unix-domain sockets
+     *
+     * @return               The protocol family
+     * @throws  IOException  If the runtime does not support Unix-domain sockets
+     */
+    private static ProtocolFamily unix() throws IOException
+    {
+        try
+        {
+            return (ProtocolFamily)(StandardProtocolFamily.class.getField("UNIX").get(null));
+        }
+        catch (final ReflectiveOperationException err)
+        {
+            throw new IOException("Unix-domain sockets require Java 16 or newer", err);
+        }
+    }
+
+    /**
+     * Connects to a daemon, over a Unix-domain socket, or over loopback TCP if the
+     * socket's path is a regular file with the port number, in which case the token
+     * in the file is sent
+     *
+     * @param   socket       The socket file
+     * @return               The connection
+     * @throws  IOException  On I/O error, or if the runtime does not support Unix-domain sockets
+     */
+    private static SocketChannel connect(final File socket) throws IOException
+    {
+        if (socket.isFile())
+        {
+            final String[] fields = new String(Files.readAllBytes(socket.toPath()), "US-ASCII").trim().split(" ");
+            if (fields.length != 2)
+                throw new IOException("Not a daemon socket: " + socket);
+            final SocketChannel channel;
+            try
+            {
+                channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(fields[0])));
+            }
+            catch (final IllegalArgumentException err)
+            {
+                throw new IOException("Not a daemon socket: " + socket);
+            }
+            final OutputBuffer buf = new OutputBuffer(64);
+            buf.append(fields[1] + "\n");
+            try
+            {
+                buf.writeTo(channel);
+            }
+            catch (final IOException err)
+            {
+                channel.close();
+                throw err;
+            }
+            return channel;
+        }
+        final SocketAddress address = address(socket);
+        final SocketChannel channel;
+        try
+        {
+            channel = (SocketChannel)(SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix()));
+        }
+        catch (final ReflectiveOperationException err)
+        {
+            throw new IOException("Unix-domain sockets require Java 16 or newer", err);
+        }
+        try
+        {
+            channel.connect(address);
+        }
+        catch (final IOException err)
+        {
+            channel.close();
+            throw err;
+        }
+        return channel;
+    }
+
+    /**
+     * Listens on a Unix-domain socket, or on a loopback TCP port, whose number and the token are
+     * written to the socket's path, if the runtime does not support Unix-domain sockets; either
+     * way, only the owner can use the socket's path
+     *
+     * @param   socket       The socket file
+     * @param   token        The token clients must send, {@code null} if Unix-domain sockets are supported
+     * @return               The server socket
+     * @throws  IOException  On I/O error
+     */
+    private static ServerSocketChannel bind(final File socket, final String token) throws IOException
+    {
+        final Path directory = socket.getAbsoluteFile().getParentFile().toPath();
+        if (UNIX_SOCKETS == false)
+        {
+            final ServerSocketChannel server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            final int port = ((InetSocketAddress)(server.getLocalAddress())).getPort();
+            /* Clients must not see a partly written port file, and a new temporary file can only be read by its owner */
+            final Path temp = Files.createTempFile(directory, "." + socket.getName() + ".", ".tmp");
+            try
+            {
+                Files.write(temp, (port + " " + token + "\n").getBytes("US-ASCII"));
+                Files.move(temp, socket.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (final IOException err)
+            {
+                server.close();
+                throw err;
+            }
+            finally
+            {
+                Files.deleteIfExists(temp);
+            }
+            return server;
+        }
+        final ServerSocketChannel server;
+        try
+        {
+            server = (ServerSocketChannel)(ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix()));
+        }
+        catch (final ReflectiveOperationException err)
+        {
+            throw new IOException("Unix-domain sockets require Java 16 or newer", err);
+        }
+        /* The socket is bound in a new temporary directory, which only the owner can enter,
+         * and is moved into place when only the owner can connect to it */
+        final Path temp = Files.createTempDirectory(directory, "." + socket.getName() + ".");
+        final Path bound = temp.resolve("socket");
+        try
+        {
+            server.bind(address(bound.toFile()));
+            try
+            {
+                Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+            }
+            catch (final UnsupportedOperationException err)
+            {
+                //The file system does not have POSIX permissions
+            }
+            Files.move(bound, socket.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (final IOException err)
+        {
+            server.close();
+            throw err;
+        }
+        finally
+        {
+            Files.deleteIfExists(bound);
+            Files.deleteIfExists(temp);
+        }
+        return server;
+    }
+    
+}
@@ -0,0 +1,203 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+
+/**
+ * Append-only journal of the edits to a schedule file that have not yet been
+ * written to the file, it is kept next to the file as {@code .NAME.journal}.
+ * Each edit is appended and forced to disk, so that an edit is saved without
+ * rewriting the file; the journal starts with the size and content hash of the
+ * file it applies to, so that a journal is not replayed on a file that has
+ * been changed by something else.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class EditJournal
+{
+    /**
+     * Constructor
+     *
+     * @param  file  The schedule file
+     */
+    public EditJournal(final File file)
+    {
+        this.journal = new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".journal");
+    }
+
+
+
+    /**
+     * The first four bytes of a journal, "MTKj"
+     */
+    private static final int MAGIC = 0x4d544b6a;
+
+    /**
+     * The version of the format
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The size of the header: magic, version, size and hash of the file
+     */
+    private static final int HEADER = 4 + 4 + 8 + 8;
+
+
+
+    /**
+     * The journal file
+     */
+    private final File journal;
+
+    /**
+     * The open journal, {@code null} if not started
+     */
+    private FileChannel channel = null;
+
+    /**
+     * The number of edits in the journal
+     */
+    private int size = 0;
+
+
+
+    /**
+     * Applies the edits in the journal, if the journal applies to the file, edits are replayed until
+     * the end of the journal or an edit that is incomplete or does not match the content
+     *
+     * @param   file         The schedule file, as it is on disk
+     * @param   table        The content to apply the edits to
+     * @return               The number of applied edits
+     * @throws  IOException  On I/O error
+     */
+    public int replay(final ScheduleFile file, final PieceTable table) throws IOException
+    {
+        if (this.journal.exists() == false)
+            return 0;
+        final ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(this.journal.toPath()));
+        if ((in.remaining() < HEADER) || (in.getInt() != MAGIC) || (in.getInt() != VERSION))
+            return 0;
+        if ((in.getLong() != file.getSize()) || (in.getLong() != file.hash(0, file.getLineCount())))
+            return 0;
+        int n = 0;
+        while (in.remaining() >= 12)
+        {
+            final int offset = in.getInt(), oldLength = in.getInt(), newLength = in.getInt();
+            if ((offset < 0) || (oldLength < 0) || (newLength < 0) || (offset > table.length() - oldLength)
+                                                                   || (in.remaining() < oldLength + newLength))
+                break;
+            final byte[] old = ScheduleCache.readBytes(in, oldLength);
+            final byte[] bytes = ScheduleCache.readBytes(in, newLength);
+            if (ByteBuffer.wrap(old).equals(ByteBuffer.wrap(table.get(offset, oldLength))) == false)
+                break;
+            table.replace(offset, oldLength, bytes);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Starts a new journal, replacing any existing journal
+     *
+     * @param   file         The schedule file, as it is on disk
+     * @throws  IOException  On I/O error
+     */
+    public void start(final ScheduleFile file) throws IOException
+    {
+        this.close();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(MAGIC).putInt(VERSION).putLong(file.getSize()).putLong(file.hash(0, file.getLineCount()));
+        header.flip();
+        this.channel = FileChannel.open(this.journal.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                        StandardOpenOption.TRUNCATE_EXISTING);
+        while (header.hasRemaining())
+            this.channel.write(header);
+        this.channel.force(false);
+        this.size = 0;
+    }
+
+    /**
+     * Appends an edit to the journal, and forces it to disk
+     *
+     * @param   offset       The offset of the replaced bytes
+     * @param   old          The replaced bytes
+     * @param   bytes        The bytes that replaced them
+     * @throws  IOException  On I/O error
+     */
+    public void append(final int offset, final byte[] old, final byte[] bytes) throws IOException
+    {
+        final ByteBuffer record = ByteBuffer.allocate(12 + old.length + bytes.length);
+        record.putInt(offset).putInt(old.length).putInt(bytes.length).put(old).put(bytes);
+        record.flip();
+        while (record.hasRemaining())
+            this.channel.write(record);
+        this.channel.force(false);
+        this.size++;
+    }
+
+    /**
+     * Gets whether the journal has been started
+     *
+     * @return  Whether the journal has been started
+     */
+    public boolean isStarted()
+    {
+        return this.channel != null;
+    }
+
+    /**
+     * Gets the number of edits in the journal
+     *
+     * @return  The number of edits appended since the journal was started
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * Closes and removes the journal
+     *
+     * @throws  IOException  On I/O error
+     */
+    public void delete() throws IOException
+    {
+        this.close();
+        Files.deleteIfExists(this.journal.toPath());
+        this.size = 0;
+    }
+
+    /**
+     * Closes the journal, if it is open
+     *
+     * @throws  IOException  On I/O error
+     */
+    private void close() throws IOException
+    {
+        if (this.channel != null)
+            this.channel.close();
+        this.channel = null;
+    }
+    
+}
@@ -0,0 +1,446 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+
+/**
+ * Column store of parsed events, one array per column and one index per event, ordered by line
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class EventStore
+{
+    /**
+     * Constructor
+     *
+     * @param  strings  The pool in which types, courses, rooms and comments are interned
+     */
+    public EventStore(final StringPool strings)
+    {
+        this.strings = strings;
+    }
+
+
+
+    /**
+     * Flag: the date is written on the event's line, rather than inherited from the line above
+     */
+    public static final byte FLAG_DATED = 1;
+
+    /**
+     * Flag: the room is not known, it starts with a '?'
+     */
+    public static final byte FLAG_UNKNOWN_ROOM = 2;
+
+    /**
+     * Flag: the course is marked, it starts with a '<'
+     */
+    public static final byte FLAG_COURSE_MARKED = 4;
+
+
+    /**
+     * Type case: the type mixes upper and lower case
+     */
+    public static final byte TYPE_MIXED_CASE = 0;
+
+    /**
+     * Type case: the type does not contain any letters
+     */
+    public static final byte TYPE_NO_LETTERS = 1;
+
+    /**
+     * Type case: the type is in upper case
+     */
+    public static final byte TYPE_UPPER_CASE = 2;
+
+    /**
+     * Type case: the type is in lower case
+     */
+    public static final byte TYPE_LOWER_CASE = 3;
+
+
+
+    /**
+     * The pool in which types, courses, rooms and comments are interned
+     */
+    private final StringPool strings;
+
+    /**
+     * The number of events
+     */
+    private int size = 0;
+
+    /**
+     * The line of each event
+     */
+    private int[] lines = new int[64];
+
+    /**
+     * The date of each event, as {@code yyyymmdd}
+     */
+    private int[] dates = new int[64];
+
+    /**
+     * The start time of each event, in minutes after midnight, -1 if unknown
+     */
+    private short[] starts = new short[64];
+
+    /**
+     * The end time of each event, in minutes after midnight, -1 if unknown
+     */
+    private short[] ends = new short[64];
+
+    /**
+     * The attendance marker of each event, ' ' if none
+     */
+    private byte[] attendances = new byte[64];
+
+    /**
+     * The type marker of each event, ' ' if none
+     */
+    private byte[] typeMarkers = new byte[64];
+
+    /**
+     * The {@code FLAG_*} flags of each event
+     */
+    private byte[] flags = new byte[64];
+
+    /**
+     * The {@code TYPE_*} case of each event's type
+     */
+    private byte[] typeCases = new byte[64];
+
+    /**
+     * The interned type of each event
+     */
+    private int[] types = new int[64];
+
+    /**
+     * The interned course of each event
+     */
+    private int[] courses = new int[64];
+
+    /**
+     * The interned room of each event
+     */
+    private int[] rooms = new int[64];
+
+    /**
+     * The interned comment of each event
+     */
+    private int[] comments = new int[64];
+
+
+
+    /**
+     * Adds an event, events must be added in line order
+     *
+     * @param   line        The event's line
+     * @param   date        The event's date, as {@code yyyymmdd}
+     * @param   start       The event's start time, in minutes after midnight, -1 if unknown
+     * @param   end         The event's end time, in minutes after midnight, -1 if unknown
+     * @param   attendance  The event's attendance marker, ' ' if none
+     * @param   typeMarker  The event's type marker, ' ' if none
+     * @param   flags       The event's {@code FLAG_*} flags
+     * @param   typeCase    The {@code TYPE_*} case of the event's type
+     * @param   type        The event's interned type
+     * @param   course      The event's interned course
+     * @param   room        The event's interned room
+     * @param   comment     The event's interned comment
+     * @return              The event's index
+     */
+    public int add(final int line, final int date, final int start, final int end, final byte attendance, final byte typeMarker,
+                   final byte flags, final byte typeCase, final int type, final int course, final int room, final int comment)
+    {
+        if (this.size == this.lines.length)
+        {
+            final int n = this.size << 1;
+            this.lines       = Arrays.copyOf(this.lines,       n);
+            this.dates       = Arrays.copyOf(this.dates,       n);
+            this.starts      = Arrays.copyOf(this.starts,      n);
+            this.ends        = Arrays.copyOf(this.ends,        n);
+            this.attendances = Arrays.copyOf(this.attendances, n);
+            this.typeMarkers = Arrays.copyOf(this.typeMarkers, n);
+            this.flags       = Arrays.copyOf(this.flags,       n);
+            this.typeCases   = Arrays.copyOf(this.typeCases,   n);
+            this.types       = Arrays.copyOf(this.types,       n);
+            this.courses     = Arrays.copyOf(this.courses,     n);
+            this.rooms       = Arrays.copyOf(this.rooms,       n);
+            this.comments    = Arrays.copyOf(this.comments,    n);
+        }
+        final int i = this.size++;
+        this.lines[i]       = line;
+        this.dates[i]       = date;
+        this.starts[i]      = (short)start;
+        this.ends[i]        = (short)end;
+        this.attendances[i] = attendance;
+        this.typeMarkers[i] = typeMarker;
+        this.flags[i]       = flags;
+        this.typeCases[i]   = typeCase;
+        this.types[i]       = type;
+        this.courses[i]     = course;
+        this.rooms[i]       = room;
+        this.comments[i]    = comment;
+        return i;
+    }
+
+    /**
+     * Adds a copy of an event from another store, events must be added in line order
+     *
+     * @param   from   The store to copy from, it must use the same string pool as this store
+     * @param   event  The event's index in {@code from}
+     * @param   line   The copy's line
+     * @param   date   The copy's date, as {@code yyyymmdd}
+     * @return         The copy's index
+     */
+    public int copy(final EventStore from, final int event, final int line, final int date)
+    {
+        return this.add(line, date, from.starts[event], from.ends[event], from.attendances[event], from.typeMarkers[event],
+                        from.flags[event], from.typeCases[event], from.types[event], from.courses[event], from.rooms[event],
+                        from.comments[event]);
+    }
+
+    /**
+     * Writes the events to a {@link ScheduleCache}
+     *
+     * @param   out          The output stream
+     * @throws  IOException  On I/O error
+     */
+    public void write(final DataOutputStream out) throws IOException
+    {
+        final int n = this.size;
+        out.writeInt(n);
+        ScheduleCache.writeInts(out, this.lines, n);
+        ScheduleCache.writeInts(out, this.dates, n);
+        ScheduleCache.writeShorts(out, this.starts, n);
+        ScheduleCache.writeShorts(out, this.ends, n);
+        out.write(this.attendances, 0, n);
+        out.write(this.typeMarkers, 0, n);
+        out.write(this.flags, 0, n);
+        out.write(this.typeCases, 0, n);
+        ScheduleCache.writeInts(out, this.types, n);
+        ScheduleCache.writeInts(out, this.courses, n);
+        ScheduleCache.writeInts(out, this.rooms, n);
+        ScheduleCache.writeInts(out, this.comments, n);
+    }
+
+    /**
+     * Replaces the events with events read from a {@link ScheduleCache}
+     *
+     * @param  in   The cache, positioned at the events
+     * @param  ids  The identifiers in this store's string pool of the cache's strings
+     */
+    public void read(final ByteBuffer in, final int[] ids)
+    {
+        final int n = this.size = in.getInt();
+        this.lines       = ScheduleCache.readInts(in, n);
+        this.dates       = ScheduleCache.readInts(in, n);
+        this.starts      = ScheduleCache.readShorts(in, n);
+        this.ends        = ScheduleCache.readShorts(in, n);
+        this.attendances = ScheduleCache.readBytes(in, n);
+        this.typeMarkers = ScheduleCache.readBytes(in, n);
+        this.flags       = ScheduleCache.readBytes(in, n);
+        this.typeCases   = ScheduleCache.readBytes(in, n);
+        this.types       = ScheduleCache.readStrings(in, n, ids);
+        this.courses     = ScheduleCache.readStrings(in, n, ids);
+        this.rooms       = ScheduleCache.readStrings(in, n, ids);
+        this.comments    = ScheduleCache.readStrings(in, n, ids);
+    }
+
+    /**
+     * Finds the event on a line
+     *
+     * @param   line  The line
+     * @return        The event's index, -1 if the line is not an event
+     */
+    public int findByLine(final int line)
+    {
+        final int i = Arrays.binarySearch(this.lines, 0, this.size, line);
+        return i < 0 ? -1 : i;
+    }
+
+    /**
+     * Changes the attendance marker of an event
+     *
+     * @param  event       The event's index
+     * @param  attendance  The event's new attendance marker, ' ' if none
+     */
+    public void setAttendance(final int event, final byte attendance)
+    {
+        this.attendances[event] = attendance;
+    }
+
+
+    /**
+     * Gets the pool in which types, courses, rooms and comments are interned
+     *
+     * @return  The pool in which types, courses, rooms and comments are interned
+     */
+    public StringPool getStrings()
+    {
+        return this.strings;
+    }
+
+    /**
+     * Gets the number of events
+     *
+     * @return  The number of events
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * Gets the line of an event
+     *
+     * @param   event  The event's index
+     * @return         The event's line
+     */
+    public int getLine(final int event)
+    {
+        return this.lines[event];
+    }
+
+    /**
+     * Gets the date of an event
+     *
+     * @param   event  The event's index
+     * @return         The event's date, as {@code yyyymmdd}
+     */
+    public int getDate(final int event)
+    {
+        return this.dates[event];
+    }
+
+    /**
+     * Gets the start time of an event
+     *
+     * @param   event  The event's index
+     * @return         The event's start time, in minutes after midnight, -1 if unknown
+     */
+    public int getStart(final int event)
+    {
+        return this.starts[event];
+    }
+
+    /**
+     * Gets the end time of an event
+     *
+     * @param   event  The event's index
+     * @return         The event's end time, in minutes after midnight, -1 if unknown
+     */
+    public int getEnd(final int event)
+    {
+        return this.ends[event];
+    }
+
+    /**
+     * Gets the attendance marker of an event
+     *
+     * @param   event  The event's index
+     * @return         The event's attendance marker, ' ' if none
+     */
+    public byte getAttendance(final int event)
+    {
+        return this.attendances[event];
+    }
+
+    /**
+     * Gets the type marker of an event
+     *
+     * @param   event  The event's index
+     * @return         The event's type marker, ' ' if none
+     */
+    public byte getTypeMarker(final int event)
+    {
+        return this.typeMarkers[event];
+    }
+
+    /**
+     * Gets the flags of an event
+     *
+     * @param   event  The event's index
+     * @return         The event's {@code FLAG_*} flags
+     */
+    public byte getFlags(final int event)
+    {
+        return this.flags[event];
+    }
+
+    /**
+     * Gets the case of an event's type
+     *
+     * @param   event  The event's index
+     * @return         The {@code TYPE_*} case of the event's type
+     */
+    public byte getTypeCase(final int event)
+    {
+        return this.typeCases[event];
+    }
+
+    /**
+     * Gets the type of an event
+     *
+     * @param   event  The event's index
+     * @return         The event's interned type
+     */
+    public int getType(final int event)
+    {
+        return this.types[event];
+    }
+
+    /**
+     * Gets the course of an event
+     *
+     * @param   event  The event's index
+     * @return         The event's interned course
+     */
+    public int getCourse(final int event)
+    {
+        return this.courses[event];
+    }
+
+    /**
+     * Gets the room of an event
+     *
+     * @param   event  The event's index
+     * @return         The event's interned room
+     */
+    public int getRoom(final int event)
+    {
+        return this.rooms[event];
+    }
+
+    /**
+     * Gets the comment of an event
+     *
+     * @param   event  The event's index
+     * @return         The event's interned comment
+     */
+    public int getComment(final int event)
+    {
+        return this.comments[event];
+    }
+    
+}
@@ -0,0 +1,489 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Non-interactive export of colourised schedules, as ANSI escape sequences,
+ * HTML or plain text, without a terminal. Files are parsed and colourised in
+ * parallel, and written either to standard output, in the order they were
+ * given, or to one file each in an output directory.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class Exporter
+{
+    /**
+     * Constructor
+     *
+     * @param  format  The {@code FORMAT_*} format
+     * @param  today   Today's date, as {@code yyyymmdd}
+     * @param  year    The current year
+     * @param  week    The current week of the year
+     * @param  rules   Colour rules that override the rules from each file's legend, {@code null} for none
+     * @param  pool    The pool files and lines are processed in
+     */
+    public Exporter(final int format, final int today, final int year, final int week, final ColourRules rules,
+                    final ForkJoinPool pool)
+    {
+        this.format = format;
+        this.rules = rules;
+        this.today = today;
+        this.year = year;
+        this.week = week;
+        this.pool = pool;
+    }
+
+
+
+    /**
+     * Format: text with ANSI escape sequences, as displayed in the terminal
+     */
+    public static final int FORMAT_ANSI = 0;
+
+    /**
+     * Format: an HTML document
+     */
+    public static final int FORMAT_HTML = 1;
+
+    /**
+     * Format: text without colours
+     */
+    public static final int FORMAT_PLAIN = 2;
+
+    /**
+     * The names of the formats, as given on the command line
+     */
+    private static final String[] FORMAT_NAMES = { "ansi", "html", "plain" };
+
+    /**
+     * The file name extensions of the formats
+     */
+    private static final String[] FORMAT_EXTENSIONS = { ".ansi", ".html", ".txt" };
+
+    /**
+     * The colours of the HTML document, in SGR colour order
+     */
+    private static final String[] HTML_COLOURS = { "#000", "#c00", "#0a0", "#c80", "#00c", "#c0c", "#0aa", "#ccc" };
+
+    /**
+     * The default foreground colour of the HTML document
+     */
+    private static final String HTML_FOREGROUND = "#ccc";
+
+    /**
+     * The default background colour of the HTML document
+     */
+    private static final String HTML_BACKGROUND = "#000";
+
+
+
+    /**
+     * The {@code FORMAT_*} format
+     */
+    private final int format;
+
+    /**
+     * Today's date, as {@code yyyymmdd}
+     */
+    private final int today;
+
+    /**
+     * The current year
+     */
+    private final int year;
+
+    /**
+     * The current week of the year
+     */
+    private final int week;
+
+    /**
+     * Colour rules that override the rules from each file's legend, {@code null} for none
+     */
+    private final ColourRules rules;
+
+    /**
+     * The pool files and lines are processed in
+     */
+    private final ForkJoinPool pool;
+
+
+
+    /**
+     * Runs an export from the command line
+     * <p>
+     * The arguments are {@code [--format ansi|html|plain] [--output DIRECTORY] [--colours RULES] FILE...},
+     * without an output directory the files are written to standard output
+     *
+     * @param   args         The arguments after {@code --export}
+     * @param   today        Today's date, as {@code yyyymmdd}
+     * @param   year         The current year
+     * @param   week         The current week of the year
+     * @return               The exit value, zero on success
+     * @throws  IOException  On I/O error
+     */
+    public static int run(final String[] args, final int today, final int year, final int week) throws IOException
+    {
+        int format = FORMAT_ANSI;
+        File output = null;
+        ColourRules rules = null;
+        final ArrayList<File> files = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++)
+            if (args[i].equals("--format") && (i + 1 < args.length))
+            {
+                format = getFormat(args[++i]);
+                if (format < 0)
+                {
+                    System.err.println("mastertimekeeper: unknown format: " + args[i]);
+                    return 2;
+                }
+            }
+            else if (args[i].equals("--output") && (i + 1 < args.length))
+                output = new File(args[++i]);
+            else if (args[i].equals("--colours") && (i + 1 < args.length))
+                try
+                {
+                    rules = ColourRules.load(new File(args[++i]));
+                }
+                catch (final IOException err)
+                {
+                    System.err.println("mastertimekeeper: " + err.getMessage());
+                    return 2;
+                }
+            else if (args[i].startsWith("--") && (args[i].equals("--") == false))
+            {
+                System.err.println("mastertimekeeper: unrecognised option: " + args[i]);
+                return 2;
+            }
+            else
+                files.add(new File(args[args[i].equals("--") ? ++i : i]));
+        if (files.isEmpty())
+        {
+            System.err.println("usage: mastertimekeeper --export [--format ansi|html|plain] [--output DIRECTORY] [--colours RULES] FILE...");
+            return 2;
+        }
+
+        final Exporter exporter = new Exporter(format, today, year, week, rules, new ForkJoinPool());
+        if (output == null)
+            try
+            {
+                exporter.export(files, new FileOutputStream(FileDescriptor.out).getChannel());
+            }
+            catch (final FileNotFoundException err)
+            {
+                System.err.println("mastertimekeeper: " + err.getMessage());
+                return 2;
+            }
+        else
+        {
+            final HashSet<String> names = new HashSet<String>();
+            for (final File file : files)
+                if (names.add(file.getName()) == false)
+                {
+                    System.err.println("mastertimekeeper: more than one input named " + file.getName());
+                    return 2;
+                }
+            if ((output.isDirectory() == false) && (output.mkdirs() == false))
+                throw new IOException("Cannot create directory: " + output);
+            try
+            {
+                exporter.export(files, output);
+            }
+            catch (final FileNotFoundException err)
+            {
+                System.err.println("mastertimekeeper: " + err.getMessage());
+                return 2;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Looks up a format by its name
+     *
+     * @param   name  The name of the format, as given on the command line
+     * @return        The {@code FORMAT_*} format, -1 if unknown
+     */
+    public static int getFormat(final String name)
+    {
+        return Arrays.asList(FORMAT_NAMES).indexOf(name);
+    }
+
+    /**
+     * Exports files to a channel, in order
+     *
+     * @param   files        The schedule files
+     * @param   out          The channel
+     * @throws  IOException  On I/O error
+     */
+    public void export(final List<File> files, final WritableByteChannel out) throws IOException
+    {
+        final ArrayList<ForkJoinTask<OutputBuffer>> tasks = new ArrayList<ForkJoinTask<OutputBuffer>>();
+        for (final File file : files)
+            tasks.add(this.pool.submit(new Callable<OutputBuffer>()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        @Override
+                        public OutputBuffer call() throws IOException
+                        {
+                            return Exporter.this.render(file);
+                        }
+                    }));
+        for (final ForkJoinTask<OutputBuffer> task : tasks)
+            Program.join(task).writeTo(out);
+    }
+
+    /**
+     * Exports files to a directory, each to a file with the same name and the format's extension
+     *
+     * @param   files        The schedule files
+     * @param   directory    The directory
+     * @throws  IOException  On I/O error
+     */
+    public void export(final List<File> files, final File directory) throws IOException
+    {
+        final ArrayList<ForkJoinTask<OutputBuffer>> tasks = new ArrayList<ForkJoinTask<OutputBuffer>>();
+        for (final File file : files)
+            tasks.add(this.pool.submit(new Callable<OutputBuffer>()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        @Override
+                        public OutputBuffer call() throws IOException
+                        {
+                            final OutputBuffer buf = Exporter.this.render(file);
+                            final File target = new File(directory, file.getName() + FORMAT_EXTENSIONS[Exporter.this.format]);
+                            try (FileOutputStream out = new FileOutputStream(target))
+                            {
+                                buf.writeTo(out.getChannel());
+                            }
+                            return buf;
+                        }
+                    }));
+        for (final ForkJoinTask<OutputBuffer> task : tasks)
+            Program.join(task);
+    }
+
+    /**
+     * Parses, colourises and formats a file
+     *
+     * @param   file         The schedule file
+     * @return               The formatted file
+     * @throws  IOException  On I/O error
+     */
+    public OutputBuffer render(final File file) throws IOException
+    {
+        final ScheduleFile schedule = new ScheduleFile(file);
+        final EventStore events = new EventStore(new StringPool());
+        final BlockMap blocks = new BlockMap();
+        ScheduleCache.parse(schedule, events, null, null, blocks);
+        final ColourRules rules = ColourRules.fromLegend(schedule, blocks);
+        rules.override(this.rules);
+        final Colouriser colouriser = new Colouriser(schedule, events, ClashDetector.detect(events), blocks,
+                                                     rules, this.today, this.year, this.week);
+        final String[] lines = colouriser.colourise(0, schedule.getLineCount(), this.pool);
+        return this.format(file.getName(), lines, (int)(schedule.file.length() * 2));
+    }
+
+    /**
+     * Formats colourised lines
+     *
+     * @param   title     The title of the document, used by HTML
+     * @param   lines     The colourised lines
+     * @param   capacity  The expected size of the output
+     * @return            The formatted lines
+     */
+    public OutputBuffer format(final String title, final String[] lines, final int capacity)
+    {
+        final OutputBuffer buf = new OutputBuffer(Math.max(capacity, 1 << 12));
+        if (this.format == FORMAT_HTML)
+        {
+            buf.append("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\">\n<title>");
+            appendEscaped(buf, title);
+            buf.append("</title>\n<style>\nbody { background: " + HTML_BACKGROUND + "; color: " + HTML_FOREGROUND + "; }\n");
+            buf.append(".l { display: block; }\n.b { font-weight: bold; }\n.d { opacity: 0.6; }\n");
+            for (int i = 0; i < 8; i++)
+                buf.append(".f" + i + " { color: " + HTML_COLOURS[i] + "; }\n.g" + i + " { background: " + HTML_COLOURS[i] + "; }\n");
+            buf.append(".fr { color: " + HTML_BACKGROUND + "; }\n.gr { background: " + HTML_FOREGROUND + "; }\n");
+            buf.append("</style>\n</head>\n<body>\n<pre>\n");
+            for (final String line : lines)
+                appendHTML(buf, line);
+            buf.append("</pre>\n</body>\n</html>\n");
+        }
+        else if (this.format == FORMAT_PLAIN)
+            for (final String line : lines)
+                appendPlain(buf, line);
+        else
+            for (final String line : lines)
+                buf.append(line);
+        return buf;
+    }
+
+
+    /**
+     * Appends a colourised line without its escape sequences
+     *
+     * @param  buf   The output buffer
+     * @param  line  The colourised line
+     */
+    private static void appendPlain(final OutputBuffer buf, final String line)
+    {
+        for (int i = 0, n = line.length(); i < n;)
+        {
+            final int cp = line.codePointAt(i);
+            if (cp == '\033')
+                i = Program.escapeEnd(line, i);
+            else
+            {
+                buf.appendCodePoint(cp);
+                i += Character.charCount(cp);
+            }
+        }
+    }
+
+    /**
+     * Appends a colourised line as HTML, with a span for each run of characters with the same attributes
+     *
+     * @param  buf   The output buffer
+     * @param  line  The colourised line
+     */
+    private static void appendHTML(final OutputBuffer buf, final String line)
+    {
+        int attr = 0, open = 0, base = 0;
+        boolean fill = false, printed = false;
+        for (int i = 0, n = line.length(); i < n;)
+        {
+            final int cp = line.codePointAt(i);
+            if (cp == '\033')
+            {
+                final int end = Program.escapeEnd(line, i);
+                if ((end - i > 2) && (line.charAt(end - 1) == 'm'))
+                    attr = Screen.applySGR(attr, line, i + 2, end - 1);
+                else if (line.startsWith("\033[2K", i) && (printed == false) && (fill == false))
+                {
+                    /* An erased line takes the background of the whole line */
+                    fill = true;
+                    buf.append("<span class=\"l");
+                    appendClasses(buf, attr, true);
+                    buf.append("\">");
+                    open = base = attr;
+                }
+                i = end;
+                continue;
+            }
+            i += Character.charCount(cp);
+            if (cp == '\n')
+                continue;
+            if (attr != open)
+            {
+                if (open != base)
+                    buf.append("</span>");
+                if (attr != base)
+                {
+                    buf.append("<span class=\"");
+                    appendClasses(buf, attr, false);
+                    buf.append("\">");
+                }
+                open = attr;
+            }
+            appendEscaped(buf, cp);
+            printed = true;
+        }
+        if (open != base)
+            buf.append("</span>");
+        if (fill)
+            buf.append("</span>");
+        else
+            buf.append('\n');
+    }
+
+    /**
+     * Appends the HTML classes of an attribute, separated by spaces
+     *
+     * @param  buf    The output buffer
+     * @param  attr   The attribute, as used by {@link Screen}
+     * @param  space  Whether a class has already been appended, so that the first class needs a space
+     */
+    private static void appendClasses(final OutputBuffer buf, final int attr, final boolean space)
+    {
+        int fg = (attr & Screen.FOREGROUND) - 1, bg = ((attr & Screen.BACKGROUND) >> 4) - 1;
+        if ((attr & Screen.REVERSE) != 0)
+        {
+            final int swap = fg;
+            fg = bg;
+            bg = swap;
+        }
+        final StringBuilder classes = new StringBuilder();
+        if ((attr & Screen.BOLD) != 0)
+            classes.append(" b");
+        if ((attr & Screen.DIM) != 0)
+            classes.append(" d");
+        if (fg >= 0)
+            classes.append(" f").append(fg);
+        else if ((attr & Screen.REVERSE) != 0)
+            classes.append(" fr");
+        if (bg >= 0)
+            classes.append(" g").append(bg);
+        else if ((attr & Screen.REVERSE) != 0)
+            classes.append(" gr");
+        buf.append(classes.substring(space ? 0 : Math.min(1, classes.length())));
+    }
+
+    /**
+     * Appends text escaped for HTML
+     *
+     * @param  buf   The output buffer
+     * @param  text  The text
+     */
+    private static void appendEscaped(final OutputBuffer buf, final String text)
+    {
+        for (int i = 0, n = text.length(); i < n;)
+        {
+            final int cp = text.codePointAt(i);
+            appendEscaped(buf, cp);
+            i += Character.charCount(cp);
+        }
+    }
+
+    /**
+     * Appends a character escaped for HTML
+     *
+     * @param  buf  The output buffer
+     * @param  cp   The character's code point
+     */
+    private static void appendEscaped(final OutputBuffer buf, final int cp)
+    {
+        if (cp == '&')       buf.append("&amp;");
+        else if (cp == '<')  buf.append("&lt;");
+        else if (cp == '>')  buf.append("&gt;");
+        else if (cp == '"')  buf.append("&quot;");
+        else
+            buf.appendCodePoint(cp);
+    }
+    
+}
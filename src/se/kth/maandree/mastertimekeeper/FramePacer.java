@@ -0,0 +1,114 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+
+/**
+ * Paces a render thread: frames are requested by other threads, and the render
+ * thread waits for a request, but never starts frames more often than a set
+ * rate. Requests made while a frame is waiting or being drawn are merged, so
+ * the render thread only ever draws the latest state.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class FramePacer
+{
+    /**
+     * Constructor
+     *
+     * @param  framesPerSecond  The maximum number of frames per second
+     */
+    public FramePacer(final int framesPerSecond)
+    {
+        this.interval = 1000000000L / framesPerSecond;
+    }
+
+
+
+    /**
+     * The minimum time between the start of two frames, in nanoseconds
+     */
+    private final long interval;
+
+    /**
+     * Whether a frame has been requested since the last frame started
+     */
+    private boolean requested = false;
+
+    /**
+     * Whether the render thread should stop
+     */
+    private boolean stopped = false;
+
+    /**
+     * When the last frame started, in {@link System#nanoTime()}
+     */
+    private long lastFrame = 0;
+
+    /**
+     * Whether a frame has been started
+     */
+    private boolean started = false;
+
+
+
+    /**
+     * Requests a frame
+     *
+     * @return  {@code true} if the request was merged with an earlier request that has not been drawn
+     */
+    public synchronized boolean request()
+    {
+        final boolean merged = this.requested;
+        this.requested = true;
+        this.notifyAll();
+        return merged;
+    }
+
+    /**
+     * Makes {@link #await()} return {@code false}
+     */
+    public synchronized void stop()
+    {
+        this.stopped = true;
+        this.notifyAll();
+    }
+
+    /**
+     * Waits until a frame has been requested and the frame interval has passed
+     *
+     * @return                        {@code true} if a frame should be drawn, {@code false} if stopped
+     * @throws  InterruptedException  If interrupted while waiting
+     */
+    public synchronized boolean await() throws InterruptedException
+    {
+        while ((this.requested == false) && (this.stopped == false))
+            this.wait();
+        if (this.started)
+            for (long left; (this.stopped == false) && ((left = this.lastFrame + this.interval - System.nanoTime()) > 0);)
+                this.wait(left / 1000000L, (int)(left % 1000000L));
+        if (this.stopped)
+            return false;
+        this.requested = false;
+        this.started = true;
+        this.lastFrame = System.nanoTime();
+        return true;
+    }
+    
+}
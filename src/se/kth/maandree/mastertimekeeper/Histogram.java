@@ -0,0 +1,222 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+
+
+/**
+ * Histogram of non-negative values with logarithmic buckets, each power of two
+ * is split into four buckets, so the relative error is at most 25 %, and values
+ * below eight are counted exactly
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class Histogram
+{
+    /**
+     * Constructor
+     *
+     * @param  name  The name of the histogram
+     * @param  time  Whether the values are nanoseconds, otherwise they are bytes
+     */
+    public Histogram(final String name, final boolean time)
+    {
+        this.name = name;
+        this.time = time;
+    }
+
+
+
+    /**
+     * The number of buckets each power of two is split into, as a power of two
+     */
+    private static final int SUB_BITS = 2;
+
+    /**
+     * The number of values that have their own bucket
+     */
+    private static final int EXACT = 1 << (SUB_BITS + 1);
+
+    /**
+     * The number of buckets, enough for every non-negative {@code long}
+     */
+    private static final int BUCKETS = EXACT + ((64 - SUB_BITS - 2) << SUB_BITS);
+
+    /**
+     * The width of the bars in {@link #print(PrintStream)}
+     */
+    private static final int BAR_WIDTH = 40;
+
+
+
+    /**
+     * The name of the histogram
+     */
+    private final String name;
+
+    /**
+     * Whether the values are nanoseconds, otherwise they are bytes
+     */
+    private final boolean time;
+
+    /**
+     * The number of recorded values in each bucket
+     */
+    private final long[] buckets = new long[BUCKETS];
+
+    /**
+     * The number of recorded values
+     */
+    private long count = 0;
+
+    /**
+     * The greatest recorded value
+     */
+    private long max = 0;
+
+
+
+    /**
+     * Records a value
+     *
+     * @param  value  The value, negative values are recorded as zero
+     */
+    public synchronized void record(final long value)
+    {
+        final long v = Math.max(value, 0);
+        this.buckets[index(v)]++;
+        this.count++;
+        if (v > this.max)
+            this.max = v;
+    }
+
+    /**
+     * Gets the number of recorded values
+     *
+     * @return  The number of recorded values
+     */
+    public synchronized long getCount()
+    {
+        return this.count;
+    }
+
+    /**
+     * Gets an upper bound of a percentile of the recorded values
+     *
+     * @param   percentile  The percentile, between 0 and 100
+     * @return              The upper bound of the bucket the percentile falls in, 0 if nothing is recorded
+     */
+    public synchronized long percentile(final double percentile)
+    {
+        final long rank = Math.max((long)Math.ceil(this.count * percentile / 100), 1);
+        long seen = 0;
+        for (int i = 0; i < this.buckets.length; i++)
+            if ((seen += this.buckets[i]) >= rank)
+                return Math.min(upper(i), this.max);
+        return 0;
+    }
+
+    /**
+     * Formats a value in the unit of the histogram
+     *
+     * @param   value  The value
+     * @return         The value formatted
+     */
+    public String format(final long value)
+    {
+        if (this.time)
+            if (value < 1000L)              return value + "ns";
+            else if (value < 1000000L)      return String.format("%.1fµs", Double.valueOf(value / 1e3));
+            else if (value < 1000000000L)   return String.format("%.1fms", Double.valueOf(value / 1e6));
+            else                            return String.format("%.2fs",  Double.valueOf(value / 1e9));
+        if (value < 1024L)                  return value + "B";
+        else if (value < 1024L * 1024L)     return String.format("%.1fkB", Double.valueOf(value / 1024.));
+        else                                return String.format("%.1fMB", Double.valueOf(value / (1024. * 1024.)));
+    }
+
+    /**
+     * Prints a summary line followed by one line per non-empty bucket
+     *
+     * @param  out  The stream to print to
+     */
+    public synchronized void print(final PrintStream out)
+    {
+        out.println(String.format("%s: n=%d  p50=%s  p90=%s  p99=%s  max=%s", this.name, Long.valueOf(this.count),
+                                  this.format(this.percentile(50)), this.format(this.percentile(90)),
+                                  this.format(this.percentile(99)), this.format(this.max)));
+        long most = 0;
+        for (final long n : this.buckets)
+            most = Math.max(most, n);
+        for (int i = 0; i < this.buckets.length; i++)
+            if (this.buckets[i] > 0)
+            {
+                final StringBuilder bar = new StringBuilder();
+                for (long j = 0, n = Math.max(this.buckets[i] * BAR_WIDTH / most, 1); j < n; j++)
+                    bar.append('#');
+                out.println(String.format("  %10s – %-10s %8d  %s", this.format(lower(i)), this.format(upper(i)),
+                                          Long.valueOf(this.buckets[i]), bar));
+            }
+    }
+
+
+    /**
+     * Gets the bucket a value is counted in
+     *
+     * @param   value  The value, non-negative
+     * @return         The index of the bucket
+     */
+    private static int index(final long value)
+    {
+        if (value < EXACT)
+            return (int)value;
+        final int octave = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int)(value >>> (octave - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        return EXACT + ((octave - SUB_BITS - 1) << SUB_BITS) + sub;
+    }
+
+    /**
+     * Gets the least value counted in a bucket
+     *
+     * @param   index  The index of the bucket
+     * @return         The least value of the bucket
+     */
+    private static long lower(final int index)
+    {
+        if (index < EXACT)
+            return index;
+        final int octave = ((index - EXACT) >> SUB_BITS) + SUB_BITS + 1;
+        final int sub = (index - EXACT) & ((1 << SUB_BITS) - 1);
+        return (long)((1 << SUB_BITS) + sub) << (octave - SUB_BITS);
+    }
+
+    /**
+     * Gets the greatest value counted in a bucket
+     *
+     * @param   index  The index of the bucket
+     * @return         The greatest value of the bucket
+     */
+    private static long upper(final int index)
+    {
+        if (index + 1 < EXACT)
+            return index;
+        return index + 1 < BUCKETS ? lower(index + 1) - 1 : Long.MAX_VALUE;
+    }
+    
+}
@@ -0,0 +1,655 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Streaming conversion between the schedule format and iCalendar (RFC 5545)
+ * <p>
+ * Both directions read one line at a time and keep no more than the current
+ * event in memory. Events are exported as {@code VEVENT}s with floating local
+ * times; the attendance marker is kept as the event's category, a cancelled
+ * type as {@code STATUS:CANCELLED}, and the type and course columns as
+ * {@code X-MASTERTIMEKEEPER-*} properties so that they survive a round trip.
+ * Calendars from elsewhere are imported with the summary as the type.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class ICalendar
+{
+    /**
+     * Hidden constructor
+     */
+    private ICalendar()
+    {
+        //Nullify default constructor
+    }
+
+
+
+    /**
+     * The product identifier of exported calendars
+     */
+    private static final String PRODID = "-//maandree//Master Time Keeper//EN";
+
+    /**
+     * Property for the type column
+     */
+    private static final String X_TYPE = "X-MASTERTIMEKEEPER-TYPE";
+
+    /**
+     * Property for the course column
+     */
+    private static final String X_COURSE = "X-MASTERTIMEKEEPER-COURSE";
+
+    /**
+     * Property for the type marker
+     */
+    private static final String X_TYPE_MARKER = "X-MASTERTIMEKEEPER-TYPE-MARKER";
+
+    /**
+     * Property for the character between the start and end times, when it is not '-'
+     */
+    private static final String X_TIME_SEPARATOR = "X-MASTERTIMEKEEPER-TIME-SEPARATOR";
+
+    /**
+     * The attendance markers
+     */
+    private static final String MARKERS = "!*~^-+/?&#>";
+
+    /**
+     * The weekdays, as written in the schedule, from Monday
+     */
+    private static final String[] WEEKDAYS = { "Mån", "Tis", "Ons", "Tor", "Fre", "Lör", "Sön" };
+
+    /**
+     * The months, as written in the schedule
+     */
+    private static final String[] MONTHS = { "jan", "feb", "mar", "apr", "maj", "jun", "jul", "aug", "sep", "okt", "nov", "dec" };
+
+    /**
+     * The legend written at the top of imported schedules
+     */
+    private static final String[] LEGEND = {
+            "! framför tid: har lovat att gå på",
+            "* framför tid: vet inte om jag ska gå på, på grund av krock",
+            "~ framför tid: ska inte gå på, på grund av krock",
+            "^ framför tid: ska gå på, men inte på de krockande",
+            "- framför tid: kan inte gå på",
+            "+ framför tid: har lovat att gå på annans",
+            "/ framför tid: går inte på",
+            "? framför tid: föreslaget",
+            "& framför tid: bara jag",
+            "# framför tid: inte jag       (sätt typ till #)",
+            "> framför tid: missad",
+            "",
+            "- framför typ: inställd",
+            "",
+            "# som första tecknet:  kommentar" };
+
+    /**
+     * The maximum length of a content line, in octets, excluding the line break
+     */
+    private static final int FOLD = 75;
+
+
+
+    /**
+     * Converts from the command line, writing to standard output
+     * <p>
+     * The arguments are {@code --ics-export SCHEDULE} or {@code --ics-import CALENDAR},
+     * where {@code -} is standard input
+     *
+     * @param   args         The arguments
+     * @return               The exit value, zero on success
+     * @throws  IOException  On I/O error
+     */
+    public static int run(final String[] args) throws IOException
+    {
+        if ((args.length != 2) || ((args[0].equals("--ics-export") || args[0].equals("--ics-import")) == false))
+        {
+            System.err.println("usage: mastertimekeeper (--ics-export SCHEDULE | --ics-import CALENDAR)");
+            return 2;
+        }
+        final InputStream is = args[1].equals("-") ? System.in : new FileInputStream(args[1]);
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+             Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), "UTF-8")))
+        {
+            if (args[0].equals("--ics-export"))
+                exportCalendar(in, out);
+            else
+                importCalendar(in, out);
+        }
+        return 0;
+    }
+
+    /**
+     * Converts a schedule to an iCalendar
+     *
+     * @param   in           The schedule
+     * @param   out          Output for the iCalendar
+     * @return               The number of exported events
+     * @throws  IOException  On I/O error
+     */
+    public static int exportCalendar(final BufferedReader in, final Writer out) throws IOException
+    {
+        final Calendar now = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        final String stamp = String.format("%04d%02d%02dT%02d%02d%02dZ", Integer.valueOf(now.get(Calendar.YEAR)),
+                                           Integer.valueOf(now.get(Calendar.MONTH) + 1), Integer.valueOf(now.get(Calendar.DAY_OF_MONTH)),
+                                           Integer.valueOf(now.get(Calendar.HOUR_OF_DAY)), Integer.valueOf(now.get(Calendar.MINUTE)),
+                                           Integer.valueOf(now.get(Calendar.SECOND)));
+        writeProperty(out, "BEGIN", "VCALENDAR");
+        writeProperty(out, "VERSION", "2.0");
+        writeProperty(out, "PRODID", PRODID);
+
+        int section = ScheduleParser.SECTION_HEAD, week = -1, weekYear = -1, date = 0, sequence = 0, count = 0;
+        for (String line; (line = in.readLine()) != null;)
+        {
+            line = ScheduleParser.expandTabs(line);
+            if (line.startsWith("--- "))
+            {
+                if (line.startsWith("--- Legend ---"))
+                    section = ScheduleParser.SECTION_LEGEND;
+                else if (section == ScheduleParser.SECTION_LEGEND)
+                    section = ScheduleParser.SECTION_SCHEDULE;
+                continue;
+            }
+            if ((section < ScheduleParser.SECTION_SCHEDULE) || line.startsWith(">>") || line.startsWith("#"))
+                continue;
+            if (line.startsWith("::"))
+            {
+                final int comma = line.indexOf(',');
+                week = comma < 0 ? -1 : ScheduleParser.parseNumber(line, line.lastIndexOf(' ', comma) + 1, comma);
+                weekYear = comma < 0 ? -1 : ScheduleParser.parseNumber(line, comma + 1, line.length());
+                date = 0;
+                continue;
+            }
+            if (line.length() <= ScheduleParser.ROOM_COLUMN)
+                continue;
+
+            final int newDate = ScheduleParser.parseDate(line, weekYear, week);
+            if (newDate > 0)
+            {
+                if (newDate != date)
+                    sequence = 0;
+                date = newDate;
+            }
+            if (date <= 0)
+                continue;
+
+            final int roomEnd = ScheduleParser.roomEnd(line);
+            final char attendance = line.charAt(16), typeMarker = line.charAt(29);
+            final String type    = line.substring(30, 43).trim();
+            final String course  = line.substring(43, ScheduleParser.ROOM_COLUMN).trim();
+            final String room    = line.substring(ScheduleParser.ROOM_COLUMN, roomEnd).trim();
+            final String comment = line.substring(roomEnd).trim();
+            final int start = ScheduleParser.parseTime(line, 17), end = ScheduleParser.parseTime(line, 23);
+
+            writeProperty(out, "BEGIN", "VEVENT");
+            writeProperty(out, "UID", date + "-" + ++sequence + "@mastertimekeeper");
+            writeProperty(out, "DTSTAMP", stamp);
+            if (start < 0)
+                writeProperty(out, "DTSTART;VALUE=DATE", String.valueOf(date));
+            else
+            {
+                writeProperty(out, "DTSTART", formatDateTime(date, start));
+                if (end >= 0)
+                    writeProperty(out, "DTEND", formatDateTime(date, end));
+            }
+            writeProperty(out, "SUMMARY", escape(course.isEmpty() ? type : type.isEmpty() ? course : (type + " " + course)));
+            if (room.isEmpty() == false)
+                writeProperty(out, "LOCATION", escape(room));
+            if (comment.isEmpty() == false)
+                writeProperty(out, "DESCRIPTION", escape(comment));
+            if (attendance != ' ')
+                writeProperty(out, "CATEGORIES", escape(String.valueOf(attendance)));
+            if (typeMarker == '-')
+                writeProperty(out, "STATUS", "CANCELLED");
+            else if (typeMarker != ' ')
+                writeProperty(out, X_TYPE_MARKER, escape(String.valueOf(typeMarker)));
+            if ((start >= 0) && (line.charAt(22) != '-'))
+                writeProperty(out, X_TIME_SEPARATOR, escape(String.valueOf(line.charAt(22))));
+            writeProperty(out, X_TYPE, escape(type));
+            writeProperty(out, X_COURSE, escape(course));
+            writeProperty(out, "END", "VEVENT");
+            count++;
+        }
+
+        writeProperty(out, "END", "VCALENDAR");
+        return count;
+    }
+
+    /**
+     * Converts an iCalendar to a schedule
+     * <p>
+     * Events are written in the order they appear, with a week header whenever the week
+     * changes, so a calendar that is not sorted is converted to a valid but fragmented schedule
+     *
+     * @param   in           The iCalendar
+     * @param   out          Output for the schedule
+     * @return               The number of imported events
+     * @throws  IOException  On I/O error
+     */
+    public static int importCalendar(final BufferedReader in, final Writer out) throws IOException
+    {
+        final ImportState state = new ImportState(out);
+        String pending = null;
+        for (String line; (line = in.readLine()) != null;)
+            if (line.startsWith(" ") || line.startsWith("\t"))
+                pending = pending == null ? line.substring(1) : (pending + line.substring(1));
+            else
+            {
+                if (pending != null)
+                    state.property(pending);
+                pending = line;
+            }
+        if (pending != null)
+            state.property(pending);
+        return state.count;
+    }
+
+
+    /**
+     * Formats a date and time as an iCalendar floating local time
+     *
+     * @param   date  The date, as {@code yyyymmdd}
+     * @param   time  The time, in minutes after midnight
+     * @return        The date and time as {@code yyyymmddThhmm00}
+     */
+    private static String formatDateTime(final int date, final int time)
+    {
+        return String.format("%08dT%02d%02d00", Integer.valueOf(date), Integer.valueOf(time / 60), Integer.valueOf(time % 60));
+    }
+
+    /**
+     * Escapes a text value
+     *
+     * @param   text  The text
+     * @return        The text escaped
+     */
+    private static String escape(final String text)
+    {
+        final StringBuilder rc = new StringBuilder(text.length());
+        for (int i = 0, n = text.length(); i < n; i++)
+        {
+            final char c = text.charAt(i);
+            if ((c == '\\') || (c == ';') || (c == ','))
+                rc.append('\\');
+            if (c == '\n')
+                rc.append("\\n");
+            else
+                rc.append(c);
+        }
+        return rc.toString();
+    }
+
+    /**
+     * Unescapes a text value
+     *
+     * @param   text  The escaped text
+     * @return        The text
+     */
+    private static String unescape(final String text)
+    {
+        final StringBuilder rc = new StringBuilder(text.length());
+        for (int i = 0, n = text.length(); i < n; i++)
+        {
+            char c = text.charAt(i);
+            if ((c == '\\') && (i + 1 < n))
+                rc.append((c = text.charAt(++i)) == 'n' || (c == 'N') ? '\n' : c);
+            else
+                rc.append(c);
+        }
+        return rc.toString();
+    }
+
+    /**
+     * Writes a content line, folded so that no line is longer than 75 octets
+     *
+     * @param   out          Output for the iCalendar
+     * @param   name         The property's name and parameters
+     * @param   value        The property's value, escaped
+     * @throws  IOException  On I/O error
+     */
+    private static void writeProperty(final Writer out, final String name, final String value) throws IOException
+    {
+        final String line = name + ":" + value;
+        int octets = 0;
+        for (int i = 0, n = line.length(); i < n;)
+        {
+            final int cp = line.codePointAt(i);
+            final int size = cp < 0x80 ? 1 : cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+            if (octets + size > FOLD)
+            {
+                out.write("\r\n ");
+                octets = 1;
+            }
+            out.write(line, i, Character.charCount(cp));
+            octets += size;
+            i += Character.charCount(cp);
+        }
+        out.write("\r\n");
+    }
+
+    /**
+     * Pads or truncates text to a column
+     *
+     * @param   out          Output for the schedule
+     * @param   text         The text
+     * @param   width        The width of the column
+     * @throws  IOException  On I/O error
+     */
+    private static void writeColumn(final Writer out, final String text, final int width) throws IOException
+    {
+        final String value = text.length() <= width ? text : text.substring(0, width);
+        out.write(value);
+        for (int i = value.length(); i < width; i++)
+            out.write(' ');
+    }
+
+
+
+    /**
+     * The state of an import: the event being read and where the last event was written
+     */
+    private static class ImportState
+    {
+        /**
+         * Constructor
+         *
+         * @param  out  Output for the schedule
+         */
+        ImportState(final Writer out)
+        {
+            this.out = out;
+            this.calendar.setFirstDayOfWeek(Calendar.MONDAY);
+            this.calendar.setMinimalDaysInFirstWeek(4);
+        }
+
+        /**
+         * Output for the schedule
+         */
+        private final Writer out;
+
+        /**
+         * Calendar for computing weeks and weekdays
+         */
+        private final GregorianCalendar calendar = new GregorianCalendar();
+
+        /**
+         * The number of imported events
+         */
+        int count = 0;
+
+        /**
+         * The name of the calendar, {@code null} if not named
+         */
+        private String name = null;
+
+        /**
+         * Whether the legend has been written
+         */
+        private boolean started = false;
+
+        /**
+         * The properties of the event being read, {@code null} when not in an event
+         */
+        private HashMap<String, String> event = null;
+
+        /**
+         * The nesting depth of components inside the event, such as alarms
+         */
+        private int nested = 0;
+
+        /**
+         * The week of the last written event, as {@code yyyyww}
+         */
+        private int lastWeek = -1;
+
+        /**
+         * The date of the last written event, as {@code yyyymmdd}
+         */
+        private int lastDate = -1;
+
+        /**
+         * Handles an unfolded content line
+         *
+         * @param   line         The content line
+         * @throws  IOException  On I/O error
+         */
+        void property(final String line) throws IOException
+        {
+            final int colon = findColon(line);
+            if (colon < 0)
+                return;
+            final String head = line.substring(0, colon), value = line.substring(colon + 1);
+            final int semicolon = head.indexOf(';');
+            final String name = (semicolon < 0 ? head : head.substring(0, semicolon)).toUpperCase(Locale.ROOT);
+            final String params = semicolon < 0 ? "" : head.substring(semicolon).toUpperCase(Locale.ROOT);
+
+            if (this.event == null)
+            {
+                if (name.equals("BEGIN") && value.equalsIgnoreCase("VEVENT"))
+                    this.event = new HashMap<String, String>();
+                else if (name.equals("X-WR-CALNAME"))
+                    this.name = unescape(value);
+            }
+            else if (name.equals("BEGIN"))
+                this.nested++;
+            else if (name.equals("END") && (this.nested > 0))
+                this.nested--;
+            else if (name.equals("END"))
+            {
+                this.write(this.event);
+                this.event = null;
+            }
+            else if ((this.nested == 0) && (this.event.containsKey(name) == false))
+                this.event.put(name, params.contains("VALUE=DATE") && (params.contains("VALUE=DATE-TIME") == false) ? ("D" + value) : value);
+        }
+
+        /**
+         * Finds the colon that separates a property's name and parameters from its value
+         *
+         * @param   line  The content line
+         * @return        The position of the colon, -1 if none
+         */
+        private static int findColon(final String line)
+        {
+            boolean quoted = false;
+            for (int i = 0, n = line.length(); i < n; i++)
+                if (line.charAt(i) == '"')
+                    quoted = !quoted;
+                else if ((line.charAt(i) == ':') && (quoted == false))
+                    return i;
+            return -1;
+        }
+
+        /**
+         * Parses a date or date-time value into {@link #calendar}
+         *
+         * @param   value  The value, prefixed with 'D' if it is a date
+         * @return         Whether the value has a time of day, {@code null} if it could not be parsed
+         */
+        private Boolean parseDateTime(final String value)
+        {
+            final boolean dateOnly = value.startsWith("D");
+            final String v = dateOnly ? value.substring(1) : value;
+            if ((v.length() < 8) || ((v.length() > 8) && ((v.length() < 15) || (v.charAt(8) != 'T'))))
+                return null;
+            try
+            {
+                this.calendar.clear();
+                this.calendar.setTimeZone(TimeZone.getTimeZone(v.endsWith("Z") ? "UTC" : TimeZone.getDefault().getID()));
+                this.calendar.set(Integer.parseInt(v.substring(0, 4)), Integer.parseInt(v.substring(4, 6)) - 1,
+                                  Integer.parseInt(v.substring(6, 8)));
+                if (v.length() == 8)
+                    return Boolean.FALSE;
+                this.calendar.set(Calendar.HOUR_OF_DAY, Integer.parseInt(v.substring(9, 11)));
+                this.calendar.set(Calendar.MINUTE, Integer.parseInt(v.substring(11, 13)));
+                this.calendar.set(Calendar.SECOND, Integer.parseInt(v.substring(13, 15)));
+                final long time = this.calendar.getTimeInMillis();
+                this.calendar.setTimeZone(TimeZone.getDefault());
+                this.calendar.setTimeInMillis(time);
+                return Boolean.TRUE;
+            }
+            catch (final NumberFormatException err)
+            {
+                return null;
+            }
+        }
+
+        /**
+         * Gets the date in {@link #calendar}
+         *
+         * @return  The date, as {@code yyyymmdd}
+         */
+        private int getDate()
+        {
+            return this.calendar.get(Calendar.YEAR) * 10000 + (this.calendar.get(Calendar.MONTH) + 1) * 100
+                   + this.calendar.get(Calendar.DAY_OF_MONTH);
+        }
+
+        /**
+         * Gets the time of day in {@link #calendar}
+         *
+         * @return  The time, in minutes after midnight
+         */
+        private int getTime()
+        {
+            return this.calendar.get(Calendar.HOUR_OF_DAY) * 60 + this.calendar.get(Calendar.MINUTE);
+        }
+
+        /**
+         * Parses a duration, on the form {@code PTnHnMnS} or {@code PnW} or {@code PnD}
+         *
+         * @param   value  The value
+         * @return         The duration in minutes, 0 if it could not be parsed
+         */
+        private static int parseDuration(final String value)
+        {
+            int minutes = 0, n = 0;
+            for (int i = 0; i < value.length(); i++)
+            {
+                final char c = value.charAt(i);
+                if (('0' <= c) && (c <= '9'))
+                    n = n * 10 + (c - '0');
+                else
+                {
+                    if (c == 'W')  minutes += n * 7 * 24 * 60;
+                    if (c == 'D')  minutes += n * 24 * 60;
+                    if (c == 'H')  minutes += n * 60;
+                    if (c == 'M')  minutes += n;
+                    n = 0;
+                }
+            }
+            return minutes;
+        }
+
+        /**
+         * Writes an event to the schedule
+         *
+         * @param   event        The event's properties
+         * @throws  IOException  On I/O error
+         */
+        private void write(final HashMap<String, String> event) throws IOException
+        {
+            final String dtstart = event.get("DTSTART");
+            final Boolean timed = dtstart == null ? null : this.parseDateTime(dtstart);
+            if (timed == null)
+                return;
+
+            if (this.started == false)
+            {
+                this.out.write("--- Legend ---\n\n\n");
+                for (final String line : LEGEND)
+                    this.out.write(line + "\n");
+                this.out.write("\n\n--- " + (this.name == null ? "Kalender" : this.name) + " ---\n");
+                this.started = true;
+            }
+
+            final int date = this.getDate();
+            final int week = this.calendar.getWeekYear() * 100 + this.calendar.get(Calendar.WEEK_OF_YEAR);
+            final int weekday = (this.calendar.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+            final int start = this.getTime();
+            int end = -1;
+            final String dtend = event.get("DTEND");
+            if (timed.booleanValue() && (dtend != null) && Boolean.TRUE.equals(this.parseDateTime(dtend)))
+                end = this.getDate() == date ? this.getTime() : 24 * 60;
+            else if (timed.booleanValue() && event.containsKey("DURATION"))
+                end = Math.min(start + parseDuration(event.get("DURATION")), 24 * 60);
+
+            if (week != this.lastWeek)
+                this.out.write(String.format("\n\n::Vecka %02d, %d\n", Integer.valueOf(week % 100), Integer.valueOf(week / 100)));
+            if ((date != this.lastDate) || (week != this.lastWeek))
+                this.out.write(String.format("%s  (%02d)%s-%02d ", WEEKDAYS[weekday], Integer.valueOf(date / 100 % 100),
+                                             MONTHS[date / 100 % 100 - 1], Integer.valueOf(date % 100)));
+            else
+                this.out.write("                ");
+            this.lastWeek = week;
+            this.lastDate = date;
+
+            final String categories = event.containsKey("CATEGORIES") ? unescape(event.get("CATEGORIES")) : "";
+            char attendance = ' ';
+            for (final String category : categories.split(","))
+                if ((category.length() == 1) && (MARKERS.indexOf(category.charAt(0)) >= 0))
+                {
+                    attendance = category.charAt(0);
+                    break;
+                }
+            this.out.write(attendance);
+            final String separator = event.containsKey(X_TIME_SEPARATOR) ? unescape(event.get(X_TIME_SEPARATOR)) : "-";
+            final Integer hour = Integer.valueOf(start / 60), minute = Integer.valueOf(start % 60);
+            final String sep = separator.length() == 1 ? separator : "-";
+            if (timed.booleanValue() && (end < 0))
+                this.out.write(String.format("%02d:%02d%s..:.. ", hour, minute, sep));
+            else if (timed.booleanValue())
+                this.out.write(String.format("%02d:%02d%s%02d:%02d ", hour, minute, sep, Integer.valueOf(end / 60), Integer.valueOf(end % 60)));
+            else
+                this.out.write("            ");
+
+            final String marker = event.get(X_TYPE_MARKER);
+            if ((marker != null) && (unescape(marker).length() == 1))
+                this.out.write(unescape(marker));
+            else
+                this.out.write("CANCELLED".equalsIgnoreCase(event.get("STATUS")) ? '-' : ' ');
+
+            final String summary = event.containsKey("SUMMARY") ? unescape(event.get("SUMMARY")) : "";
+            final String type = event.containsKey(X_TYPE) ? unescape(event.get(X_TYPE)) : summary;
+            final String course = event.containsKey(X_COURSE) ? unescape(event.get(X_COURSE)) : "";
+            String comment = event.containsKey("DESCRIPTION") ? unescape(event.get("DESCRIPTION")) : "";
+            if ((event.containsKey(X_TYPE) == false) && (type.length() > 13))
+                comment = comment.isEmpty() ? summary : (summary + ": " + comment);
+            writeColumn(this.out, type, 13);
+            writeColumn(this.out, course, 10);
+            final String room = event.containsKey("LOCATION") ? unescape(event.get("LOCATION")) : "";
+            this.out.write(room);
+            for (int i = room.length(); i < 18; i++)
+                this.out.write(' ');
+            if ((room.length() >= 18) && (comment.isEmpty() == false))
+                this.out.write(' ');
+            this.out.write(comment.replace('\n', ' ').replace('\r', ' ').trim());
+            this.out.write('\n');
+            this.count++;
+        }
+    }
+    
+}
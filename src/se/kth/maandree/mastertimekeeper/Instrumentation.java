@@ -0,0 +1,198 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+
+
+/**
+ * Latency and throughput instrumentation of the viewer, enabled with {@code --instrument};
+ * nothing is recorded unless enabled, the statistics can be shown in the status bar and
+ * are printed when the viewer exits
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class Instrumentation
+{
+    /**
+     * Hidden constructor
+     */
+    private Instrumentation()
+    {
+        //Nullify default constructor
+    }
+
+
+
+    /**
+     * Time from a keystroke being read to the frame it caused being written
+     */
+    public static final Histogram KEY_TO_PAINT = new Histogram("keystroke to paint", true);
+
+    /**
+     * Bytes written to the terminal per frame
+     */
+    public static final Histogram FRAME_BYTES = new Histogram("bytes per frame", false);
+
+    /**
+     * Time spent querying the terminal size
+     */
+    public static final Histogram TERMINAL_SIZE = new Histogram("terminal size query", true);
+
+    /**
+     * Time spent colourising lines, per colourisation of a line or a range of lines
+     */
+    public static final Histogram COLOURISE = new Histogram("colourisation", true);
+
+
+
+    /**
+     * Whether instrumentation is enabled
+     */
+    private static volatile boolean enabled = false;
+
+    /**
+     * Whether the statistics are shown in the status bar
+     */
+    private static volatile boolean overlay = false;
+
+    /**
+     * The number of requested frames that were merged into another frame,
+     * only written by the input thread
+     */
+    private static volatile long skipped = 0;
+
+
+
+    /**
+     * Enables instrumentation and shows the statistics in the status bar
+     */
+    public static void enable()
+    {
+        enabled = true;
+        overlay = true;
+    }
+
+    /**
+     * Gets whether instrumentation is enabled
+     *
+     * @return  Whether instrumentation is enabled
+     */
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Toggles whether the statistics are shown in the status bar, if instrumentation is enabled
+     */
+    public static void toggleOverlay()
+    {
+        overlay = enabled && (overlay == false);
+    }
+
+    /**
+     * Gets whether the statistics are shown in the status bar
+     *
+     * @return  Whether the statistics are shown in the status bar
+     */
+    public static boolean isOverlayShown()
+    {
+        return overlay;
+    }
+
+    /**
+     * Gets the start time for a measurement
+     *
+     * @return  {@link System#nanoTime()}, or 0 if instrumentation is disabled
+     */
+    public static long start()
+    {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time since a measurement started
+     *
+     * @param  histogram  The histogram to record to
+     * @param  start      The value returned by {@link #start()}, nothing is recorded if 0
+     */
+    public static void stop(final Histogram histogram, final long start)
+    {
+        if (start != 0)
+            histogram.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Records a frame that has been written
+     *
+     * @param  keyTime  The value returned by {@link #start()} when the earliest keystroke shown by the frame was read,
+     *                  0 if the frame was not caused by a keystroke
+     * @param  bytes    The number of bytes written
+     */
+    public static void frame(final long keyTime, final int bytes)
+    {
+        if (enabled == false)
+            return;
+        FRAME_BYTES.record(bytes);
+        stop(KEY_TO_PAINT, keyTime);
+    }
+
+    /**
+     * Records that a requested frame was merged into another frame, may only be called by one thread
+     */
+    public static void skipped()
+    {
+        if (enabled)
+            skipped++;
+    }
+
+    /**
+     * Gets the statistics in short form, for the status bar
+     *
+     * @return  The statistics
+     */
+    public static String overlay()
+    {
+        return "key p50 " + KEY_TO_PAINT.format(KEY_TO_PAINT.percentile(50)) +
+               " p99 "    + KEY_TO_PAINT.format(KEY_TO_PAINT.percentile(99)) +
+               "  frame p50 " + FRAME_BYTES.format(FRAME_BYTES.percentile(50)) +
+               "  skipped " + skipped +
+               "  size p99 " + TERMINAL_SIZE.format(TERMINAL_SIZE.percentile(99)) +
+               "  colour p99 " + COLOURISE.format(COLOURISE.percentile(99));
+    }
+
+    /**
+     * Prints the histograms, if instrumentation is enabled
+     *
+     * @param  out  The stream to print to
+     */
+    public static void report(final PrintStream out)
+    {
+        if (enabled == false)
+            return;
+        out.println("frames written: " + FRAME_BYTES.getCount() + "  requested frames skipped: " + skipped);
+        for (final Histogram histogram : new Histogram[] { KEY_TO_PAINT, FRAME_BYTES, TERMINAL_SIZE, COLOURISE })
+        {
+            out.println();
+            histogram.print(out);
+        }
+    }
+    
+}
@@ -0,0 +1,154 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.util.*;
+
+
+/**
+ * Static interval tree over half-open time intervals: the intervals are sorted by start
+ * and laid out as an implicit balanced binary tree where every node knows the greatest
+ * end in its subtree, so subtrees that cannot overlap a query are skipped.
+ * <p>
+ * The tree can be rebuilt with new intervals, reusing its arrays.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class IntervalTree
+{
+    /**
+     * Constructor
+     */
+    public IntervalTree()
+    {
+        //Nothing to initialise
+    }
+
+
+
+    /**
+     * The intervals, as {@code (start << 32) | index}, sorted, the index is into {@link #ends} and {@link #ids}
+     */
+    private long[] order = new long[16];
+
+    /**
+     * The end of each interval, in input order
+     */
+    private int[] ends = new int[16];
+
+    /**
+     * The identifier of each interval, in input order
+     */
+    private int[] ids = new int[16];
+
+    /**
+     * The greatest end in the subtree of each node, in tree order
+     */
+    private int[] maxEnds = new int[16];
+
+    /**
+     * The number of intervals
+     */
+    private int size = 0;
+
+
+
+    /**
+     * Builds the tree, replacing the intervals it had
+     *
+     * @param  starts  The start of each interval
+     * @param  ends    The end of each interval, exclusive
+     * @param  ids     The identifier of each interval
+     * @param  n       The number of intervals
+     */
+    public void build(final int[] starts, final int[] ends, final int[] ids, final int n)
+    {
+        if (this.order.length < n)
+        {
+            this.order   = new long[n];
+            this.ends    = new int[n];
+            this.ids     = new int[n];
+            this.maxEnds = new int[n];
+        }
+        for (int i = 0; i < n; i++)
+        {
+            this.order[i] = ((long)starts[i] << 32) | i;
+            this.ends[i] = ends[i];
+            this.ids[i] = ids[i];
+        }
+        Arrays.sort(this.order, 0, n);
+        this.size = n;
+        this.augment(0, n);
+    }
+
+    /**
+     * Checks whether an interval overlaps any interval in the tree except one
+     *
+     * @param   start   The start of the interval
+     * @param   end     The end of the interval, exclusive
+     * @param   except  The identifier of the interval to ignore
+     * @return          Whether there is an overlap
+     */
+    public boolean overlaps(final int start, final int end, final int except)
+    {
+        return this.overlaps(0, this.size, start, end, except);
+    }
+
+
+    /**
+     * Calculates the greatest end in each subtree
+     *
+     * @param   lo  The start of the subtree's range
+     * @param   hi  The end of the subtree's range, exclusive
+     * @return      The greatest end in the subtree, {@link Integer#MIN_VALUE} if empty
+     */
+    private int augment(final int lo, final int hi)
+    {
+        if (lo >= hi)
+            return Integer.MIN_VALUE;
+        final int mid = (lo + hi) >>> 1;
+        final int end = this.ends[(int)(this.order[mid])];
+        return this.maxEnds[mid] = Math.max(end, Math.max(this.augment(lo, mid), this.augment(mid + 1, hi)));
+    }
+
+    /**
+     * Checks whether an interval overlaps any interval in a subtree except one
+     *
+     * @param   lo      The start of the subtree's range
+     * @param   hi      The end of the subtree's range, exclusive
+     * @param   start   The start of the interval
+     * @param   end     The end of the interval, exclusive
+     * @param   except  The identifier of the interval to ignore
+     * @return          Whether there is an overlap
+     */
+    private boolean overlaps(final int lo, final int hi, final int start, final int end, final int except)
+    {
+        if ((lo >= hi) || (this.maxEnds[(lo + hi) >>> 1] <= start))
+            return false;
+        final int mid = (lo + hi) >>> 1;
+        final int index = (int)(this.order[mid]);
+        final int nodeStart = (int)(this.order[mid] >> 32);
+        if ((nodeStart < end) && (start < this.ends[index]) && (this.ids[index] != except))
+            return true;
+        if (this.overlaps(lo, mid, start, end, except))
+            return true;
+        return (nodeStart < end) && this.overlaps(mid + 1, hi, start, end, except);
+    }
+    
+}
@@ -0,0 +1,324 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+
+
+/**
+ * Decodes terminal input into key events: UTF-8 encoded characters, and the
+ * CSI and SS3 escape sequences sent for cursor and editing keys
+ * <p>
+ * Input is read in bulk, so a burst of input, such as from a held down key,
+ * is decoded from one read and {@link #hasPending()} tells whether more keys
+ * are waiting, so that they can be handled before the screen is redrawn.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class KeyDecoder
+{
+    /**
+     * Constructor
+     *
+     * @param  in  The terminal's input
+     */
+    public KeyDecoder(final InputStream in)
+    {
+        this.in = in;
+    }
+
+
+
+    /**
+     * Key event: end of input
+     */
+    public static final int KEY_END_OF_INPUT = -1;
+
+    /**
+     * Key event: the escape key
+     */
+    public static final int KEY_ESCAPE = -2;
+
+    /**
+     * Key event: an escape sequence that is not recognised
+     */
+    public static final int KEY_UNKNOWN = -3;
+
+    /**
+     * Key event: cursor up
+     */
+    public static final int KEY_UP = -4;
+
+    /**
+     * Key event: cursor down
+     */
+    public static final int KEY_DOWN = -5;
+
+    /**
+     * Key event: cursor right
+     */
+    public static final int KEY_RIGHT = -6;
+
+    /**
+     * Key event: cursor left
+     */
+    public static final int KEY_LEFT = -7;
+
+    /**
+     * Key event: page up
+     */
+    public static final int KEY_PAGE_UP = -8;
+
+    /**
+     * Key event: page down
+     */
+    public static final int KEY_PAGE_DOWN = -9;
+
+    /**
+     * Key event: home
+     */
+    public static final int KEY_HOME = -10;
+
+    /**
+     * Key event: end
+     */
+    public static final int KEY_END = -11;
+
+
+
+    /**
+     * The maximum number of bytes of a CSI escape sequence that are kept in the buffer, the rest
+     * of a longer sequence is discarded as it arrives, as no key is sent as such a sequence
+     */
+    private static final int MAX_CSI_LENGTH = 32;
+
+
+
+    /**
+     * The terminal's input
+     */
+    private final InputStream in;
+
+    /**
+     * Read but not yet decoded input
+     */
+    private final byte[] buffer = new byte[4096];
+
+    /**
+     * The position of the first byte in {@link #buffer} that has not been decoded
+     */
+    private int pos = 0;
+
+    /**
+     * The number of bytes in {@link #buffer}
+     */
+    private int end = 0;
+
+
+
+    /**
+     * Tests whether there is input that can be decoded without waiting
+     *
+     * @return               Whether there is input
+     * @throws  IOException  On I/O error
+     */
+    public boolean hasPending() throws IOException
+    {
+        return (this.pos < this.end) || (this.in.available() > 0);
+    }
+
+    /**
+     * Waits for and decodes the next key
+     *
+     * @return               The key's character, or one of the {@code KEY_*} constants
+     * @throws  IOException  On I/O error
+     */
+    public int next() throws IOException
+    {
+        if (this.fill(1) == false)
+            return KEY_END_OF_INPUT;
+        final int b = this.buffer[this.pos] & 255;
+
+        if (b == 27)
+        {
+            /* A lone escape is the escape key, a sequence arrives in one piece */
+            if ((this.pos + 1 == this.end) && (this.in.available() == 0))
+            {
+                this.pos++;
+                return KEY_ESCAPE;
+            }
+            if (this.fill(2) == false)
+            {
+                this.pos++;
+                return KEY_ESCAPE;
+            }
+            final int introducer = this.buffer[this.pos + 1];
+            if (introducer == '[')
+                return this.decodeCSI();
+            if (introducer == 'O')
+                return this.decodeSS3();
+            this.pos++;
+            return KEY_ESCAPE;
+        }
+
+        final int n = b < 0x80 ? 1 : b < 0xC0 ? 0 : b < 0xE0 ? 2 : b < 0xF0 ? 3 : b < 0xF8 ? 4 : 0;
+        if ((n == 0) || (this.fill(n) == false))
+        {
+            this.pos++;
+            return 0xFFFD;
+        }
+        int cp = n == 1 ? b : b & (0x7F >> n);
+        for (int i = 1; i < n; i++)
+        {
+            final int c = this.buffer[this.pos + i] & 255;
+            if ((c & 0xC0) != 0x80)
+            {
+                this.pos += i;
+                return 0xFFFD;
+            }
+            cp = (cp << 6) | (c & 0x3F);
+        }
+        this.pos += n;
+        return cp;
+    }
+
+
+    /**
+     * Decodes a CSI escape sequence, {@code ESC [} followed by parameters and a final byte,
+     * sequences longer than {@link #MAX_CSI_LENGTH} bytes are not recognised
+     *
+     * @return               The key
+     * @throws  IOException  On I/O error
+     */
+    private int decodeCSI() throws IOException
+    {
+        int i = 2, param = 0, c;
+        boolean first = true, overlong = false;
+        for (;;)
+        {
+            if (i == MAX_CSI_LENGTH)
+            {
+                this.pos += i;
+                i = 0;
+                overlong = true;
+            }
+            if (this.fill(i + 1) == false)
+            {
+                this.pos = this.end;
+                return KEY_UNKNOWN;
+            }
+            c = this.buffer[this.pos + i++] & 255;
+            if (('0' <= c) && (c <= '9'))
+            {
+                if (first)
+                    param = param * 10 + (c - '0');
+            }
+            else if ((0x40 <= c) && (c <= 0x7E))
+                break;
+            else if (c == ';')
+                first = false;
+            else if ((c < 0x20) || (c > 0x3F))
+            {
+                this.pos += i - 1;
+                return KEY_UNKNOWN;
+            }
+        }
+        this.pos += i;
+        if (overlong)
+            return KEY_UNKNOWN;
+
+        switch (c)
+        {
+            case 'A':  return KEY_UP;
+            case 'B':  return KEY_DOWN;
+            case 'C':  return KEY_RIGHT;
+            case 'D':  return KEY_LEFT;
+            case 'H':  return KEY_HOME;
+            case 'F':  return KEY_END;
+            case '~':
+                switch (param)
+                {
+                    case 1:
+                    case 7:  return KEY_HOME;
+                    case 4:
+                    case 8:  return KEY_END;
+                    case 5:  return KEY_PAGE_UP;
+                    case 6:  return KEY_PAGE_DOWN;
+                    default: return KEY_UNKNOWN;
+                }
+            default:
+                return KEY_UNKNOWN;
+        }
+    }
+
+    /**
+     * Decodes an SS3 escape sequence, {@code ESC O} followed by one byte
+     *
+     * @return               The key
+     * @throws  IOException  On I/O error
+     */
+    private int decodeSS3() throws IOException
+    {
+        if (this.fill(3) == false)
+        {
+            this.pos = this.end;
+            return KEY_UNKNOWN;
+        }
+        final int c = this.buffer[this.pos + 2];
+        this.pos += 3;
+        switch (c)
+        {
+            case 'A':  return KEY_UP;
+            case 'B':  return KEY_DOWN;
+            case 'C':  return KEY_RIGHT;
+            case 'D':  return KEY_LEFT;
+            case 'H':  return KEY_HOME;
+            case 'F':  return KEY_END;
+            default:   return KEY_UNKNOWN;
+        }
+    }
+
+    /**
+     * Reads input until a number of bytes are available for decoding
+     *
+     * @param   n            The number of bytes needed
+     * @return               Whether the bytes are available, {@code false} at end of input
+     * @throws  IOException  On I/O error
+     */
+    private boolean fill(final int n) throws IOException
+    {
+        while (this.end - this.pos < n)
+        {
+            if (this.pos + n > this.buffer.length)
+            {
+                System.arraycopy(this.buffer, this.pos, this.buffer, 0, this.end - this.pos);
+                this.end -= this.pos;
+                this.pos = 0;
+            }
+            if (this.pos == this.end)
+                this.pos = this.end = 0;
+            final int got = this.in.read(this.buffer, this.end, this.buffer.length - this.end);
+            if (got < 0)
+                return false;
+            this.end += got;
+        }
+        return true;
+    }
+    
+}
@@ -0,0 +1,145 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.util.*;
+
+
+/**
+ * Bounded cache of colourised lines, the least recently used line is evicted first
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class LineCache
+{
+    /**
+     * Constructor
+     */
+    public LineCache()
+    {
+        this.map = new LinkedHashMap<Integer, String>(16, 0.75f, true)
+                {
+                    /**
+                     * Compatibility versioning for {@link java.io.Serializable}
+                     */
+                    private static final long serialVersionUID = 1L;
+
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    protected boolean removeEldestEntry(final Map.Entry<Integer, String> eldest)
+                    {
+                        return this.size() > LineCache.this.capacity;
+                    }
+                };
+    }
+
+
+
+    /**
+     * The cached lines, in access order
+     */
+    private final LinkedHashMap<Integer, String> map;
+
+    /**
+     * The maximum number of cached lines
+     */
+    private int capacity = 256;
+
+
+
+    /**
+     * Gets a cached line
+     *
+     * @param   index  The line's index in the file
+     * @return         The colourised line, {@code null} if not cached
+     */
+    public String get(final int index)
+    {
+        return this.map.get(Integer.valueOf(index));
+    }
+
+    /**
+     * Caches a line, evicting the least recently used line if the cache is full
+     *
+     * @param  index  The line's index in the file
+     * @param  line   The colourised line
+     */
+    public void put(final int index, final String line)
+    {
+        this.map.put(Integer.valueOf(index), line);
+    }
+
+    /**
+     * Removes a cached line, if it is cached
+     *
+     * @param  index  The line's index in the file
+     */
+    public void remove(final int index)
+    {
+        this.map.remove(Integer.valueOf(index));
+    }
+
+    /**
+     * Sets the maximum number of cached lines
+     *
+     * @param  capacity  The maximum number of cached lines
+     */
+    public void setCapacity(final int capacity)
+    {
+        this.capacity = capacity;
+        if (this.map.size() > capacity)
+        {
+            final Iterator<Integer> iterator = this.map.keySet().iterator();
+            for (int n = this.map.size() - capacity; n > 0; n--)
+            {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Moves cached lines to new indices, keeping their order of use,
+     * lines that are not mapped to a new index are removed
+     *
+     * @param  map  The new index of each line, -1 if the line has changed
+     */
+    public void remap(final int[] map)
+    {
+        final ArrayList<Map.Entry<Integer, String>> entries = new ArrayList<Map.Entry<Integer, String>>(this.map.entrySet());
+        this.map.clear();
+        for (final Map.Entry<Integer, String> entry : entries)
+        {
+            final int index = entry.getKey().intValue();
+            if ((index < map.length) && (map[index] >= 0))
+                this.map.put(Integer.valueOf(map[index]), entry.getValue());
+        }
+    }
+
+    /**
+     * Removes all cached lines
+     */
+    public void clear()
+    {
+        this.map.clear();
+    }
+    
+}
@@ -0,0 +1,350 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+
+/**
+ * Editor of the attendance markers of a schedule file. The edited content is
+ * held in a {@link PieceTable} and each edit is saved by appending it to an
+ * {@link EditJournal}; the file itself is only rewritten when the journal is
+ * compacted, which is done when it has grown to {@link #COMPACT_EDITS} edits
+ * and when the editor is closed. Edits can be undone and redone.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class MarkerEditor
+{
+    /**
+     * Constructor, edits in a journal left from an earlier session are applied and written to the file
+     *
+     * @param   file         The schedule file, as it is on disk
+     * @throws  IOException  On I/O error
+     */
+    public MarkerEditor(final ScheduleFile file) throws IOException
+    {
+        this.path = file.file;
+        this.journal = new EditJournal(file.file);
+        this.table = new PieceTable(copy(file.getContent()));
+        this.recovered = this.journal.replay(file, this.table);
+        if (this.recovered > 0)
+            this.write();
+        else
+            this.journal.delete();
+    }
+
+
+
+    /**
+     * The attendance markers, in the order they are cycled through
+     */
+    public static final String MARKERS = " !*~^-+/?&#>";
+
+    /**
+     * The column of the attendance marker
+     */
+    public static final int MARKER_COLUMN = 16;
+
+    /**
+     * The number of edits after which the journal is compacted
+     */
+    private static final int COMPACT_EDITS = 64;
+
+
+
+    /**
+     * The schedule file
+     */
+    private final File path;
+
+    /**
+     * The journal of edits that have not been written to the file
+     */
+    private final EditJournal journal;
+
+    /**
+     * The edited content
+     */
+    private PieceTable table;
+
+    /**
+     * The number of edits applied from a journal left from an earlier session
+     */
+    private final int recovered;
+
+    /**
+     * Edits that can be undone, the last is undone first
+     */
+    private final ArrayList<Edit> undo = new ArrayList<Edit>();
+
+    /**
+     * Edits that can be redone, the last is redone first
+     */
+    private final ArrayList<Edit> redo = new ArrayList<Edit>();
+
+    /**
+     * The last edit that was made, undone or redone, as it was made, {@code null} if none or taken
+     */
+    private Edit last = null;
+
+
+
+    /**
+     * Changes the attendance marker of an event to the next or previous marker in {@link #MARKERS}
+     *
+     * @param   file         The edited file, as returned by {@link #getFile()}
+     * @param   line         The event's line
+     * @param   direction    1 for the next marker, -1 for the previous marker
+     * @return               Whether the line has a marker in {@link #MARKERS} at {@link #MARKER_COLUMN},
+     *                       if not, the line is not changed
+     * @throws  IOException  If the edit cannot be saved, in which case it is not made
+     */
+    public boolean cycle(final ScheduleFile file, final int line, final int direction) throws IOException
+    {
+        /* Anything else at the column is part of something else, such as a tab or the text of a malformed line */
+        final int offset = file.getColumnOffset(line, MARKER_COLUMN);
+        final byte[] old = offset < 0 ? null : this.table.get(offset, 1);
+        final int index = old == null ? -1 : MARKERS.indexOf(old[0]);
+        if (index < 0)
+            return false;
+        final int next = (index + direction + MARKERS.length()) % MARKERS.length();
+        final Edit edit = new Edit(offset, old, new byte[] { (byte)(MARKERS.charAt(next)) });
+        this.edit(edit);
+        this.undo.add(edit);
+        this.redo.clear();
+        return true;
+    }
+
+    /**
+     * Undoes the last edit
+     *
+     * @return               Whether there was an edit to undo
+     * @throws  IOException  If the undo cannot be saved, in which case it is not made
+     */
+    public boolean undo() throws IOException
+    {
+        if (this.undo.isEmpty())
+            return false;
+        final Edit edit = this.undo.get(this.undo.size() - 1);
+        this.edit(new Edit(edit.offset, edit.bytes, edit.old));
+        this.redo.add(this.undo.remove(this.undo.size() - 1));
+        return true;
+    }
+
+    /**
+     * Redoes the last undone edit
+     *
+     * @return               Whether there was an edit to redo
+     * @throws  IOException  If the redo cannot be saved, in which case it is not made
+     */
+    public boolean redo() throws IOException
+    {
+        if (this.redo.isEmpty())
+            return false;
+        final Edit edit = this.redo.get(this.redo.size() - 1);
+        this.edit(edit);
+        this.undo.add(this.redo.remove(this.redo.size() - 1));
+        return true;
+    }
+
+    /**
+     * Makes an edit, it is journaled before it is applied
+     *
+     * @param   edit         The edit
+     * @throws  IOException  If the edit cannot be journaled
+     */
+    private void edit(final Edit edit) throws IOException
+    {
+        if (this.journal.isStarted() == false)
+            this.journal.start(new ScheduleFile(this.path, this.table.toByteBuffer()));
+        this.journal.append(edit.offset, edit.old, edit.bytes);
+        this.table.replace(edit.offset, edit.old.length, edit.bytes);
+        this.last = edit;
+        if (this.journal.size() >= COMPACT_EDITS)
+            this.compact();
+    }
+
+    /**
+     * Writes the edits to the file, if there are any that have not been written
+     *
+     * @throws  IOException  On I/O error
+     */
+    public void compact() throws IOException
+    {
+        if (this.journal.isStarted())
+            this.write();
+    }
+
+    /**
+     * Writes the edited content to the file, replacing it atomically, and removes the journal
+     *
+     * @throws  IOException  On I/O error
+     */
+    private void write() throws IOException
+    {
+        final ByteBuffer content = this.table.toByteBuffer();
+        final Path target = this.path.toPath();
+        final File temp = File.createTempFile("." + this.path.getName() + ".", ".tmp", this.path.getAbsoluteFile().getParentFile());
+        try
+        {
+            try (final FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE))
+            {
+                while (content.hasRemaining())
+                    channel.write(content);
+                channel.force(false);
+            }
+            try
+            {
+                Files.setPosixFilePermissions(temp.toPath(), Files.getPosixFilePermissions(target));
+            }
+            catch (final UnsupportedOperationException err)
+            {
+                //The file system does not have POSIX permissions
+            }
+            Files.move(temp.toPath(), target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            temp.delete();
+        }
+        this.journal.delete();
+        content.rewind();
+        this.table = new PieceTable(content);
+    }
+
+    /**
+     * Discards the edits that have not been written to the file, for when the file has been
+     * changed by something else; edits can no longer be undone or redone
+     *
+     * @param   file         The schedule file, as it is on disk
+     * @throws  IOException  On I/O error
+     */
+    public void reset(final ScheduleFile file) throws IOException
+    {
+        this.journal.delete();
+        this.table = new PieceTable(copy(file.getContent()));
+        this.undo.clear();
+        this.redo.clear();
+        this.last = null;
+    }
+
+    /**
+     * Gets the edited file
+     *
+     * @return  The edited file
+     */
+    public ScheduleFile getFile()
+    {
+        return new ScheduleFile(this.path, this.table.toByteBuffer());
+    }
+
+    /**
+     * Gets the last edit that was made, undone or redone, and forgets it, so that the
+     * shown file can be patched with only the edit rather than loaded again
+     *
+     * @return  The edit as it was made, {@code null} if none since this was last called
+     */
+    Edit takeEdit()
+    {
+        final Edit edit = this.last;
+        this.last = null;
+        return edit;
+    }
+
+    /**
+     * Gets the number of edits that have not been written to the file
+     *
+     * @return  The number of edits in the journal
+     */
+    public int getUnsaved()
+    {
+        return this.journal.isStarted() ? this.journal.size() : 0;
+    }
+
+    /**
+     * Gets the number of edits applied from a journal left from an earlier session
+     *
+     * @return  The number of recovered edits
+     */
+    public int getRecovered()
+    {
+        return this.recovered;
+    }
+
+
+    /**
+     * Copies content, the edited content must not share its buffer with the loaded file,
+     * since the loaded file is patched in place by {@link Reloader#patch(int, int, byte[])}
+     *
+     * @param   content  The content, from its position to its limit
+     * @return           The copy, from its start to its limit
+     */
+    private static ByteBuffer copy(final ByteBuffer content)
+    {
+        final ByteBuffer rc = ByteBuffer.allocate(content.remaining());
+        rc.put(content);
+        rc.flip();
+        return rc;
+    }
+
+
+
+    /**
+     * A replacement of bytes
+     */
+    static class Edit
+    {
+        /**
+         * Constructor
+         *
+         * @param  offset  The offset of the replaced bytes
+         * @param  old     The replaced bytes
+         * @param  bytes   The bytes that replace them
+         */
+        Edit(final int offset, final byte[] old, final byte[] bytes)
+        {
+            this.offset = offset;
+            this.old = old;
+            this.bytes = bytes;
+        }
+
+
+
+        /**
+         * The offset of the replaced bytes
+         */
+        final int offset;
+
+        /**
+         * The replaced bytes
+         */
+        final byte[] old;
+
+        /**
+         * The bytes that replace them
+         */
+        final byte[] bytes;
+    }
+    
+}
@@ -0,0 +1,474 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Several schedule files merged into one, ordered by week
+ * <p>
+ * The files are loaded and scanned for their blocks in parallel, and their
+ * week blocks are then merged with a k-way merge, so merging {@code k} files
+ * with {@code n} blocks in total costs {@code O(n log k)} and the files are
+ * never sorted as a whole. Within each file the blocks keep their order, and
+ * section headers, with the lines up to the next week header, go with the
+ * week that follows them. A week that is in more than one file gets a single
+ * week header, and its days are ordered by date; the lines of days from
+ * different files with the same date are merged by start time, keeping the
+ * order within each file, and the date is only written on the first line. The head and legend are taken
+ * from the first file. Every line keeps a tag for the file it came from.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class MergedSchedule
+{
+    /**
+     * Constructor
+     *
+     * @param   files        The schedule files, at most {@link Short#MAX_VALUE}
+     * @param   pool         The pool the files are loaded in
+     * @throws  IOException  On I/O error
+     */
+    public MergedSchedule(final List<File> files, final ForkJoinPool pool) throws IOException
+    {
+        if (files.size() > Short.MAX_VALUE)
+            throw new IOException("Too many files");
+        this.files = files.toArray(new File[files.size()]);
+
+        final ArrayList<ForkJoinTask<Source>> tasks = new ArrayList<ForkJoinTask<Source>>();
+        for (final File file : files)
+            tasks.add(pool.submit(new Callable<Source>()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        @Override
+                        public Source call() throws IOException
+                        {
+                            return new Source(file);
+                        }
+                    }));
+        final Source[] sources = new Source[tasks.size()];
+        int size = 0;
+        for (int i = 0; i < sources.length; i++)
+        {
+            sources[i] = Program.join(tasks.get(i));
+            size += sources[i].size + 1;
+        }
+
+        final ArrayList<int[]> runs = new ArrayList<int[]>();
+        final Source first = sources[0];
+        for (int block = 0; (block < first.blocks.size()) && (first.blocks.getSection(block) < ScheduleParser.SECTION_SCHEDULE); block++)
+            addRun(runs, 0, first.blocks.getStart(block), first.blocks.getEnd(block));
+
+        /* k-way merge: the queue holds the next block of each file, as (key, file) */
+        final PriorityQueue<long[]> queue = new PriorityQueue<long[]>(sources.length, new Comparator<long[]>()
+                {
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    public int compare(final long[] a, final long[] b)
+                    {
+                        return a[0] != b[0] ? (a[0] < b[0] ? -1 : 1) : Long.compare(a[1], b[1]);
+                    }
+                });
+        for (int i = 0; i < sources.length; i++)
+            if (sources[i].next < sources[i].keys.length)
+                queue.add(new long[] { sources[i].keys[sources[i].next], i });
+        final ArrayList<long[]> heads = new ArrayList<long[]>();
+        while (queue.isEmpty() == false)
+        {
+            /* Take the week from every file that has it, the queue gives them in the order the files were given */
+            final long key = queue.peek()[0];
+            heads.clear();
+            while ((queue.isEmpty() == false) && (queue.peek()[0] == key))
+                heads.add(queue.poll());
+            if (heads.size() == 1)
+            {
+                final int index = (int)(heads.get(0)[1]);
+                final Source source = sources[index];
+                for (; (source.next < source.keys.length) && (source.keys[source.next] == key); source.next++)
+                    addRun(runs, index, source.blocks.getStart(source.next), source.blocks.getEnd(source.next));
+            }
+            else
+                mergeWeek(sources, heads, key, runs);
+            for (final long[] head : heads)
+            {
+                final Source source = sources[(int)(head[1])];
+                if (source.next < source.keys.length)
+                {
+                    head[0] = source.keys[source.next];
+                    queue.add(head);
+                }
+            }
+        }
+
+        int lines = 0;
+        for (final int[] run : runs)
+        {
+            lines += run[2] - run[1];
+            /* A line whose date is blanked is longer than it was if the date was written with tabs */
+            size += run[3] == 0 ? 0 : 16;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        this.tags = new short[lines];
+        lines = 0;
+        for (final int[] run : runs)
+        {
+            final ScheduleFile file = sources[run[0]].file;
+            final int offset = run[3] == 0 ? -1 : file.getColumnOffset(run[1], 16);
+            if (offset < 0)
+                file.copyLines(run[1], run[2], buffer);
+            else
+            {
+                /* The same date as the day above, the date is only written once, the rest of the line is copied as it is */
+                final ByteBuffer rest = file.getContent();
+                rest.limit(file.getOffset(run[1]) + file.getByteLength(run[1]));
+                rest.position(offset);
+                for (int i = 0; i < 16; i++)
+                    buffer.put((byte)' ');
+                buffer.put(rest).put((byte)'\n');
+            }
+            Arrays.fill(this.tags, lines, lines += run[2] - run[1], (short)(run[0]));
+        }
+        buffer.flip();
+        this.file = new ScheduleFile(this.files[0], buffer);
+    }
+
+
+
+    /**
+     * The merged files, in the order they were given
+     */
+    private final File[] files;
+
+    /**
+     * The merged file
+     */
+    private final ScheduleFile file;
+
+    /**
+     * The index in {@link #files} of the file each line came from
+     */
+    private final short[] tags;
+
+
+
+    /**
+     * A file that is being merged
+     */
+    private static class Source
+    {
+        /**
+         * Loads a file and finds its blocks
+         *
+         * @param   file         The file
+         * @throws  IOException  On I/O error
+         */
+        Source(final File file) throws IOException
+        {
+            this.file = new ScheduleFile(file);
+            this.size = (int)(file.length());
+            this.blocks = new BlockMap();
+            new ScheduleParser(null, null, null, this.blocks).parse(this.file);
+
+            int first = 0;
+            while ((first < this.blocks.size()) && (this.blocks.getSection(first) < ScheduleParser.SECTION_SCHEDULE))
+                first++;
+            this.next = first;
+            this.keys = new long[this.blocks.size()];
+            long key = Long.MAX_VALUE;
+            for (int block = this.blocks.size() - 1; block >= first; block--)
+            {
+                if (this.blocks.getWeek(block) >= 0)
+                    key = this.blocks.getWeekYear(block) * 100L + this.blocks.getWeek(block);
+                this.keys[block] = key;
+            }
+        }
+
+        /**
+         * The file
+         */
+        final ScheduleFile file;
+
+        /**
+         * The size of the file in bytes
+         */
+        final int size;
+
+        /**
+         * The blocks of the file
+         */
+        final BlockMap blocks;
+
+        /**
+         * The merge key of each block, {@code year * 100 + week} of the block or of the first
+         * following block that has a week, only set for blocks in schedule sections
+         */
+        final long[] keys;
+
+        /**
+         * The next block to merge
+         */
+        int next;
+    }
+
+
+
+    /**
+     * Prints schedule files merged into one
+     *
+     * @param   args         The schedule files
+     * @param   pool         The pool the files are loaded in
+     * @return               The exit value
+     * @throws  IOException  On I/O error
+     */
+    public static int run(final String[] args, final ForkJoinPool pool) throws IOException
+    {
+        if (args.length == 0)
+        {
+            System.err.println("usage: mastertimekeeper --merge FILE...");
+            return 2;
+        }
+        final ArrayList<File> files = new ArrayList<File>();
+        for (final String arg : args)
+            files.add(new File(arg));
+        final MergedSchedule merged;
+        try
+        {
+            merged = new MergedSchedule(files, pool);
+        }
+        catch (final IOException err)
+        {
+            System.err.println("mastertimekeeper: " + err.getMessage());
+            return 2;
+        }
+        final ByteBuffer content = merged.getFile().getContent();
+        final WritableByteChannel out = new FileOutputStream(FileDescriptor.out).getChannel();
+        while (content.hasRemaining())
+            out.write(content);
+        return 0;
+    }
+
+
+    /**
+     * Gets the merged file
+     *
+     * @return  The merged file
+     */
+    public ScheduleFile getFile()
+    {
+        return this.file;
+    }
+
+    /**
+     * Gets the number of merged files
+     *
+     * @return  The number of merged files
+     */
+    public int getSourceCount()
+    {
+        return this.files.length;
+    }
+
+    /**
+     * Gets one of the merged files
+     *
+     * @param   source  The file's index, in the order the files were given
+     * @return          The file
+     */
+    public File getSourceFile(final int source)
+    {
+        return this.files[source];
+    }
+
+    /**
+     * Gets the file a line came from
+     *
+     * @param   line  The line's index in the merged file
+     * @return        The file's index, in the order the files were given
+     */
+    public int getSource(final int line)
+    {
+        return this.tags[line];
+    }
+
+
+    /**
+     * Merges a week that is in more than one file: the section headers before the week, without
+     * duplicates, the first file's week header, the lines before the first day from each file, the
+     * days ordered by date, and the first file's blank lines after the week; days with the same
+     * date are merged with {@link #mergeDay(Source[], List, List)}
+     *
+     * @param   sources      The files
+     * @param   heads        The files that have the week, as {@code (key, file)}, in the order the files were given
+     * @param   key          The week, as {@code year * 100 + week}
+     * @param   runs         The runs to add the week's lines to
+     * @throws  IOException  If a line cannot be decoded
+     */
+    private static void mergeWeek(final Source[] sources, final List<long[]> heads, final long key, final List<int[]> runs)
+            throws IOException
+    {
+        final ArrayList<int[]> leads = new ArrayList<int[]>();
+        final ArrayList<int[]> befores = new ArrayList<int[]>();
+        final ArrayList<int[]> days = new ArrayList<int[]>();
+        final HashSet<Long> seen = new HashSet<Long>();
+        int[] header = null, tail = null;
+
+        for (final long[] head : heads)
+        {
+            final int index = (int)(head[1]);
+            final Source source = sources[index];
+            final BlockMap blocks = source.blocks;
+            final ScheduleFile file = source.file;
+            for (; (source.next < source.keys.length) && (source.keys[source.next] == key); source.next++)
+            {
+                final int block = source.next, start = blocks.getStart(block), end = blocks.getEnd(block);
+                if (blocks.getWeek(block) < 0)
+                {
+                    if (seen.add(Long.valueOf(file.hash(start, end))))
+                        leads.add(new int[] { index, start, end, 0 });
+                    continue;
+                }
+                if (header == null)
+                    header = new int[] { index, start, start + 1, 0 };
+                int last = end;
+                while ((last > start + 1) && (file.getByteLength(last - 1) == 0))
+                    last--;
+                if (tail == null)
+                    tail = new int[] { index, last, end, 0 };
+                int day = -1;
+                for (int line = start + 1; line < last; line++)
+                {
+                    final int date = ScheduleParser.parseDate(ScheduleParser.expandTabs(file.getLine(line)), blocks.getWeekYear(block), blocks.getWeek(block));
+                    if (date <= 0)
+                        continue;
+                    if (day >= 0)
+                        days.get(days.size() - 1)[3] = line;
+                    else if (line > start + 1)
+                        befores.add(new int[] { index, start + 1, line, 0 });
+                    days.add(new int[] { date, index, line, last });
+                    day = line;
+                }
+                if ((day < 0) && (last > start + 1))
+                    befores.add(new int[] { index, start + 1, last, 0 });
+            }
+        }
+
+        /* The sort is stable, so days with the same date stay in the order the files were given */
+        Collections.sort(days, new Comparator<int[]>()
+                {
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    public int compare(final int[] a, final int[] b)
+                    {
+                        return Integer.compare(a[0], b[0]);
+                    }
+                });
+
+        for (final int[] run : leads)
+            addRun(runs, run[0], run[1], run[2]);
+        if (header != null)
+            addRun(runs, header[0], header[1], header[2]);
+        for (final int[] run : befores)
+            addRun(runs, run[0], run[1], run[2]);
+        for (int i = 0, j; i < days.size(); i = j)
+        {
+            for (j = i + 1; (j < days.size()) && (days.get(j)[0] == days.get(i)[0]); j++)
+                ;
+            if (j == i + 1)
+                addRun(runs, days.get(i)[1], days.get(i)[2], days.get(i)[3]);
+            else
+                mergeDay(sources, days.subList(i, j), runs);
+        }
+        if (tail != null)
+            addRun(runs, tail[0], tail[1], tail[2]);
+    }
+
+    /**
+     * Merges the lines of days with the same date from different files by start time, with a k-way merge
+     * that keeps the order within each file; lines without a time stay after the line above them, and
+     * only the first line keeps its date
+     *
+     * @param   sources      The files
+     * @param   days         The days, as {@code (date, file, start, end)}, in the order the files were given
+     * @param   runs         The runs to add the lines to
+     * @throws  IOException  If a line cannot be decoded
+     */
+    private static void mergeDay(final Source[] sources, final List<int[]> days, final List<int[]> runs) throws IOException
+    {
+        final int[][] times = new int[days.size()][];
+        final int[] next = new int[days.size()];
+        for (int d = 0; d < times.length; d++)
+        {
+            final int[] day = days.get(d);
+            times[d] = new int[day[3] - day[2]];
+            for (int line = day[2], time = -1; line < day[3]; line++)
+            {
+                final String text = ScheduleParser.expandTabs(sources[day[1]].file.getLine(line));
+                final int start = text.length() > 27 ? ScheduleParser.parseTime(text, 17) : -1;
+                times[d][line - day[2]] = time = start < 0 ? time : start;
+            }
+        }
+        for (boolean first = true;; first = false)
+        {
+            int pick = -1;
+            for (int d = 0; d < times.length; d++)
+                if ((next[d] < times[d].length) && ((pick < 0) || (times[d][next[d]] < times[pick][next[pick]])))
+                    pick = d;
+            if (pick < 0)
+                break;
+            final int[] day = days.get(pick);
+            final int line = day[2] + next[pick]++;
+            if ((line == day[2]) && (first == false))
+                runs.add(new int[] { day[1], line, line + 1, 1 });
+            else
+                addRun(runs, day[1], line, line + 1);
+        }
+    }
+
+    /**
+     * Adds lines to the merged file, joining them with the previous run if they follow it in the same file
+     *
+     * @param  runs   The runs, as {@code (file, start, end, blanked)}, where {@code blanked} is 1 for a
+     *                single line whose date is replaced by blanks, otherwise 0
+     * @param  file   The file's index
+     * @param  start  The first line
+     * @param  end    The line after the last line
+     */
+    private static void addRun(final List<int[]> runs, final int file, final int start, final int end)
+    {
+        if (start >= end)
+            return;
+        final int[] last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+        if ((last != null) && (last[0] == file) && (last[2] == start) && (last[3] == 0))
+            last[2] = end;
+        else
+            runs.add(new int[] { file, start, end, 0 });
+    }
+    
+}
@@ -0,0 +1,215 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+
+
+/**
+ * Reusable buffer of UTF-8 encoded output for the terminal, a frame is built in
+ * it and written with one channel write, after which it is cleared and reused
+ * without allocating
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class OutputBuffer
+{
+    /**
+     * Constructor
+     *
+     * @param  capacity  The initial capacity, in bytes
+     */
+    public OutputBuffer(final int capacity)
+    {
+        this.bytes = new byte[capacity];
+        this.buffer = ByteBuffer.wrap(this.bytes);
+    }
+
+
+
+    /**
+     * The buffered bytes
+     */
+    private byte[] bytes;
+
+    /**
+     * {@link #bytes} wrapped for channel writes
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * The number of buffered bytes
+     */
+    private int length = 0;
+
+
+
+    /**
+     * Encodes a string as UTF-8, for text that is appended often
+     *
+     * @param   text  The text
+     * @return        The text in UTF-8
+     */
+    public static byte[] encode(final String text)
+    {
+        return text.getBytes(Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Appends pre-encoded bytes
+     *
+     * @param  data  The bytes
+     */
+    public void append(final byte[] data)
+    {
+        this.ensure(data.length);
+        System.arraycopy(data, 0, this.bytes, this.length, data.length);
+        this.length += data.length;
+    }
+
+    /**
+     * Appends an ASCII character
+     *
+     * @param  c  The character
+     */
+    public void append(final char c)
+    {
+        this.ensure(1);
+        this.bytes[this.length++] = (byte)c;
+    }
+
+    /**
+     * Appends a non-negative number in decimal
+     *
+     * @param  value  The number
+     */
+    public void appendNumber(final int value)
+    {
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10)
+            digits++;
+        this.ensure(digits);
+        int v = value;
+        for (int i = this.length + digits - 1; i >= this.length; i--)
+        {
+            this.bytes[i] = (byte)('0' + v % 10);
+            v /= 10;
+        }
+        this.length += digits;
+    }
+
+    /**
+     * Appends a character encoded as UTF-8
+     *
+     * @param  cp  The character's code point
+     */
+    public void appendCodePoint(final int cp)
+    {
+        this.ensure(4);
+        final byte[] b = this.bytes;
+        if (cp < 0x80)
+            b[this.length++] = (byte)cp;
+        else if (cp < 0x800)
+        {
+            b[this.length++] = (byte)(0xC0 | (cp >> 6));
+            b[this.length++] = (byte)(0x80 | (cp & 0x3F));
+        }
+        else if (cp < 0x10000)
+        {
+            b[this.length++] = (byte)(0xE0 | (cp >> 12));
+            b[this.length++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+            b[this.length++] = (byte)(0x80 | (cp & 0x3F));
+        }
+        else
+        {
+            b[this.length++] = (byte)(0xF0 | (cp >> 18));
+            b[this.length++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+            b[this.length++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+            b[this.length++] = (byte)(0x80 | (cp & 0x3F));
+        }
+    }
+
+    /**
+     * Appends text encoded as UTF-8
+     *
+     * @param  text  The text
+     */
+    public void append(final String text)
+    {
+        for (int i = 0, n = text.length(); i < n;)
+        {
+            final int cp = text.codePointAt(i);
+            this.appendCodePoint(cp);
+            i += Character.charCount(cp);
+        }
+    }
+
+    /**
+     * Gets the number of buffered bytes
+     *
+     * @return  The number of buffered bytes
+     */
+    public int length()
+    {
+        return this.length;
+    }
+
+    /**
+     * Discards the buffered bytes
+     */
+    public void clear()
+    {
+        this.length = 0;
+    }
+
+    /**
+     * Writes the buffered bytes to a channel and clears the buffer
+     *
+     * @param   channel      The channel
+     * @throws  IOException  On I/O error
+     */
+    public void writeTo(final WritableByteChannel channel) throws IOException
+    {
+        this.buffer.clear();
+        this.buffer.limit(this.length);
+        while (this.buffer.hasRemaining())
+            channel.write(this.buffer);
+        this.length = 0;
+    }
+
+
+    /**
+     * Makes room for more bytes
+     *
+     * @param  n  The number of bytes that will be appended
+     */
+    private void ensure(final int n)
+    {
+        if (this.length + n > this.bytes.length)
+        {
+            this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length << 1, this.length + n));
+            this.buffer = ByteBuffer.wrap(this.bytes);
+        }
+    }
+    
+}
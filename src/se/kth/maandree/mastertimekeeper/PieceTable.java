@@ -0,0 +1,228 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.nio.*;
+import java.util.*;
+
+
+/**
+ * Piece table over the content of a file: the content is a sequence of pieces,
+ * each a range of either the original content, which is never modified, or of
+ * an append-only buffer of added bytes. An edit only splits pieces and appends
+ * its bytes, so its cost does not depend on the size of the file.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class PieceTable
+{
+    /**
+     * Constructor
+     *
+     * @param  original  The original content, from its start to its limit
+     */
+    public PieceTable(final ByteBuffer original)
+    {
+        this.original = original;
+        this.length = original.limit();
+        if (this.length > 0)
+        {
+            this.lengths[0] = this.length;
+            this.count = 1;
+        }
+    }
+
+
+
+    /**
+     * The original content
+     */
+    private final ByteBuffer original;
+
+    /**
+     * The added bytes
+     */
+    private byte[] added = new byte[64];
+
+    /**
+     * The number of added bytes
+     */
+    private int addedSize = 0;
+
+    /**
+     * The start of each piece in its buffer
+     */
+    private int[] starts = new int[16];
+
+    /**
+     * The length of each piece
+     */
+    private int[] lengths = new int[16];
+
+    /**
+     * Whether each piece is in the added bytes rather than in the original content
+     */
+    private boolean[] inAdded = new boolean[16];
+
+    /**
+     * The number of pieces
+     */
+    private int count = 0;
+
+    /**
+     * The length of the content
+     */
+    private int length;
+
+
+
+    /**
+     * Gets the length of the content
+     *
+     * @return  The number of bytes in the content
+     */
+    public int length()
+    {
+        return this.length;
+    }
+
+    /**
+     * Gets the number of pieces
+     *
+     * @return  The number of pieces
+     */
+    public int getPieceCount()
+    {
+        return this.count;
+    }
+
+    /**
+     * Gets bytes of the content
+     *
+     * @param   offset  The offset of the first byte
+     * @param   length  The number of bytes
+     * @return          The bytes
+     */
+    public byte[] get(final int offset, final int length)
+    {
+        final byte[] rc = new byte[length];
+        int pos = 0;
+        for (int i = 0; (i < this.count) && (pos < offset + length); pos += this.lengths[i++])
+            for (int j = Math.max(offset - pos, 0), n = Math.min(offset + length - pos, this.lengths[i]); j < n; j++)
+                rc[pos + j - offset] = this.inAdded[i] ? this.added[this.starts[i] + j] : this.original.get(this.starts[i] + j);
+        return rc;
+    }
+
+    /**
+     * Replaces bytes of the content
+     *
+     * @param  offset  The offset of the first byte to replace
+     * @param  length  The number of bytes to replace
+     * @param  bytes   The bytes to replace them with
+     */
+    public void replace(final int offset, final int length, final byte[] bytes)
+    {
+        if ((offset < 0) || (length < 0) || (offset + length > this.length))
+            throw new IndexOutOfBoundsException();
+        final int first = this.split(offset);
+        final int last = this.split(offset + length);
+        final int insert = bytes.length > 0 ? 1 : 0;
+
+        /* Remove the replaced pieces and make room for the new piece */
+        this.ensureCapacity(this.count - (last - first) + insert);
+        System.arraycopy(this.starts,  last, this.starts,  first + insert, this.count - last);
+        System.arraycopy(this.lengths, last, this.lengths, first + insert, this.count - last);
+        System.arraycopy(this.inAdded, last, this.inAdded, first + insert, this.count - last);
+        this.count += insert - (last - first);
+
+        if (insert > 0)
+        {
+            if (this.addedSize + bytes.length > this.added.length)
+                this.added = Arrays.copyOf(this.added, Math.max(this.added.length << 1, this.addedSize + bytes.length));
+            System.arraycopy(bytes, 0, this.added, this.addedSize, bytes.length);
+            this.starts[first] = this.addedSize;
+            this.lengths[first] = bytes.length;
+            this.inAdded[first] = true;
+            this.addedSize += bytes.length;
+        }
+        this.length += bytes.length - length;
+    }
+
+    /**
+     * Assembles the content
+     *
+     * @return  The content, in a new buffer
+     */
+    public ByteBuffer toByteBuffer()
+    {
+        final ByteBuffer rc = ByteBuffer.allocate(this.length);
+        for (int i = 0; i < this.count; i++)
+            if (this.inAdded[i])
+                rc.put(this.added, this.starts[i], this.lengths[i]);
+            else
+            {
+                final ByteBuffer slice = this.original.duplicate();
+                slice.limit(this.starts[i] + this.lengths[i]);
+                slice.position(this.starts[i]);
+                rc.put(slice);
+            }
+        rc.flip();
+        return rc;
+    }
+
+    /**
+     * Makes sure that a piece starts at an offset, by splitting the piece the offset is in
+     *
+     * @param   offset  The offset
+     * @return          The index of the piece that starts at the offset, the number of pieces if at the end
+     */
+    private int split(final int offset)
+    {
+        int pos = 0, i = 0;
+        while ((i < this.count) && (pos + this.lengths[i] <= offset))
+            pos += this.lengths[i++];
+        if ((i == this.count) || (pos == offset))
+            return i;
+        this.ensureCapacity(this.count + 1);
+        System.arraycopy(this.starts,  i, this.starts,  i + 1, this.count - i);
+        System.arraycopy(this.lengths, i, this.lengths, i + 1, this.count - i);
+        System.arraycopy(this.inAdded, i, this.inAdded, i + 1, this.count - i);
+        this.count++;
+        this.lengths[i] = offset - pos;
+        this.starts[i + 1] += offset - pos;
+        this.lengths[i + 1] -= offset - pos;
+        return i + 1;
+    }
+
+    /**
+     * Makes sure that there is room for a number of pieces
+     *
+     * @param  n  The number of pieces
+     */
+    private void ensureCapacity(final int n)
+    {
+        if (n <= this.starts.length)
+            return;
+        final int capacity = Math.max(this.starts.length << 1, n);
+        this.starts  = Arrays.copyOf(this.starts,  capacity);
+        this.lengths = Arrays.copyOf(this.lengths, capacity);
+        this.inAdded = Arrays.copyOf(this.inAdded, capacity);
+    }
+    
+}
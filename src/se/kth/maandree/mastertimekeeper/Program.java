@@ -19,7 +19,11 @@
 package se.kth.maandree.mastertimekeeper;
 
 import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
 
 
 /**
@@ -42,167 +46,402 @@ public class Program
     /**
      * This is the main entry point of the program
      *
-     * @param   args       Start up arguments (unused)
+     * @param   args       Start up arguments: the schedule files, optionally preceded by {@code --instrument}
+     *                     to enable {@link Instrumentation}, by {@code --colours} and a {@link ColourRules}
+     *                     file, and by {@code --connect} and the socket of a {@link Daemon} to get the first
+     *                     frame from, a single file is reloaded when it changes and its markers can be
+     *                     edited; or {@code --export} followed by the arguments for
+     *                     {@link Exporter#run(String[], int, int, int)}, or the arguments for
+     *                     {@link ICalendar#run(String[])}, or {@code --daemon} followed by the arguments for
+     *                     {@link Daemon#run(String[])}, or {@code --client} followed by the arguments for
+     *                     {@link Daemon#client(String[])}, or the arguments for
+     *                     {@link Agenda#run(String[], int, int)}, or {@code --stats} followed by the
+     *                     arguments for {@link Statistics#run(String[], ForkJoinPool)}, or {@code --merge}
+     *                     followed by the arguments for {@link MergedSchedule#run(String[], ForkJoinPool)}
      * @throws  Throwable  On any error
      */
     public static void main(final String... args) throws Throwable
     {
-	colourmap.put("!", "31");
-	colourmap.put("*", "33;1");
-	colourmap.put("~", "35;1");
-	colourmap.put("^", "36");
-	colourmap.put("-", "35");
-	colourmap.put("+", "31");
-	colourmap.put("/", "32;1");
-	colourmap.put("?", "33");
-	colourmap.put("&", "34");
-	colourmap.put("#", "32");
-	colourmap.put(">", "34;1");
-	
 	final Calendar now = Calendar.getInstance();
-	final int day   = now.get(Calendar.DAY_OF_MONTH);
-	final int month = now.get(Calendar.MONTH);
-	final int year  = now.get(Calendar.YEAR);
-	final int week  = now.get(Calendar.WEEK_OF_YEAR);
+	year  = now.get(Calendar.YEAR);
+	week  = now.get(Calendar.WEEK_OF_YEAR);
+	today = year * 10000 + (now.get(Calendar.MONTH) + 1) * 100 + now.get(Calendar.DAY_OF_MONTH);
+	
+	if ((args.length > 0) && args[0].equals("--export"))
+	{
+	    final int status = Exporter.run(Arrays.copyOfRange(args, 1, args.length), today, year, week);
+	    if (status != 0)
+		System.exit(status);
+	    return;
+	}
+	if ((args.length > 0) && args[0].startsWith("--ics-"))
+	{
+	    final int status = ICalendar.run(args);
+	    if (status != 0)
+		System.exit(status);
+	    return;
+	}
+	if ((args.length > 0) && (args[0].equals("--next") || args[0].equals("--today") || args[0].equals("--range")))
+	{
+	    final int minute = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+	    final int status = Agenda.run(args, today, minute);
+	    if (status != 0)
+		System.exit(status);
+	    return;
+	}
+	if ((args.length > 0) && args[0].equals("--stats"))
+	{
+	    final int status = Statistics.run(Arrays.copyOfRange(args, 1, args.length), pool);
+	    if (status != 0)
+		System.exit(status);
+	    return;
+	}
+	if ((args.length > 0) && args[0].equals("--merge"))
+	{
+	    final int status = MergedSchedule.run(Arrays.copyOfRange(args, 1, args.length), pool);
+	    if (status != 0)
+		System.exit(status);
+	    return;
+	}
+	if ((args.length > 0) && (args[0].equals("--daemon") || args[0].equals("--client")))
+	{
+	    final String[] rest = Arrays.copyOfRange(args, 1, args.length);
+	    final int status = args[0].equals("--daemon") ? Daemon.run(rest) : Daemon.client(rest);
+	    if (status != 0)
+		System.exit(status);
+	    return;
+	}
+	
+	int fileArg = 0;
+	ColourRules rules = null;
+	File socket = null;
+	for (;; fileArg++)
+	    if ((args.length > fileArg + 1) && args[fileArg].equals("--instrument"))
+		Instrumentation.enable();
+	    else if ((args.length > fileArg + 2) && args[fileArg].equals("--colours"))
+		rules = ColourRules.load(new File(args[++fileArg]));
+	    else if ((args.length > fileArg + 2) && args[fileArg].equals("--connect"))
+		socket = new File(args[++fileArg]);
+	    else
+		break;
 	
 	try
 	{
-	    final ArrayList<String> lines = new ArrayList<String>();
-	    final ArrayList<String> raws = new ArrayList<String>();
-	    final Scanner fileScanner = new Scanner(new BufferedInputStream(new FileInputStream(new File(args[0]))));
-	    int cur = 0, lineno = 0;
-	    while (fileScanner.hasNext())
+	    Terminal.initialiseTerminal();
+	    Terminal.openModeSession(false, false, false);
+	    Terminal.setCursorVisibility(false);
+	    
+	    Terminal.watchTerminalSize();
+	    int width  = Terminal.getCachedTerminalWidth();
+	    int height = Terminal.getCachedTerminalHeight();
+	    
+	    final Screen screen = new Screen(width, height);
+	    final OutputBuffer buf = new OutputBuffer(1 << 14);
+	    final WritableByteChannel tty = new FileOutputStream(FileDescriptor.out).getChannel();
+	    final boolean merging = args.length - fileArg > 1;
+	    final String[] rows = (socket == null) || merging ? null : Daemon.frame(socket, new File(args[fileArg]), width, height);
+	    if (rows != null)
+	    {
+		/* Draw the daemon's frame while the file loads, the first real frame only draws the difference */
+		for (int i = 0; i < Math.min(rows.length, height); i++)
+		    screen.setRow(i, rows[i]);
+		screen.flush(buf);
+		System.out.flush();
+		buf.writeTo(tty);
+	    }
+	    
+	    if (merging)
+	    {
+		final ArrayList<File> files = new ArrayList<File>();
+		for (int i = fileArg; i < args.length; i++)
+		    files.add(new File(args[i]));
+		merged = new MergedSchedule(files, pool);
+		file = merged.getFile();
+	    }
+	    final byte[] clashes;
+	    if (merging)
+	    {
+		events = new EventStore(new StringPool());
+		weeks = new WeekIndex();
+		search = new SearchIndex();
+		blocks = new BlockMap();
+		new ScheduleParser(events, weeks, search, blocks).parse(file);
+		clashes = ClashDetector.detect(events);
+	    }
+	    else
 	    {
-		final String line;
-		lines.add(manipulateLine(line = fileScanner.nextLine(), day, month, year, week));
-		raws.add(line);
-		if (correctDay)
+		reloader = new Reloader(new File(args[fileArg]), new StringPool());
+		editor = new MarkerEditor(reloader.getFile());
+		if (editor.getRecovered() > 0)
 		{
-		    cur = lineno;
-		    correctDay = false;
+		    reloader.update(editor.getFile());
+		    message = "Unsaved edits recovered from the journal: " + editor.getRecovered();
 		}
-		lineno++;
+		file = reloader.getFile();
+		events = reloader.getEvents();
+		weeks = reloader.getWeeks();
+		search = reloader.getSearch();
+		blocks = reloader.getBlocks();
+		clashes = reloader.getClashes();
 	    }
+	    final ColourRules fileRules = ColourRules.fromLegend(file, blocks);
+	    fileRules.override(rules);
+	    colouriser = new Colouriser(file, events, clashes, blocks, fileRules, today, year, week);
+	    int cur = Math.max(findToday(), 0);
 	    
-	    Terminal.initialiseTerminal();
-	    Terminal.setEchoFlag(false);
-	    Terminal.setBufferFlag(false);
-	    Terminal.setSignalFlag(false);
-	    Terminal.setCursorVisibility(false);
-	    
-	    StringBuilder buf = new StringBuilder("\033[H\033[2J");
-	    
-	    int width  = Terminal.getTerminalWidth();
-	    int height = Terminal.getTerminalHeight();
 	    int bottom = 2;
 	    int top = 0;
-	    while ((top < raws.size()) && (raws.get(top).startsWith("--- ") == false))
+	    while ((top < file.getLineCount()) && (file.startsWith(top, "--- ") == false))
 		top++;
-	    if (top >= raws.size())
+	    if (top >= file.getLineCount())
 		top = 0;
 	    int dispheight = height - bottom - top;
+	    cache.setCapacity(CACHE_PAGES * height);
+	    highlights.setCapacity(CACHE_PAGES * height);
 	    if (cur < top)
 		cur = top;
 	    
-	    for (int i = 0; i < top; i++)
-		buf.append(lines.get(i));
-	    for (int i = cur, lim = cur + height - bottom - top; i < lim; i++)
-		buf.append(i < lines.size() ? lines.get(i) : "\033[2m~\033[22m\n");
+	    paint(screen, cur, top, bottom, height, message);
+	    screen.flush(buf);
+	    System.out.flush();
+	    buf.writeTo(tty);
 	    
-	    String procent = String.valueOf((int)((cur - top) * 100. / (lines.size() - top - dispheight + 1) + 0.5));
-	    if (procent.length() == 1)
-		procent = '0' + procent;
-	    if (lines.size() < height - bottom)               procent = "ALL";
-	    else if (cur == top)                              procent = "TOP";
-	    else if (cur == lines.size() - dispheight + 1)    procent = "BOT";
-	    else
-		procent += '%';
-	    buf.append("\033[44;33;1m\033[2K  " + procent + "  \033[49;39;21m\n");
-	    System.out.print(buf.toString());
-	    buf = new StringBuilder();
+	    viewCur = cur;
+	    viewWidth = width;
+	    viewHeight = height;
+	    final FramePacer pacer = new FramePacer(FRAME_RATE);
+	    final Thread renderer = startRenderer(pacer, screen, buf, tty, top, bottom);
+	    if (reloader != null)
+		startWatcher(pacer, new File(args[fileArg]), rules);
+	    int reloads = 0;
+	    int selected = -1;
+	    String[] statistics = null;
+	    int statisticsTop = 0;
 	    
-	    int lastWidth = width, lastHeight = height;
+	    ByteArrayOutputStream searchInput = null;
+	    int searchOrigin = 0;
 	    
-	    for (int d = 0; d >= 0; d = System.in.read())
+	    final KeyDecoder keys = new KeyDecoder(System.in);
+	    for (boolean running = true; running;)
 	    {
-		if (d == 'q')
-		    break;
-		
-		width  = Terminal.getTerminalWidth();
-		height = Terminal.getTerminalHeight();
-	        dispheight = height - bottom - top;
-		boolean resized = (width != lastWidth) || (height != lastHeight);
-		
-		int last = cur;
-		switch (d)
+		int key = keys.next();
+		final long keyTime = Instrumentation.start();
+		/* Reloads wait until the keys are handled and the viewport is published,
+		 * so that cur is in the numbering of the shown file throughout */
+		synchronized (fileLock)
 		{
-		    case 53: //page up
-			cur -= dispheight;
-			break;
-		    case 65: //up
-			cur--;
-			break;
+		    synchronized (viewLock)
+		    {
+			/* The file has been reloaded, and the viewport moved with its content */
+			if (reloads != viewReloads)
+			{
+			    reloads = viewReloads;
+			    cur = viewCur;
+			    selected = viewSelected;
+			}
+		    }
+		    
+		    final long sizeTime = Instrumentation.start();
+		    Terminal.updateTerminalSize();
+		    Instrumentation.stop(Instrumentation.TERMINAL_SIZE, sizeTime);
+		    width  = Terminal.getCachedTerminalWidth();
+		    height = Terminal.getCachedTerminalHeight();
+		    dispheight = height - bottom - top;
+		    boolean redraw = false;
+		    
+		    /* Handle all keys that have arrived before drawing, so a burst of moves is drawn as one */
+		    final int last = cur, lastSelected = selected;
+		    message = null;
+		    for (;; key = keys.next())
+		    {
+			final boolean quit = (key == 'q') && (searchInput == null);
+			if ((key == KeyDecoder.KEY_END_OF_INPUT) || (quit && ((stale == false) || resolve(keys, screen, rules))))
+			{
+			    running = false;
+			    break;
+			}
 			
-		    case 54: //page down
-		    case 32: //space
-			cur += dispheight;
-			break;
-		    case 66: //down
-		    case 10: //enter
-			cur++;
+			int target;
+			if (searchInput != null)
+			{
+			    if (key == KeyDecoder.KEY_ESCAPE)
+			    {
+				searchInput = null;
+				setSearch("");
+				cur = searchOrigin;
+			    }
+			    else if (key == 10) //enter
+				searchInput = null;
+			    else
+			    {
+				if ((key == 127) || (key == 8))
+				    deleteLastCharacter(searchInput);
+				else if (key >= ' ')
+				    writeCharacter(searchInput, key);
+				setSearch(searchInput.toString("UTF-8"));
+				cur = (target = nextMatch(searchOrigin - 1)) >= 0 ? target : searchOrigin;
+			    }
+			    redraw = true;
+			}
+			else if ((statistics != null) && ((key == KeyDecoder.KEY_UP) || (key == KeyDecoder.KEY_DOWN) ||
+							  (key == KeyDecoder.KEY_PAGE_UP) || (key == KeyDecoder.KEY_PAGE_DOWN)))
+			{
+			    if ((key == KeyDecoder.KEY_UP) || (key == KeyDecoder.KEY_DOWN))
+				statisticsTop += key == KeyDecoder.KEY_UP ? -1 : 1;
+			    else
+				statisticsTop += key == KeyDecoder.KEY_PAGE_UP ? -dispheight : dispheight;
+			    if (statisticsTop > statistics.length - dispheight)
+				statisticsTop = statistics.length - dispheight;
+			    if (statisticsTop < 0)
+				statisticsTop = 0;
+			    redraw = true;
+			}
+			else
+			    switch (key)
+			    {
+				case KeyDecoder.KEY_PAGE_UP:
+				    cur -= dispheight;
+				    break;
+				case KeyDecoder.KEY_UP:
+				    cur--;
+				    break;
+				
+				case KeyDecoder.KEY_PAGE_DOWN:
+				case ' ':
+				    cur += dispheight;
+				    break;
+				case KeyDecoder.KEY_DOWN:
+				case 10: //enter
+				    cur++;
+				    break;
+				
+				case 't': //today
+				    if ((target = findToday()) >= 0)
+					cur = target;
+				    break;
+				case 'w': //next week
+				    if ((target = weeks.nextWeek(cur)) >= 0)
+					cur = target;
+				    break;
+				case 'b': //previous week
+				    if ((target = weeks.previousWeek(cur)) >= 0)
+					cur = target;
+				    break;
+				case 'g': //go to date or week
+				    final String input = readPrompt(keys, screen, "Go to (yyyy-mm-dd, mm-dd or vNN [yyyy]): ");
+				    if ((input != null) && ((target = findInput(input)) >= 0))
+					cur = target;
+				    redraw = true;
+				    break;
+				
+				case '/': //search
+				    searchInput = new ByteArrayOutputStream();
+				    searchOrigin = cur;
+				    redraw = true;
+				    break;
+				case 'n': //next match
+				    if ((target = nextMatch(cur)) >= 0)
+					cur = target;
+				    break;
+				case 'N': //previous match
+				    if ((target = previousMatch(cur)) >= 0)
+					cur = target;
+				    break;
+				
+				case 'j': //select next event
+				case 'k': //select previous event
+				    if ((selected < cur) || (selected >= cur + dispheight))
+					selected = key == 'j' ? cur - 1 : cur + dispheight;
+				    if ((target = nextEvent(selected, key == 'j' ? 1 : -1)) >= 0)
+					selected = target;
+				    else if ((selected < cur) || (selected >= cur + dispheight))
+					selected = -1;
+				    if (selected >= cur + dispheight)
+					cur = selected - dispheight + 1;
+				    else if ((selected >= 0) && (selected < cur))
+					cur = selected;
+				    break;
+				case 'm': //next attendance marker
+				case 'M': //previous attendance marker
+				    if ((editor == null) || (file.getLineCount() == 0))
+					break;
+				    redraw = true;
+				    if (stale && (resolve(keys, screen, rules) == false))
+					break;
+				    if ((selected < cur) || (selected >= cur + dispheight))
+					selected = (target = nextEvent(cur - 1, 1)) < cur + dispheight ? target : -1;
+				    if (selected >= 0)
+					edit(key, selected, rules);
+				    redraw = true;
+				    break;
+				case 'u': //undo
+				case 18:  //redo (control+r)
+				    if ((editor != null) && ((stale == false) || resolve(keys, screen, rules)))
+					edit(key, selected, rules);
+				    redraw = true;
+				    break;
+				case 'q': //quit, when asked what to do with unsaved edits and cancelled
+				    redraw = true;
+				    break;
+				
+				case 's': //statistics
+				    if (statistics == null)
+				    {
+					final Statistics gathered = new Statistics(events.getStrings());
+					gathered.add(file, events, blocks);
+					statistics = gathered.format();
+					statisticsTop = 0;
+				    }
+				    else
+					statistics = null;
+				    redraw = true;
+				    break;
+				case KeyDecoder.KEY_ESCAPE:
+				    redraw = statistics != null;
+				    statistics = null;
+				    break;
+				
+				case 'i': //instrumentation overlay
+				    Instrumentation.toggleOverlay();
+				    redraw = true;
+				    break;
+			    }
+			if (cur > file.getLineCount() - dispheight / 4)
+			    cur = file.getLineCount() - dispheight / 4;
+			if (cur < top)
+			    cur = top;
+			
+			if (keys.hasPending() == false)
+			    break;
+		    }
+		    if (renderError != null)
+			throw renderError;
+		    if (running == false)
 			break;
+		    
+		    if ((cur == last) && (selected == lastSelected) && (redraw == false) && (width == viewWidth) && (height == viewHeight))
+			continue;
+		    synchronized (viewLock)
+		    {
+			viewCur = cur;
+			viewWidth = width;
+			viewHeight = height;
+			viewBottomText = searchInput == null ? message : ("/" + searchInput.toString("UTF-8"));
+			viewSelected = selected;
+			viewStatistics = statistics == null ? null : Arrays.copyOfRange(statistics, statisticsTop, statistics.length);
+			viewRedraw |= redraw;
+			if (viewKeyTime == 0)
+			    viewKeyTime = keyTime;
+		    }
 		}
-		if (cur > lines.size() - dispheight / 4)
-		    cur = lines.size() - dispheight / 4;
-		if (cur < top)
-		    cur = top;
-		
-		int diff = cur - last;
-		if ((diff == 0) && (resized == false))
-		    continue;
-		
-		if ((diff == 1) && (resized == false))
-		{
-		    buf.append("\033[" + (height - 1) + ";1H\033[2K\033[1S\033[1;1H");
-		    for (int i = 0; i < top; i++)
-			buf.append("\033[2K" + lines.get(i));
-		    buf.append("\033[" + (height - 2) + ";1H");
-		    int i = last + dispheight;
-		    buf.append("\033[2K" + (i < lines.size() ? lines.get(i) : "\033[2m~\033[22m\n"));
-		}
-		else if ((diff == -1) && (resized == false))
-		{
-		    buf.append("\033[" + (height - 1) + ";1H\033[2K\033[1T\033[1;1H");
-		    for (int i = 0; i < top; i++)
-			buf.append("\033[2K" + lines.get(i));
-		    buf.append("\033[2K" + (cur < lines.size() ? lines.get(cur) : "\033[2m~\033[22m\n"));
-		    buf.append("\033[" + (height - 1) + ";1H");
-		}
-		else
-		{
-		    buf.append("\033[1;1H\033[2J");
-		    for (int i = 0; i < top; i++)
-			buf.append(lines.get(i));
-		    for (int i = cur, lim = cur + dispheight; i < lim; i++)
-			buf.append(i < lines.size() ? lines.get(i) : "\033[2m~\033[22m\n");
-		}
-		
-		procent = String.valueOf((int)((cur - top) * 100. / (lines.size() - top - dispheight + 1) + 0.5));
-		if (procent.length() == 1)
-		    procent = '0' + procent;
-		if (lines.size() < height - bottom)               procent = "ALL";
-		else if (cur == top)                              procent = "TOP";
-		else if (cur == lines.size() - dispheight + 1)    procent = "BOT";
-		else
-		    procent += '%';
-		buf.append("\033[44;33;1m\033[2K  " + procent + "  \033[49;39;21m\n");
-		
-		System.out.print(buf.toString());
-		buf = new StringBuilder();
-		
-		lastWidth = width;
-		lastHeight = height;
+		if (pacer.request())
+		    Instrumentation.skipped();
 	    }
+	    
+	    pacer.stop();
+	    renderer.join();
+	    if (renderError != null)
+		throw renderError;
 	}
 	catch (final Throwable err)
 	{
@@ -210,165 +449,989 @@ public class Program
 	    throw err;
 	}
 	finally
-        {
-	    Terminal.setEchoFlag(true);
-	    Terminal.setBufferFlag(true);
-	    Terminal.setSignalFlag(true);
+	{
+	    Terminal.closeModeSession();
 	    Terminal.setCursorVisibility(true);
 	    Terminal.terminateTerminal();
+	    System.out.flush();
+	    if (editor != null)
+		synchronized (fileLock)
+		{
+		    try
+		    {
+			if (stale)
+			    System.err.println("mastertimekeeper: the file was changed by another program, "
+					       + editor.getUnsaved() + " unsaved edits were not written");
+			else
+			    editor.compact();
+		    }
+		    catch (final IOException err)
+		    {
+			System.err.println("mastertimekeeper: cannot save edits, they are kept in the journal: " + err.getMessage());
+		    }
+		}
+	    Instrumentation.report(System.err);
 	}
     }
     
     
     
     /**
-     * Used by {@link #manipulateLine(String)}
+     * The maximum number of frames drawn per second
+     */
+    private static final int FRAME_RATE = 60;
+    
+    /**
+     * The number of screens worth of lines to keep in {@link #cache}
+     */
+    private static final int CACHE_PAGES = 4;
+    
+    /**
+     * The number of milliseconds to wait for more changes to the file before reloading it
+     */
+    private static final int RELOAD_DELAY = 50;
+    
+    /**
+     * Status bar position: the whole file fits on the screen
+     */
+    private static final int STATUS_ALL = -1;
+    
+    /**
+     * Status bar position: at the top of the file
+     */
+    private static final int STATUS_TOP = -2;
+    
+    /**
+     * Status bar position: at the bottom of the file
+     */
+    private static final int STATUS_BOT = -3;
+    
+    /**
+     * Reloads the schedule file when it changes, {@code null} if several files are shown
+     */
+    private static Reloader reloader = null;
+    
+    /**
+     * Edits the markers of the schedule file, {@code null} if several files are shown
+     */
+    private static MarkerEditor editor = null;
+    
+    /**
+     * Whether the file has been changed by another program while there were edits that had not been written
+     * to it, the edits are kept in the journal until the user has decided what to do with them
+     */
+    private static boolean stale = false;
+    
+    /**
+     * Message to show on the bottom line until the next key, {@code null} for none
+     */
+    private static String message = null;
+    
+    /**
+     * The schedule file
+     */
+    private static ScheduleFile file;
+    
+    /**
+     * The schedule files merged into {@link #file}, {@code null} if only one file is shown
+     */
+    private static MergedSchedule merged = null;
+    
+    /**
+     * Colourises the lines of the schedule file
+     */
+    private static Colouriser colouriser;
+    
+    /**
+     * The pool lines are colourised in
+     */
+    private static final ForkJoinPool pool = new ForkJoinPool();
+    
+    /**
+     * Colourised lines, colourised when they are first displayed
+     */
+    private static final LineCache cache = new LineCache();
+    
+    /**
+     * Colourised lines with the current search highlighted, highlighted when they are first displayed
+     */
+    private static final LineCache highlights = new LineCache();
+    
+    /**
+     * The position shown in {@link #statusText}, a percentage or one of the {@code STATUS_*} constants
+     */
+    private static int statusPosition = Integer.MIN_VALUE;
+    
+    /**
+     * The text of the status bar, reused while the position it shows is unchanged
+     */
+    private static String statusText = null;
+    
+    /**
+     * The merged file whose name is shown in {@link #statusText}, -1 if none
+     */
+    private static int statusSource = -1;
+    
+    /**
+     * The parsed events of the schedule file
+     */
+    private static EventStore events;
+    
+    /**
+     * Index over the week headers and dates of the schedule file
+     */
+    private static WeekIndex weeks;
+    
+    /**
+     * Index over the words of the schedule file
+     */
+    private static SearchIndex search;
+    
+    /**
+     * The context of each line of the schedule file
+     */
+    private static BlockMap blocks;
+    
+    /**
+     * The lines matching the current search, sorted
+     */
+    private static int[] matches = {};
+    
+    /**
+     * The words of the current search, in lower case
+     */
+    private static String[] searchTerms = {};
+    
+    /**
+     * The current search
+     */
+    private static String searchQuery = "";
+    
+    /**
+     * Today's date, as {@code yyyymmdd}
+     */
+    private static int today;
+    
+    /**
+     * The current year
+     */
+    private static int year;
+    
+    /**
+     * The current week of the year
+     */
+    private static int week;
+    
+    /**
+     * Guards the schedule file and its indices, which the watcher thread replaces when the file is reloaded,
+     * held by the input thread while it handles keys; taken before {@link #viewLock}
+     */
+    private static final Object fileLock = new Object();
+    
+    /**
+     * Guards the {@code view*} fields and the search state, which are shared by the input and render threads
+     */
+    private static final Object viewLock = new Object();
+    
+    /**
+     * Guards writing to the terminal
+     */
+    private static final Object outputLock = new Object();
+    
+    /**
+     * The first line in the viewport, as last set by the input thread
+     */
+    private static int viewCur;
+    
+    /**
+     * The width of the terminal, as last seen by the input thread
+     */
+    private static int viewWidth;
+    
+    /**
+     * The height of the terminal, as last seen by the input thread
+     */
+    private static int viewHeight;
+    
+    /**
+     * The text for the bottom line, {@code null} for none
+     */
+    private static String viewBottomText = null;
+    
+    /**
+     * The selected line, -1 if none
+     */
+    private static int viewSelected = -1;
+    
+    /**
+     * When the earliest keystroke not yet drawn was read, as returned by {@link Instrumentation#start()}
+     */
+    private static long viewKeyTime = 0;
+    
+    /**
+     * Whether the next frame must be drawn even if the viewport has not moved
+     */
+    private static boolean viewRedraw = false;
+    
+    /**
+     * The number of lines the content of the viewport has moved since the last frame, by reloads of the file
      */
-    private static int legendState = 0;
+    private static int viewShift = 0;
     
     /**
-     * Used by {@link #manipulateLine(String)}
+     * The lines of the statistics view, {@code null} if the schedule is shown
      */
-    private static final HashMap<String, String> colourmap = new HashMap<String, String>();
+    private static String[] viewStatistics = null;
     
     /**
-     * Used by {@link #manipulateLine(String)}
+     * The number of times the file has been reloaded
      */
-    private static boolean correctYear = false;
+    private static int viewReloads = 0;
     
     /**
-     * Used by both methods
+     * The error that stopped the render thread, {@code null} if none
      */
-    private static boolean correctDay = false;
+    private static volatile Throwable renderError = null;
     
     
     
     /**
-     * Adds colours to a line
+     * Starts the thread that draws the viewport, it draws the latest state published in the {@code view*} fields
+     * whenever a frame is requested, so that slow writes to the terminal do not hold up reading input
      *
-     * @param   line   The line
-     * @param   day    The current day of the month
-     * @param   month  The current month of the year
-     * @param   year   The current year
-     * @param   week   The current week of the year
-     * @return         The line colourised
+     * @param   pacer   Paces the frames
+     * @param   screen  The screen, as drawn by the first frame
+     * @param   buf     Output buffer for the terminal
+     * @param   tty     The terminal
+     * @param   top     The number of pinned lines at the top
+     * @param   bottom  The number of lines at the bottom, the status bar and the bottom line
+     * @return          The thread
      */
-    public static String manipulateLine(final String line, final int day, final int month, final int year, final int week)
+    private static Thread startRenderer(final FramePacer pacer, final Screen screen, final OutputBuffer buf,
+					final WritableByteChannel tty, final int top, final int bottom)
     {
-	final StringBuilder out = new StringBuilder();
-	
-	if (line.startsWith("--- "))
+	final Thread thread = new Thread("renderer")
+		{
+		    /**
+		     * {@inheritDoc}
+		     */
+		    @Override
+		    public void run()
+		    {
+			try
+			{
+			    int shownCur = viewCur, shownWidth = viewWidth, shownHeight = viewHeight;
+			    while (pacer.await())
+			    {
+				final long keyTime;
+				synchronized (viewLock)
+				{
+				    keyTime = viewKeyTime;
+				    viewKeyTime = 0;
+				    shownCur += viewShift;
+				    viewShift = 0;
+				    final int width = viewWidth, height = viewHeight;
+				    final boolean resized = (width != shownWidth) || (height != shownHeight);
+				    if (resized)
+				    {
+					cache.setCapacity(CACHE_PAGES * height);
+					highlights.setCapacity(CACHE_PAGES * height);
+					screen.resize(width, height);
+				    }
+				    if ((viewCur == shownCur) && (viewRedraw == false) && (resized == false))
+					continue;
+				    screen.scroll(buf, top, height - bottom, viewCur - shownCur);
+				    paint(screen, viewCur, top, bottom, height, viewBottomText);
+				    screen.flush(buf);
+				    shownCur = viewCur;
+				    shownWidth = width;
+				    shownHeight = height;
+				    viewRedraw = false;
+				}
+				synchronized (outputLock)
+				{
+				    System.out.flush();
+				    final int bytes = buf.length();
+				    buf.writeTo(tty);
+				    Instrumentation.frame(keyTime, bytes);
+				}
+			    }
+			}
+			catch (final Throwable err)
+			{
+			    renderError = err;
+			}
+		    }
+		};
+	thread.setDaemon(true);
+	thread.start();
+	return thread;
+    }
+    
+    /**
+     * Starts the thread that reloads the schedule file when it changes, only blocks that have changed are
+     * parsed and only lines that have changed are colourised again, and a frame is drawn; since only the
+     * difference between frames is written, nothing is written if no change is visible
+     *
+     * @param   pacer        Paces the frames
+     * @param   path         The schedule file
+     * @param   rules        Colour rules that override those in the file's legend, {@code null} if none
+     * @return               The thread
+     * @throws  IOException  If the file's directory cannot be watched
+     */
+    private static Thread startWatcher(final FramePacer pacer, final File path, final ColourRules rules) throws IOException
+    {
+	final File dir = path.getAbsoluteFile().getParentFile();
+	final WatchService watcher = FileSystems.getDefault().newWatchService();
+	dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				       StandardWatchEventKinds.ENTRY_MODIFY,
+				       StandardWatchEventKinds.ENTRY_DELETE);
+	final Thread thread = new Thread("watcher")
+		{
+		    /**
+		     * {@inheritDoc}
+		     */
+		    @Override
+		    public void run()
+		    {
+			try
+			{
+			    for (;;)
+			    {
+				WatchKey key = watcher.take();
+				boolean changed = false;
+				/* Editors write files in several steps, wait until they are done */
+				for (; key != null; key = watcher.poll(RELOAD_DELAY, TimeUnit.MILLISECONDS))
+				{
+				    for (final WatchEvent<?> event : key.pollEvents())
+					changed |= (event.context() == null) || path.getName().equals(event.context().toString());
+				    key.reset();
+				}
+				if (changed && path.exists())
+				    try
+				    {
+					synchronized (fileLock)
+					{
+					    if (reloader.reload() == false)
+						continue;
+					    /* Edits that have not been written to the file are kept until the user has been asked */
+					    final int unsaved = editor.getUnsaved();
+					    if (unsaved > 0)
+						stale = true;
+					    else
+						editor.reset(reloader.getFile());
+					    reloaded(rules);
+					    if (stale)
+						synchronized (viewLock)
+						{
+						    viewBottomText = "The file was changed by another program, "
+								     + unsaved + " unsaved edits are kept in the journal";
+						}
+					}
+					pacer.request();
+				    }
+				    catch (final IOException err)
+				    {
+					//The file is being replaced, it will be reloaded when it has been
+				    }
+			    }
+			}
+			catch (final InterruptedException err)
+			{
+			    //Stop watching
+			}
+		    }
+		};
+	thread.setDaemon(true);
+	thread.start();
+	return thread;
+    }
+    
+    /**
+     * Replaces the shown file with the one just loaded by {@link #reloader}, keeping the viewport
+     * on the same content and keeping colourised lines that have not changed
+     *
+     * @param  rules  Colour rules that override those in the file's legend, {@code null} if none
+     */
+    private static void reloaded(final ColourRules rules)
+    {
+	final ScheduleFile next = reloader.getFile();
+	final ColourRules fileRules = ColourRules.fromLegend(next, reloader.getBlocks());
+	fileRules.override(rules);
+	final Colouriser nextColouriser = new Colouriser(next, reloader.getEvents(), reloader.getClashes(),
+							 reloader.getBlocks(), fileRules, today, year, week);
+	final int[] found = reloader.getSearch().find(searchQuery);
+	final int[] map = reloader.getLineMap();
+	synchronized (viewLock)
 	{
-	    if (line.startsWith("--- Legend ---"))
-		legendState = 1;
-	    else if (legendState == 1)
-		legendState = 2;
-	    out.append("\033[47;30m\033[2K");
-	    out.append(line);
-	    out.append("\033[49;39m\n");
+	    /* Keep the viewport at the same distance from the nearest unchanged line above it */
+	    final int cur = Math.max(Math.min(remap(map, viewCur), next.getLineCount() - 1), 0);
+	    final int selected = viewSelected < 0 ? -1 : remap(map, viewSelected);
+	    viewSelected = (selected < next.getLineCount()) && (reloader.getEvents().findByLine(selected) >= 0) ? selected : -1;
+	    
+	    file = next;
+	    events = reloader.getEvents();
+	    weeks = reloader.getWeeks();
+	    search = reloader.getSearch();
+	    blocks = reloader.getBlocks();
+	    colouriser = nextColouriser;
+	    cache.remap(map);
+	    highlights.clear();
+	    matches = found;
+	    statusPosition = Integer.MIN_VALUE;
+	    viewShift += cur - viewCur;
+	    viewCur = cur;
+	    viewRedraw = true;
+	    viewReloads++;
 	}
-	else if (legendState < 2)
+    }
+    
+    /**
+     * Finds where a line is after a reload, it is kept at the same distance from the nearest unchanged line above it
+     *
+     * @param   map   The new line of each line, -1 for changed lines
+     * @param   line  The line
+     * @return        The new line
+     */
+    private static int remap(final int[] map, final int line)
+    {
+	for (int i = Math.min(line, map.length - 1); i >= 0; i--)
+	    if (map[i] >= 0)
+		return map[i] + line - i;
+	return line;
+    }
+    
+    /**
+     * Edits the markers of the schedule file, and shows the edited file
+     *
+     * @param  key    The key: 'm' for the next marker, 'M' for the previous marker, 'u' to undo, or control+r to redo
+     * @param  line   The line of the event to change the marker of
+     * @param  rules  Colour rules that override those in the file's legend, {@code null} if none
+     */
+    private static void edit(final int key, final int line, final ColourRules rules)
+    {
+	synchronized (fileLock)
 	{
-	    final String colour;
-	    if ((legendState == 1) && (line.length() > 0) && ((colour = colourmap.get(line.substring(0, 1))) != null))
+	    try
+	    {
+		if ((key == 'm') || (key == 'M'))
+		{
+		    if (editor.cycle(reloader.getFile(), line, key == 'm' ? 1 : -1) == false)
+			message = "This line has no marker that can be changed";
+		}
+		else if ((key == 'u') ? (editor.undo() == false) : (editor.redo() == false))
+		    message = key == 'u' ? "Nothing to undo" : "Nothing to redo";
+	    }
+	    catch (final IOException err)
 	    {
-		out.append("\033[" + colour + "m");
-		out.append(line.substring(0, 1));
-		out.append("\033[21;39;49;0m");
-		out.append(line.substring(1));
+		message = "Cannot save the edit: " + err.getMessage();
 	    }
-	    else
-		out.append(line);
-	    out.append('\n');
+	    final MarkerEditor.Edit edit = editor.takeEdit();
+	    if (edit == null)
+		return;
+	    /* Only the edited marker is changed in the shown file, if it is the marker of an event with a date */
+	    final int[] lines;
+	    synchronized (viewLock)
+	    {
+		lines = reloader.patch(edit.offset, edit.old.length, edit.bytes);
+		for (int i = 0; (lines != null) && (i < lines.length); i++)
+		{
+		    cache.remove(lines[i]);
+		    highlights.remove(lines[i]);
+		}
+		viewRedraw = true;
+	    }
+	    if ((lines == null) && reloader.update(editor.getFile()))
+		reloaded(rules);
 	}
-	else if (line.startsWith(">>"))
+    }
+    
+    /**
+     * Asks what to do with the edits that have not been written to the file when the file has been changed
+     * by another program, they can be discarded or written over the change
+     *
+     * @param   keys         The terminal's input
+     * @param   screen       The screen
+     * @param   rules        Colour rules that override those in the file's legend, {@code null} if none
+     * @return               Whether the edits were discarded or written, so that the file can be edited again
+     * @throws  IOException  On I/O error on the terminal
+     */
+    private static boolean resolve(final KeyDecoder keys, final Screen screen, final ColourRules rules) throws IOException
+    {
+	final String input = readPrompt(keys, screen, "The file was changed by another program, discard (d) or write (w) the "
+						      + editor.getUnsaved() + " unsaved edits? ");
+	if ("d".equals(input))
+	    try
+	    {
+		editor.reset(reloader.getFile());
+	    }
+	    catch (final IOException err)
+	    {
+		message = "Cannot discard the edits: " + err.getMessage();
+		return false;
+	    }
+	else if ("w".equals(input))
+	    try
+	    {
+		editor.compact();
+		if (reloader.update(editor.getFile()))
+		    reloaded(rules);
+	    }
+	    catch (final IOException err)
+	    {
+		message = "Cannot save the edits: " + err.getMessage();
+		return false;
+	    }
+	else
 	{
-	    out.append("\033[31m");
-	    out.append(line);
-	    out.append("\033[39m\n");
+	    message = "The unsaved edits are kept in the journal";
+	    return false;
 	}
-	else if (line.startsWith("::"))
-	{
-	    correctDay = correctYear = line.startsWith("::Vecka " + week + ", " + year);
-	    if (correctYear)
-		out.append("\033[32;1m");
+	stale = false;
+	return true;
+    }
+    
+    /**
+     * Finds the next or previous event
+     *
+     * @param   line       The line to start after, or before
+     * @param   direction  1 for the next event, -1 for the previous event
+     * @return             The event's line, -1 if none
+     */
+    private static int nextEvent(final int line, final int direction)
+    {
+	for (int i = line + direction, n = file.getLineCount(); (0 <= i) && (i < n); i += direction)
+	    if (events.findByLine(i) >= 0)
+		return i;
+	return -1;
+    }
+    
+    /**
+     * Draws the pinned lines, the viewport, the status bar and the bottom line to the back buffer of a screen
+     *
+     * @param  screen      The screen
+     * @param  cur         The first line in the viewport
+     * @param  top         The number of pinned lines at the top
+     * @param  bottom      The number of lines at the bottom, the status bar and the bottom line
+     * @param  height      The height of the terminal
+     * @param  bottomText  The text for the bottom line, {@code null} for none
+     */
+    private static void paint(final Screen screen, final int cur, final int top, final int bottom, final int height, final String bottomText)
+    {
+	final int dispheight = height - bottom - top;
+	prefetch(0, Math.min(top, height - bottom));
+	prefetch(cur, Math.min(cur + dispheight, file.getLineCount()));
+	for (int i = 0, n = Math.min(top, height - bottom); i < n; i++)
+	    screen.setRow(i, getLine(i));
+	for (int i = 0; i < dispheight; i++)
+	    if (viewStatistics != null)
+		screen.setRow(top + i, i < viewStatistics.length ? viewStatistics[i] : "");
+	    else if (cur + i == viewSelected)
+		screen.setRow(top + i, select(getLine(cur + i)));
 	    else
-		out.append("\033[34;1m");
-	    out.append(line.substring(0, 2));
-	    out.append("\033[21m");
-	    out.append(line.substring(2));
-	    out.append("\033[39m\n");
+		screen.setRow(top + i, cur + i < file.getLineCount() ? getLine(cur + i) : "\033[2m~\033[22m\n");
+	
+	final int position = getStatusPosition(cur, top, bottom, height, file.getLineCount());
+	final int source = (merged == null) || (file.getLineCount() == 0) ? -1 : merged.getSource(Math.min(cur, file.getLineCount() - 1));
+	if ((position != statusPosition) || (source != statusSource))
+	{
+	    statusPosition = position;
+	    statusSource = source;
+	    statusText = getStatusText(position, source < 0 ? null : merged.getSourceFile(source).getName());
+	}
+	if ((height >= 2) && Instrumentation.isOverlayShown())
+	    screen.setRow(height - 2, statusText.replace("  \033[49;39;21m\n", "  " + Instrumentation.overlay() + "\033[49;39;21m\n"));
+	else if (height >= 2)
+	    screen.setRow(height - 2, statusText);
+	if (height >= 1)
+	    screen.setRow(height - 1, bottomText == null ? "" : bottomText);
+    }
+    
+    /**
+     * Gets the position to show in the status bar
+     *
+     * @param   cur        The first line in the viewport
+     * @param   top        The number of pinned lines at the top
+     * @param   bottom     The number of lines at the bottom, the status bar and the bottom line
+     * @param   height     The height of the terminal
+     * @param   lineCount  The number of lines in the file
+     * @return             The position, a percentage or one of the {@code STATUS_*} constants
+     */
+    static int getStatusPosition(final int cur, final int top, final int bottom, final int height, final int lineCount)
+    {
+	final int dispheight = height - bottom - top;
+	if (lineCount < height - bottom)           return STATUS_ALL;
+	if (cur == top)                            return STATUS_TOP;
+	if (cur == lineCount - dispheight + 1)     return STATUS_BOT;
+	return (int)((cur - top) * 100. / (lineCount - top - dispheight + 1) + 0.5);
+    }
+    
+    /**
+     * Creates the status bar
+     *
+     * @param   position  The position to show, a percentage or one of the {@code STATUS_*} constants
+     * @param   label     Text to show after the position, {@code null} for none
+     * @return            The status bar, as a row for a {@link Screen}
+     */
+    static String getStatusText(final int position, final String label)
+    {
+	String procent = String.valueOf(position);
+	if (procent.length() == 1)
+	    procent = '0' + procent;
+	if (position == STATUS_ALL)        procent = "ALL";
+	else if (position == STATUS_TOP)   procent = "TOP";
+	else if (position == STATUS_BOT)   procent = "BOT";
+	else
+	    procent += '%';
+	if (label != null)
+	    procent += "  " + label;
+	return "\033[44;33;1m\033[2K  " + procent + "  \033[49;39;21m\n";
+    }
+    
+    /**
+     * Colourises the lines in a range that are not cached, in parallel if there are several
+     *
+     * @param  start  The first line
+     * @param  end    The line after the last line
+     */
+    private static void prefetch(final int start, final int end)
+    {
+	int first = start, last = end;
+	while ((first < last) && (cache.get(first) != null))
+	    first++;
+	while ((last > first) && (cache.get(last - 1) != null))
+	    last--;
+	if (last - first < 2)
+	    return;
+	final long time = Instrumentation.start();
+	final String[] lines = colouriser.colourise(first, last, pool);
+	Instrumentation.stop(Instrumentation.COLOURISE, time);
+	for (int i = first; i < last; i++)
+	    if (cache.get(i) == null)
+		cache.put(i, lines[i - first]);
+    }
+    
+    /**
+     * Gets a colourised line, colourising it if it is not cached
+     *
+     * @param   index  The line's index in the file
+     * @return         The line colourised
+     */
+    private static String getLine(final int index)
+    {
+	String line = cache.get(index);
+	if (line == null)
+	{
+	    final long start = Instrumentation.start();
+	    cache.put(index, line = colouriser.colourise(index));
+	    Instrumentation.stop(Instrumentation.COLOURISE, start);
 	}
-	else if (line.startsWith("#"))
+	if ((matches.length > 0) && (Arrays.binarySearch(matches, index) >= 0))
 	{
-	    out.append("\033[32m");
-	    out.append(line);
-	    out.append("\033[39m\n");
+	    final String colourised = line;
+	    if ((line = highlights.get(index)) == null)
+		highlights.put(index, line = highlight(colourised, searchTerms));
 	}
-	else if (line.length() > 53)
+	return line;
+    }
+    
+    /**
+     * Sets the current search
+     *
+     * @param  query  The search, words that must be prefixes of words on matching lines
+     */
+    private static void setSearch(final String query)
+    {
+	final int[] found = search.find(query);
+	final String[] terms = SearchIndex.tokenise(query);
+	synchronized (viewLock)
 	{
-	    if (correctYear && line.substring(6, 8).equals((month < 9 ? "0" : "") + (month + 1)) && line.substring(13, 15).equals((day < 10 ? "0" : "") + day))
+	    matches = found;
+	    searchTerms = terms;
+	    searchQuery = query;
+	    highlights.clear();
+	}
+    }
+    
+    /**
+     * Finds the next line matching the current search, wrapping around at the end
+     *
+     * @param   line  The line after which to search
+     * @return        The matching line, -1 if none
+     */
+    private static int nextMatch(final int line)
+    {
+	if (matches.length == 0)
+	    return -1;
+	int i = Arrays.binarySearch(matches, line + 1);
+	i = i < 0 ? ~i : i;
+	return matches[i == matches.length ? 0 : i];
+    }
+    
+    /**
+     * Finds the previous line matching the current search, wrapping around at the beginning
+     *
+     * @param   line  The line before which to search
+     * @return        The matching line, -1 if none
+     */
+    private static int previousMatch(final int line)
+    {
+	if (matches.length == 0)
+	    return -1;
+	int i = Arrays.binarySearch(matches, line);
+	i = (i < 0 ? ~i : i) - 1;
+	return matches[i < 0 ? matches.length - 1 : i];
+    }
+    
+    /**
+     * Highlights, in reverse video, the words of a colourised line that start with any of a set of words
+     *
+     * @param   line   The colourised line
+     * @param   terms  The words to highlight, in lower case
+     * @return         The line highlighted
+     */
+    private static String highlight(final String line, final String[] terms)
+    {
+	final StringBuilder plain = new StringBuilder(line.length());
+	for (int i = 0, n = line.length(); i < n;)
+	    if (line.charAt(i) == '\033')
+		i = escapeEnd(line, i);
+	    else
+		plain.append(line.charAt(i++));
+	final String lower = plain.toString().toLowerCase(Locale.ROOT);
+	if (lower.length() != plain.length())
+	    return line;
+	
+	final boolean[] marked = new boolean[lower.length() + 1];
+	for (final String term : terms)
+	    for (int i = lower.indexOf(term); i >= 0; i = lower.indexOf(term, i + 1))
+		if ((i == 0) || (Character.isLetterOrDigit(lower.charAt(i - 1)) == false))
+		    Arrays.fill(marked, i, i + term.length(), true);
+	
+	final StringBuilder out = new StringBuilder(line.length() + 32);
+	boolean on = false;
+	for (int i = 0, p = 0, n = line.length(); i < n;)
+	    if (line.charAt(i) == '\033')
 	    {
-		correctDay = true;
-		out.append("\033[1;32m");
-		out.append(line.substring(0, 16));
-		out.append("\033[21;39m");
+		final int end = escapeEnd(line, i);
+		out.append(line, i, end);
+		if (on)
+		    out.append("\033[7m");
+		i = end;
 	    }
 	    else
-		out.append(line.substring(0, 16));
-	    String colour;
-	    if ((colour = colourmap.get(line.substring(16, 17))) != null)
 	    {
-		out.append("\033[" + colour + "m");
-		out.append(line.substring(16, 17));
-		out.append("\033[21;39;49;0m");
-		if ((colour = colourmap.get(line.substring(29, 30))) != null)
-		{
-		    out.append(line.substring(17, 29));
-		    out.append("\033[" + colour + "m");
-		    out.append(line.substring(29, 30));
-		    out.append("\033[21;39;49;0m");
-		}
-		else
-		    out.append(line.substring(17, 30));
+		if (marked[p] != on)
+		    out.append((on = marked[p]) ? "\033[7m" : "\033[27m");
+		out.append(line.charAt(i++));
+		p++;
 	    }
-	    else if ((colour = colourmap.get(line.substring(29, 30))) != null)
+	if (on)
+	    out.append("\033[27m");
+	return out.toString();
+    }
+    
+    /**
+     * Shows a colourised line as selected, in reverse video across the whole row
+     *
+     * @param   line  The colourised line
+     * @return        The line in reverse video
+     */
+    private static String select(final String line)
+    {
+	final StringBuilder out = new StringBuilder(line.length() + 64).append("\033[7m\033[2K");
+	for (int i = 0, n = line.length(); i < n;)
+	    if (line.charAt(i) == '\033')
 	    {
-		out.append(line.substring(16, 29));
-		out.append("\033[" + colour + "m");
-		out.append(line.substring(29, 30));
-		out.append("\033[21;39;49;0m");
+		final int end = escapeEnd(line, i);
+		out.append(line, i, end).append("\033[7m");
+		i = end;
 	    }
 	    else
-		out.append(line.substring(16, 30));
-	    
-	    if (line.substring(30, 41).toLowerCase().equals(line.substring(30, 41).toUpperCase()))
-		out.append("\033[32m");
-	    else if (line.substring(30, 41).equals(line.substring(30, 41).toUpperCase()))
-		out.append("\033[31m");
-	    else if (line.substring(30, 41).equals(line.substring(30, 41).toLowerCase()))
-		out.append("\033[33m");
-	    
-	    out.append(line.substring(30, 43));
-	    out.append("\033[39m");
-	    if (line.substring(43, 51).startsWith("<"))
-		out.append("\033[31m");
-	    out.append(line.substring(43, 53));
-	    out.append("\033[39m");
-	    if (line.charAt(53) == '?')
-	        out.append("\033[31m?\033[39m");
-	    else
-		out.append(line.charAt(53));
-	    out.append(line.substring(54));
-	    out.append('\n');
+		out.append(line.charAt(i++));
+	return out.toString();
+    }
+    
+    /**
+     * Finds the end of an escape sequence
+     *
+     * @param   line   The line
+     * @param   start  The position of the escape character
+     * @return         The position after the escape sequence
+     */
+    static int escapeEnd(final String line, final int start)
+    {
+	int i = start + 1;
+	if ((i < line.length()) && (line.charAt(i) == '['))
+	    for (i++; (i < line.length()) && ((line.charAt(i) < '@') || (line.charAt(i) > '~')); i++)
+		;
+	return Math.min(i + 1, line.length());
+    }
+    
+    /**
+     * Waits for a task in a pool, and unwraps its error
+     *
+     * @param   <T>          The type of the task's result
+     * @param   task         The task
+     * @return               The result of the task
+     * @throws  IOException  If the task failed with an I/O error
+     */
+    static <T> T join(final ForkJoinTask<T> task) throws IOException
+    {
+	try
+	{
+	    return task.get();
 	}
-	else
+	catch (final InterruptedException err)
 	{
-	    out.append(line);
-	    out.append('\n');
+	    throw new InterruptedIOException();
 	}
-	return out.toString();
+	catch (final ExecutionException | RuntimeException err)
+	{
+	    /* The pool may rethrow the task's exception wrapped in a RuntimeException */
+	    for (Throwable cause = err; cause != null; cause = cause.getCause())
+		if (cause instanceof IOException)
+		    throw (IOException)cause;
+	    if (err instanceof RuntimeException)
+		throw (RuntimeException)err;
+	    if (err.getCause() instanceof RuntimeException)
+		throw (RuntimeException)(err.getCause());
+	    throw (Error)(err.getCause());
+	}
+    }
+    
+    /**
+     * Finds the line for today: today's first event, or this week's header, or the first event after today
+     *
+     * @return  The line, -1 if the schedule has nothing today or later
+     */
+    private static int findToday()
+    {
+	return findToday(weeks, today, year, week);
+    }
+    
+    /**
+     * Finds the line for today in a file: today's first event, or this week's header, or the first event after today
+     *
+     * @param   weeks  Index over the week headers and dates of the file
+     * @param   today  Today's date, as {@code yyyymmdd}
+     * @param   year   The current year
+     * @param   week   The current week of the year
+     * @return         The line, -1 if the file has nothing today or later
+     */
+    static int findToday(final WeekIndex weeks, final int today, final int year, final int week)
+    {
+	int line = weeks.findDate(today, true);
+	if (line < 0)
+	    line = weeks.findWeek(year, week, true);
+	if (line < 0)
+	    line = weeks.findDate(today, false);
+	return line;
+    }
+    
+    /**
+     * Finds the line for a date or week typed by the user
+     *
+     * @param   input  The date as {@code yyyy-mm-dd} or {@code mm-dd},
+     *                 or the week as {@code vNN} or {@code vNN yyyy}
+     * @return         The line of the first event on or after the date, or of the
+     *                 header of the week or the first week after it, -1 if none
+     */
+    private static int findInput(final String input)
+    {
+	Matcher matcher;
+	if ((matcher = Pattern.compile("^\\s*(?:([0-9]{4})-)?([0-9]{1,2})-([0-9]{1,2})\\s*$").matcher(input)).matches())
+	{
+	    final int y = matcher.group(1) == null ? year : Integer.parseInt(matcher.group(1));
+	    return weeks.findDate(y * 10000 + Integer.parseInt(matcher.group(2)) * 100 + Integer.parseInt(matcher.group(3)), false);
+	}
+	if ((matcher = Pattern.compile("^\\s*[vVwW]\\s*([0-9]{1,2})(?:[\\s,]+([0-9]{4}))?\\s*$").matcher(input)).matches())
+	{
+	    final int y = matcher.group(2) == null ? year : Integer.parseInt(matcher.group(2));
+	    return weeks.findWeek(y, Integer.parseInt(matcher.group(1)), false);
+	}
+	return -1;
+    }
+    
+    /**
+     * Reads a line of input on the bottom line of the terminal
+     *
+     * @param   keys         The terminal's input
+     * @param   screen       The screen, its bottom line is marked as unknown when done
+     * @param   prompt       The text to display before the input
+     * @return               The input, {@code null} if cancelled with escape or end of file
+     * @throws  IOException  On I/O error
+     */
+    private static String readPrompt(final KeyDecoder keys, final Screen screen, final String prompt) throws IOException
+    {
+	final ByteArrayOutputStream input = new ByteArrayOutputStream();
+	final int height = Terminal.getCachedTerminalHeight();
+	final String bottom = "\033[" + height + ";1H\033[2K";
+	synchronized (outputLock)
+	{
+	    Terminal.setCursorVisibility(true);
+	}
+	try
+	{
+	    for (;;)
+	    {
+		synchronized (outputLock)
+		{
+		    System.out.print(bottom + prompt + input.toString("UTF-8"));
+		    System.out.flush();
+		}
+		final int c = keys.next();
+		if ((c == KeyDecoder.KEY_END_OF_INPUT) || (c == KeyDecoder.KEY_ESCAPE))
+		    return null;
+		else if (c == '\n')
+		    return input.toString("UTF-8");
+		else if ((c == 127) || (c == 8))
+		    deleteLastCharacter(input);
+		else if (c >= ' ')
+		    writeCharacter(input, c);
+	    }
+	}
+	finally
+	{
+	    synchronized (outputLock)
+	    {
+		System.out.print(bottom);
+		Terminal.setCursorVisibility(false);
+		System.out.flush();
+	    }
+	    /* The prompt was written behind the screen's back */
+	    synchronized (viewLock)
+	    {
+		screen.invalidate(height - 1);
+	    }
+	}
+    }
+    
+    /**
+     * Removes the last character from UTF-8 encoded input
+     *
+     * @param  input  The input
+     */
+    private static void deleteLastCharacter(final ByteArrayOutputStream input)
+    {
+	final byte[] bytes = input.toByteArray();
+	int n = bytes.length;
+	while ((n > 0) && ((bytes[--n] & 0xC0) == 0x80))
+	    ;
+	input.reset();
+	input.write(bytes, 0, n);
+    }
+    
+    /**
+     * Appends a character to UTF-8 encoded input
+     *
+     * @param   input        The input
+     * @param   character    The character's code point
+     * @throws  IOException  On I/O error
+     */
+    private static void writeCharacter(final ByteArrayOutputStream input, final int character) throws IOException
+    {
+	input.write(new String(Character.toChars(character)).getBytes("UTF-8"));
     }
     
 }
-
@@ -0,0 +1,403 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+
+
+/**
+ * Reloads a schedule file incrementally: the file is split into its blocks,
+ * each block is hashed, and only blocks whose hash is not found among the
+ * blocks of the previous load, in the same order and context, are parsed;
+ * the events of the other blocks are copied. The reloader also tells which
+ * lines are unchanged, and where they moved, so that colourised lines can be
+ * kept. An edit of an attendance marker is patched into the loaded file
+ * without loading it again.
+ * <p>
+ * Files are read into memory rather than mapped, so that the loaded content
+ * does not change when the file is edited in place. The first load uses the
+ * file's {@link ScheduleCache}.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class Reloader
+{
+    /**
+     * Constructor, loads the file
+     *
+     * @param   file         The schedule file
+     * @param   strings      The pool in which types, courses, rooms and comments are interned
+     * @throws  IOException  On I/O error
+     */
+    public Reloader(final File file, final StringPool strings) throws IOException
+    {
+        this.path = file;
+        this.strings = strings;
+        this.load(read(file), null);
+    }
+
+
+
+    /**
+     * The schedule file's path
+     */
+    private final File path;
+
+    /**
+     * The pool in which types, courses, rooms and comments are interned
+     */
+    private final StringPool strings;
+
+    /**
+     * The loaded file
+     */
+    private ScheduleFile file;
+
+    /**
+     * The parsed events of the loaded file
+     */
+    private EventStore events;
+
+    /**
+     * Index over the week headers and dates of the loaded file
+     */
+    private WeekIndex weeks;
+
+    /**
+     * Index over the words of the loaded file
+     */
+    private SearchIndex search;
+
+    /**
+     * The context of each line of the loaded file
+     */
+    private BlockMap blocks;
+
+    /**
+     * The {@link ClashDetector} state of each event of the loaded file
+     */
+    private byte[] clashes;
+
+    /**
+     * The hash of each block of the loaded file
+     */
+    private long[] hashes;
+
+    /**
+     * For each line of the previously loaded file, its line in the loaded file if it is unchanged
+     * and colourised the same, otherwise -1
+     */
+    private int[] lineMap = {};
+
+    /**
+     * The number of blocks that were parsed by the last load
+     */
+    private int parsedBlocks = 0;
+
+
+
+    /**
+     * Reloads the file if it has changed
+     *
+     * @return               Whether the file had changed
+     * @throws  IOException  On I/O error
+     */
+    public boolean reload() throws IOException
+    {
+        return this.update(read(this.path));
+    }
+
+    /**
+     * Loads new content for the file if it differs from the loaded content
+     *
+     * @param   next  The new content
+     * @return        Whether the content had changed
+     */
+    public boolean update(final ScheduleFile next)
+    {
+        final BlockMap blocks = new BlockMap();
+        new ScheduleParser(null, null, null, blocks).parse(next);
+        if ((blocks.size() == this.blocks.size()) && (next.getLineCount() == this.file.getLineCount()))
+        {
+            boolean same = true;
+            for (int block = 0, n = blocks.size(); same && (block < n); block++)
+                same = next.hash(blocks.getStart(block), blocks.getEnd(block)) == this.hashes[block];
+            if (same)
+                return false;
+        }
+        this.load(next, blocks);
+        return true;
+    }
+
+    /**
+     * Changes the attendance marker of an event in the loaded file in place, rather than loading the whole
+     * edited file: only the event's block is hashed again, and only the clashes on its date are found again;
+     * the loaded file, its events and their clash states are changed, so they must not be read meanwhile
+     *
+     * @param   offset  The offset of the replaced bytes
+     * @param   length  The number of replaced bytes
+     * @param   bytes   The bytes that replace them
+     * @return          The lines of the events whose clash state may have changed, {@code null} if the edit
+     *                  is not a change of the attendance marker of a dated event, in which case nothing
+     *                  is changed and the edited file must be loaded with {@link #update(ScheduleFile)}
+     */
+    public int[] patch(final int offset, final int length, final byte[] bytes)
+    {
+        if ((length != 1) || (bytes.length != 1) || (MarkerEditor.MARKERS.indexOf(bytes[0]) < 0)
+            || (offset < 0) || (offset >= this.file.getSize()))
+            return null;
+        final int line = this.file.findLine(offset);
+        final int event = this.events.findByLine(line);
+        if ((event < 0) || (this.events.getDate(event) <= 0))
+            return null;
+        if ((this.file.getColumnOffset(line, MarkerEditor.MARKER_COLUMN) != offset)
+            || (MarkerEditor.MARKERS.indexOf(this.file.getContent().get(offset)) < 0))
+            return null;
+
+        this.file.patch(offset, bytes[0]);
+        this.events.setAttendance(event, bytes[0]);
+        final int block = this.blocks.find(line);
+        this.hashes[block] = this.file.hash(this.blocks.getStart(block), this.blocks.getEnd(block));
+
+        /* An event has the date of the last event above it with a date written on its line */
+        final int date = this.events.getDate(event);
+        int[] ids = new int[16];
+        int count = 0;
+        for (final int dated : this.weeks.findDateLines(date))
+            for (int i = Math.max(this.events.findByLine(dated), count == 0 ? 0 : ids[count - 1] + 1);
+                     (i < this.events.size()) && (this.events.getDate(i) == date); i++)
+            {
+                if (count == ids.length)
+                    ids = Arrays.copyOf(ids, count << 1);
+                ids[count++] = i;
+            }
+        ids = Arrays.copyOf(ids, count);
+        ClashDetector.detect(this.events, this.clashes, ids);
+        final int[] lines = new int[count];
+        for (int i = 0; i < count; i++)
+            lines[i] = this.events.getLine(ids[i]);
+        return lines;
+    }
+
+    /**
+     * Parses a file, copying the events of blocks that are unchanged since the previous load
+     *
+     * @param  next        The file
+     * @param  nextBlocks  The blocks of the file, {@code null} on the first load
+     */
+    private void load(final ScheduleFile next, final BlockMap nextBlocks)
+    {
+        final int blockCount = nextBlocks == null ? 0 : nextBlocks.size();
+        final long[] nextHashes = new long[blockCount];
+        final int[] matches = new int[blockCount];
+
+        /* Match blocks in order: each block is matched with the next unmatched old block with the same hash and context */
+        final HashMap<Long, ArrayDeque<Integer>> old = new HashMap<Long, ArrayDeque<Integer>>();
+        for (int block = 0; (nextBlocks != null) && (block < this.blocks.size()); block++)
+        {
+            final Long key = Long.valueOf(this.hashes[block]);
+            ArrayDeque<Integer> list = old.get(key);
+            if (list == null)
+                old.put(key, list = new ArrayDeque<Integer>());
+            list.add(Integer.valueOf(block));
+        }
+        int last = -1;
+        boolean legendChanged = nextBlocks == null;
+        for (int block = 0; block < blockCount; block++)
+        {
+            nextHashes[block] = next.hash(nextBlocks.getStart(block), nextBlocks.getEnd(block));
+            final ArrayDeque<Integer> list = old.get(Long.valueOf(nextHashes[block]));
+            while ((list != null) && (list.isEmpty() == false) && (list.peekFirst().intValue() <= last))
+                list.pollFirst();
+            final int match = (list == null) || list.isEmpty() ? -1 : list.peekFirst().intValue();
+            if ((match >= 0) && (this.blocks.getSection(match) == nextBlocks.getSection(block))
+                             && (this.blocks.getWeek(match) == nextBlocks.getWeek(block))
+                             && (this.blocks.getWeekYear(match) == nextBlocks.getWeekYear(block)))
+            {
+                matches[block] = match;
+                last = match;
+                list.pollFirst();
+            }
+            else
+            {
+                matches[block] = -1;
+                legendChanged |= nextBlocks.getSection(block) < ScheduleParser.SECTION_SCHEDULE;
+            }
+        }
+
+        final EventStore events = new EventStore(this.strings);
+        final WeekIndex weeks = new WeekIndex();
+        final SearchIndex search = new SearchIndex();
+        final BlockMap blocks = new BlockMap();
+        final ScheduleParser parser = new ScheduleParser(events, weeks, search, blocks);
+        int parsed = 0;
+        if (nextBlocks == null)
+        {
+            if (ScheduleCache.parse(next, events, weeks, search, blocks) == false)
+                parsed = blocks.size();
+        }
+        else
+        {
+            for (int block = 0; block < blockCount; block++)
+            {
+                final int start = nextBlocks.getStart(block), end = nextBlocks.getEnd(block);
+                if (matches[block] < 0)
+                {
+                    for (int i = start; i < end; i++)
+                        parser.parseLine(next, i);
+                    parsed++;
+                }
+                else
+                {
+                    final int offset = this.blocks.getStart(matches[block]) - start;
+                    for (int i = start; i < end; i++)
+                        parser.copyLine(next, i, this.events, this.events.findByLine(i + offset));
+                }
+            }
+            parser.seal(next.getLineCount());
+        }
+        final byte[] clashes = ClashDetector.detect(events);
+
+        final int[] lineMap = new int[this.file == null ? 0 : this.file.getLineCount()];
+        Arrays.fill(lineMap, -1);
+        for (int block = 0; (legendChanged == false) && (block < blockCount); block++)
+            if (matches[block] >= 0)
+            {
+                final int start = nextBlocks.getStart(block), end = nextBlocks.getEnd(block);
+                final int offset = this.blocks.getStart(matches[block]) - start;
+                for (int i = start; i < end; i++)
+                {
+                    final int before = this.events.findByLine(i + offset), after = events.findByLine(i);
+                    if ((before < 0) || (this.clashes[before] == clashes[after]))
+                        lineMap[i + offset] = i;
+                }
+            }
+
+        this.file = next;
+        this.events = events;
+        this.weeks = weeks;
+        this.search = search;
+        this.blocks = blocks;
+        this.clashes = clashes;
+        this.lineMap = lineMap;
+        this.parsedBlocks = parsed;
+        this.hashes = new long[blocks.size()];
+        for (int block = 0, n = blocks.size(); block < n; block++)
+            this.hashes[block] = next.hash(blocks.getStart(block), blocks.getEnd(block));
+    }
+
+
+    /**
+     * Gets the loaded file
+     *
+     * @return  The loaded file
+     */
+    public ScheduleFile getFile()
+    {
+        return this.file;
+    }
+
+    /**
+     * Gets the parsed events of the loaded file
+     *
+     * @return  The parsed events
+     */
+    public EventStore getEvents()
+    {
+        return this.events;
+    }
+
+    /**
+     * Gets the index over the week headers and dates of the loaded file
+     *
+     * @return  The index
+     */
+    public WeekIndex getWeeks()
+    {
+        return this.weeks;
+    }
+
+    /**
+     * Gets the index over the words of the loaded file
+     *
+     * @return  The index
+     */
+    public SearchIndex getSearch()
+    {
+        return this.search;
+    }
+
+    /**
+     * Gets the context of each line of the loaded file
+     *
+     * @return  The blocks
+     */
+    public BlockMap getBlocks()
+    {
+        return this.blocks;
+    }
+
+    /**
+     * Gets the {@link ClashDetector} state of each event of the loaded file
+     *
+     * @return  The clash states
+     */
+    public byte[] getClashes()
+    {
+        return this.clashes;
+    }
+
+    /**
+     * Gets where the lines of the previously loaded file are in the loaded file
+     *
+     * @return  For each line of the previously loaded file, its line in the loaded file if it is
+     *          unchanged and colourised the same, otherwise -1
+     */
+    public int[] getLineMap()
+    {
+        return this.lineMap;
+    }
+
+    /**
+     * Gets the number of blocks that were parsed by the last load, rather than copied
+     *
+     * @return  The number of parsed blocks
+     */
+    public int getParsedBlocks()
+    {
+        return this.parsedBlocks;
+    }
+
+
+    /**
+     * Reads a file into memory
+     *
+     * @param   file         The file
+     * @return               The file's content
+     * @throws  IOException  On I/O error
+     */
+    private static ScheduleFile read(final File file) throws IOException
+    {
+        return new ScheduleFile(file, ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+    }
+    
+}
@@ -0,0 +1,410 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+
+
+/**
+ * Binary cache of a parsed schedule file, written next to the file as {@code .NAME.cache}.
+ * It holds the interned strings, the event columns, the week index, the search index and the
+ * block map, and is only used if the size, modification time and content hash of the file are
+ * those it was written for; it is mapped and read with bulk copies, which is much faster than
+ * parsing. A cache that is stale, damaged or of another version is ignored and rewritten.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class ScheduleCache
+{
+    /**
+     * Hidden constructor
+     */
+    private ScheduleCache()
+    {
+        //Nullify default constructor
+    }
+
+
+
+    /**
+     * The first four bytes of a cache, "MTKc"
+     */
+    private static final int MAGIC = 0x4d544b63;
+
+    /**
+     * The version of the format, increase it whenever the format or what the parser produces changes
+     */
+    private static final int VERSION = 3;
+
+    /**
+     * The number of sections: strings, events, weeks, search and blocks
+     */
+    private static final int SECTIONS = 5;
+
+    /**
+     * The size of the header: magic, version, file size, modification time, content hash,
+     * checksum of the body and the offset of each section in the body
+     */
+    private static final int HEADER = 4 + 4 + 8 + 8 + 8 + 8 + 4 * SECTIONS;
+
+    /**
+     * The encoding of strings
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+
+
+    /**
+     * Parses a schedule file, or loads it from its cache if the cache is fresh;
+     * the cache is written if it was not used, if that is possible
+     *
+     * @param   file    The schedule file
+     * @param   events  The store to add the events to, {@code null} to skip events, it must be empty
+     * @param   weeks   The index to add the week headers and dates to, {@code null} to skip, it must be empty
+     * @param   search  The index to add words to, {@code null} to skip, it must be empty
+     * @param   blocks  The map to add the lines' contexts to, {@code null} to skip, it must be empty
+     * @return          Whether the file was loaded from its cache
+     */
+    public static boolean parse(final ScheduleFile file, final EventStore events, final WeekIndex weeks,
+                                final SearchIndex search, final BlockMap blocks)
+    {
+        final File cache = getCacheFile(file.file);
+        final long modified = file.file.lastModified();
+        final long hash = file.hash(0, file.getLineCount());
+        if (load(cache, file.getSize(), modified, hash, events, weeks, search, blocks))
+            return true;
+
+        /* Everything is parsed, even what is skipped, so that the cache is complete */
+        final EventStore allEvents = events == null ? new EventStore(new StringPool()) : events;
+        final WeekIndex allWeeks = weeks == null ? new WeekIndex() : weeks;
+        final SearchIndex allSearch = search == null ? new SearchIndex() : search;
+        final BlockMap allBlocks = blocks == null ? new BlockMap() : blocks;
+        new ScheduleParser(allEvents, allWeeks, allSearch, allBlocks).parse(file);
+        save(cache, file.getSize(), modified, hash, allEvents, allWeeks, allSearch, allBlocks);
+        return false;
+    }
+
+    /**
+     * Gets the cache file of a schedule file
+     *
+     * @param   file  The schedule file
+     * @return        The cache file
+     */
+    public static File getCacheFile(final File file)
+    {
+        return new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".cache");
+    }
+
+    /**
+     * Loads a cache if it is fresh and intact
+     *
+     * @param   cache     The cache file
+     * @param   size      The size of the schedule file
+     * @param   modified  The modification time of the schedule file
+     * @param   hash      The hash of the content of the schedule file
+     * @param   events    The store to add the events to, {@code null} to skip events
+     * @param   weeks     The index to read the week index into, {@code null} to skip
+     * @param   search    The index to read the search index into, {@code null} to skip
+     * @param   blocks    The map to read the block map into, {@code null} to skip
+     * @return            Whether the cache was loaded
+     */
+    private static boolean load(final File cache, final long size, final long modified, final long hash, final EventStore events,
+                                final WeekIndex weeks, final SearchIndex search, final BlockMap blocks)
+    {
+        final ByteBuffer in;
+        try (final RandomAccessFile raf = new RandomAccessFile(cache, "r"))
+        {
+            final FileChannel channel = raf.getChannel();
+            if ((channel.size() < HEADER) || (channel.size() > Integer.MAX_VALUE))
+                return false;
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        catch (final IOException err)
+        {
+            return false;
+        }
+
+        if ((in.getInt() != MAGIC) || (in.getInt() != VERSION))
+            return false;
+        if ((in.getLong() != size) || (in.getLong() != modified) || (in.getLong() != hash))
+            return false;
+        final long checksum = in.getLong();
+        final int[] sections = readInts(in, SECTIONS);
+        if (checksum(in, HEADER, in.limit()) != checksum)
+            return false;
+        for (final int offset : sections)
+            if ((offset < 0) || (offset > in.limit() - HEADER))
+                return false;
+
+        /* The checksum has passed, so the content is what was written */
+        if (events != null)
+        {
+            in.position(HEADER + sections[0]);
+            final int[] ids = events.getStrings().read(in);
+            in.position(HEADER + sections[1]);
+            events.read(in, ids);
+        }
+        if (weeks != null)
+        {
+            in.position(HEADER + sections[2]);
+            weeks.read(in);
+        }
+        if (search != null)
+        {
+            in.position(HEADER + sections[3]);
+            search.read(in);
+        }
+        if (blocks != null)
+        {
+            in.position(HEADER + sections[4]);
+            blocks.read(in);
+        }
+        return true;
+    }
+
+    /**
+     * Writes a cache, nothing is written if it cannot be written, for example
+     * if the directory is read-only; the cache is replaced atomically
+     *
+     * @param  cache     The cache file
+     * @param  size      The size of the schedule file
+     * @param  modified  The modification time of the schedule file
+     * @param  hash      The hash of the content of the schedule file
+     * @param  events    The events
+     * @param  weeks     The sealed week index
+     * @param  search    The sealed search index
+     * @param  blocks    The sealed block map
+     */
+    private static void save(final File cache, final long size, final long modified, final long hash, final EventStore events,
+                             final WeekIndex weeks, final SearchIndex search, final BlockMap blocks)
+    {
+        File temp = null;
+        try
+        {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(body));
+            final int[] sections = new int[SECTIONS];
+            events.getStrings().write(out);
+            out.flush();
+            sections[1] = body.size();
+            events.write(out);
+            out.flush();
+            sections[2] = body.size();
+            weeks.write(out);
+            out.flush();
+            sections[3] = body.size();
+            search.write(out);
+            out.flush();
+            sections[4] = body.size();
+            blocks.write(out);
+            out.flush();
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER);
+            final byte[] content = body.toByteArray();
+            header.putInt(MAGIC).putInt(VERSION).putLong(size).putLong(modified).putLong(hash);
+            header.putLong(checksum(ByteBuffer.wrap(content), 0, content.length));
+            for (final int offset : sections)
+                header.putInt(offset);
+
+            temp = File.createTempFile(cache.getName(), ".tmp", cache.getParentFile());
+            try (final FileOutputStream file = new FileOutputStream(temp))
+            {
+                file.write(header.array());
+                file.write(content);
+            }
+            Files.move(temp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+        }
+        catch (final IOException | SecurityException err)
+        {
+            //The cache is only an optimisation, the file will be parsed again next time
+        }
+        finally
+        {
+            if (temp != null)
+                temp.delete();
+        }
+    }
+
+    /**
+     * Checksums a part of a buffer with 64-bit FNV-1a
+     *
+     * @param   buffer  The buffer
+     * @param   start   The offset of the first byte
+     * @param   end     The offset after the last byte
+     * @return          The checksum
+     */
+    private static long checksum(final ByteBuffer buffer, final int start, final int end)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++)
+            hash = (hash ^ (buffer.get(i) & 255)) * 0x100000001b3L;
+        return hash;
+    }
+
+
+    /**
+     * Writes a string
+     *
+     * @param   out          The output stream
+     * @param   string       The string
+     * @throws  IOException  On I/O error
+     */
+    public static void writeString(final DataOutputStream out, final String string) throws IOException
+    {
+        final byte[] bytes = string.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Writes the first elements of an array
+     *
+     * @param   out          The output stream
+     * @param   array        The array
+     * @param   n            The number of elements to write
+     * @throws  IOException  On I/O error
+     */
+    public static void writeInts(final DataOutputStream out, final int[] array, final int n) throws IOException
+    {
+        for (int i = 0; i < n; i++)
+            out.writeInt(array[i]);
+    }
+
+    /**
+     * Writes the first elements of an array
+     *
+     * @param   out          The output stream
+     * @param   array        The array
+     * @param   n            The number of elements to write
+     * @throws  IOException  On I/O error
+     */
+    public static void writeShorts(final DataOutputStream out, final short[] array, final int n) throws IOException
+    {
+        for (int i = 0; i < n; i++)
+            out.writeShort(array[i]);
+    }
+
+    /**
+     * Writes the first elements of an array
+     *
+     * @param   out          The output stream
+     * @param   array        The array
+     * @param   n            The number of elements to write
+     * @throws  IOException  On I/O error
+     */
+    public static void writeLongs(final DataOutputStream out, final long[] array, final int n) throws IOException
+    {
+        for (int i = 0; i < n; i++)
+            out.writeLong(array[i]);
+    }
+
+    /**
+     * Reads a string
+     *
+     * @param   in  The buffer to read from
+     * @return      The string
+     */
+    public static String readString(final ByteBuffer in)
+    {
+        final byte[] bytes = readBytes(in, in.getInt());
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Reads an array
+     *
+     * @param   in  The buffer to read from
+     * @param   n   The number of elements
+     * @return      The array
+     */
+    public static byte[] readBytes(final ByteBuffer in, final int n)
+    {
+        final byte[] rc = new byte[n];
+        in.get(rc);
+        return rc;
+    }
+
+    /**
+     * Reads an array
+     *
+     * @param   in  The buffer to read from
+     * @param   n   The number of elements
+     * @return      The array
+     */
+    public static short[] readShorts(final ByteBuffer in, final int n)
+    {
+        final short[] rc = new short[n];
+        in.asShortBuffer().get(rc);
+        in.position(in.position() + 2 * n);
+        return rc;
+    }
+
+    /**
+     * Reads an array
+     *
+     * @param   in  The buffer to read from
+     * @param   n   The number of elements
+     * @return      The array
+     */
+    public static int[] readInts(final ByteBuffer in, final int n)
+    {
+        final int[] rc = new int[n];
+        in.asIntBuffer().get(rc);
+        in.position(in.position() + 4 * n);
+        return rc;
+    }
+
+    /**
+     * Reads an array
+     *
+     * @param   in  The buffer to read from
+     * @param   n   The number of elements
+     * @return      The array
+     */
+    public static long[] readLongs(final ByteBuffer in, final int n)
+    {
+        final long[] rc = new long[n];
+        in.asLongBuffer().get(rc);
+        in.position(in.position() + 8 * n);
+        return rc;
+    }
+
+    /**
+     * Reads an array of interned strings' identifiers
+     *
+     * @param   in   The buffer to read from
+     * @param   n    The number of elements
+     * @param   ids  The identifier in the string pool of each string, by its identifier in the cache
+     * @return       The identifiers in the string pool, negative identifiers are kept
+     */
+    public static int[] readStrings(final ByteBuffer in, final int n, final int[] ids)
+    {
+        final int[] rc = readInts(in, n);
+        for (int i = 0; i < n; i++)
+            if (rc[i] >= 0)
+                rc[i] = ids[rc[i]];
+        return rc;
+    }
+    
+}
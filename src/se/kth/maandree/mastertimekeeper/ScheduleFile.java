@@ -0,0 +1,320 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+
+
+/**
+ * A schedule file, memory-mapped and indexed by line, lines are decoded when they are requested;
+ * it can also be lines assembled in memory from other schedule files
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class ScheduleFile
+{
+    /**
+     * Constructor
+     *
+     * @param   file         The file to load.
+     * @throws  IOException  On I/O error, or if the file is too large to be mapped.
+     */
+    public ScheduleFile(final File file) throws IOException
+    {
+        this.file = file;
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            final FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(file + " is too large");
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        finally
+        {
+            raf.close();
+        }
+        this.offsets = index(this.buffer);
+        this.lineCount = this.offsets.length - 1;
+    }
+
+    /**
+     * Constructor for lines assembled in memory
+     *
+     * @param  file    The file the lines are presented as, used for its name
+     * @param  buffer  The content, from its start to its limit
+     */
+    public ScheduleFile(final File file, final ByteBuffer buffer)
+    {
+        this.file = file;
+        this.buffer = buffer;
+        this.offsets = index(this.buffer);
+        this.lineCount = this.offsets.length - 1;
+    }
+
+
+
+    /**
+     * The loaded file
+     */
+    public final File file;
+
+    /**
+     * The content of the file
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The byte offset of the start of each line, followed by the size of the file
+     */
+    private final int[] offsets;
+
+    /**
+     * The number of lines in the file
+     */
+    private final int lineCount;
+
+
+
+    /**
+     * Finds the lines of a file
+     *
+     * @param   buffer  The content of the file
+     * @return          The byte offset of the start of each line, followed by the size of the file
+     */
+    private static int[] index(final ByteBuffer buffer)
+    {
+        final int size = buffer.limit();
+        int[] offsets = new int[Math.max(16, size / 48)];
+        int count = 0;
+        if (size > 0)
+            offsets[count++] = 0;
+        for (int i = 0; i < size; i++)
+            if ((buffer.get(i) == '\n') && (i + 1 < size))
+            {
+                if (count == offsets.length)
+                    offsets = Arrays.copyOf(offsets, count << 1);
+                offsets[count++] = i + 1;
+            }
+        offsets = Arrays.copyOf(offsets, count + 1);
+        offsets[count] = size;
+        return offsets;
+    }
+
+
+    /**
+     * Gets the size of the file
+     *
+     * @return  The number of bytes in the file
+     */
+    public int getSize()
+    {
+        return this.offsets[this.lineCount];
+    }
+
+    /**
+     * Gets the content of the file
+     *
+     * @return  The content, from its start to its limit, read-only
+     */
+    public ByteBuffer getContent()
+    {
+        final ByteBuffer rc = this.buffer.asReadOnlyBuffer();
+        rc.position(0);
+        rc.limit(this.getSize());
+        return rc;
+    }
+
+    /**
+     * Gets where a line starts
+     *
+     * @param   index  The line's index
+     * @return         The byte offset of the start of the line
+     */
+    public int getOffset(final int index)
+    {
+        return this.offsets[index];
+    }
+
+    /**
+     * Finds the line a byte is on
+     *
+     * @param   offset  The byte offset
+     * @return          The line's index
+     */
+    public int findLine(final int offset)
+    {
+        final int i = Arrays.binarySearch(this.offsets, 0, this.lineCount, offset);
+        return i < 0 ? ~i - 1 : i;
+    }
+
+    /**
+     * Gets the number of lines in the file
+     *
+     * @return  The number of lines in the file
+     */
+    public int getLineCount()
+    {
+        return this.lineCount;
+    }
+
+    /**
+     * Gets a line, decoded from UTF-8
+     *
+     * @param   index  The line's index
+     * @return         The line, without line terminator
+     */
+    public String getLine(final int index)
+    {
+        final int start = this.offsets[index];
+        final int end = this.getEnd(index);
+        final ByteBuffer slice = this.buffer.duplicate();
+        slice.limit(end);
+        slice.position(start);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+    /**
+     * Gets the length of a line in bytes, which is at least its length in characters
+     *
+     * @param   index  The line's index
+     * @return         The number of bytes in the line, excluding the line terminator
+     */
+    public int getByteLength(final int index)
+    {
+        return this.getEnd(index) - this.offsets[index];
+    }
+
+    /**
+     * Checks whether a line starts with a string, without decoding the line
+     *
+     * @param   index   The line's index
+     * @param   prefix  The string, must only contain ASCII characters
+     * @return          Whether the line starts with the string
+     */
+    public boolean startsWith(final int index, final String prefix)
+    {
+        final int start = this.offsets[index];
+        final int n = prefix.length();
+        if (this.getEnd(index) - start < n)
+            return false;
+        for (int i = 0; i < n; i++)
+            if (this.buffer.get(start + i) != prefix.charAt(i))
+                return false;
+        return true;
+    }
+
+    /**
+     * Finds where a column starts in a line, without decoding the line; tabs are expanded
+     * to the next multiple of eight columns, as by {@link ScheduleParser#expandTabs(String)}
+     *
+     * @param   index   The line's index
+     * @param   column  The column
+     * @return          The byte offset of the character at the column, -1 if the line ends
+     *                  before the column or if a tab that starts before the column covers it
+     */
+    public int getColumnOffset(final int index, final int column)
+    {
+        /* Bytes that are not valid UTF-8 are one character each, as when the line is decoded */
+        for (int i = this.offsets[index], n = this.getEnd(index), at = 0, pending = 0; (i < n) && (at <= column); i++)
+        {
+            final int b = this.buffer.get(i) & 255;
+            if (((b & 0xC0) == 0x80) && (pending > 0))
+            {
+                pending--;
+                continue;
+            }
+            if (at == column)
+                return i;
+            at = b == '\t' ? (at | 7) + 1 : at + 1;
+            pending = (b & 0xE0) == 0xC0 ? 1 : (b & 0xF0) == 0xE0 ? 2 : (b & 0xF8) == 0xF0 ? 3 : 0;
+        }
+        return -1;
+    }
+
+    /**
+     * Hashes lines, with their line terminators, with 64-bit FNV-1a
+     *
+     * @param   start  The first line
+     * @param   end    The line after the last line
+     * @return         The hash
+     */
+    public long hash(final int start, final int end)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = this.offsets[start], n = this.offsets[end]; i < n; i++)
+            hash = (hash ^ (this.buffer.get(i) & 255)) * 0x100000001b3L;
+        return hash;
+    }
+
+    /**
+     * Copies lines, with their line terminators, a line feed is added if the last line has none
+     *
+     * @param  start  The first line
+     * @param  end    The line after the last line
+     * @param  out    The buffer to copy to, must have room for the lines and a line feed
+     */
+    public void copyLines(final int start, final int end, final ByteBuffer out)
+    {
+        if (start >= end)
+            return;
+        final ByteBuffer slice = this.buffer.duplicate();
+        slice.limit(this.offsets[end]);
+        slice.position(this.offsets[start]);
+        out.put(slice);
+        if (this.buffer.get(this.offsets[end] - 1) != '\n')
+            out.put((byte)'\n');
+    }
+
+    /**
+     * Changes a byte of the content in place, the lines are not found again so
+     * neither the old nor the new byte may be a line terminator
+     *
+     * @param   offset                   The byte offset
+     * @param   value                    The new byte
+     * @throws  ReadOnlyBufferException  If the file is memory-mapped
+     */
+    public void patch(final int offset, final byte value)
+    {
+        this.buffer.put(offset, value);
+    }
+
+    /**
+     * Gets the end of a line, excluding the line terminator
+     *
+     * @param   index  The line's index
+     * @return         The byte offset of the end of the line
+     */
+    private int getEnd(final int index)
+    {
+        int end = this.offsets[index + 1];
+        final int start = this.offsets[index];
+        if ((end > start) && (this.buffer.get(end - 1) == '\n'))
+            end--;
+        if ((end > start) && (this.buffer.get(end - 1) == '\r'))
+            end--;
+        return end;
+    }
+    
+}
@@ -0,0 +1,446 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+
+/**
+ * Parser for the schedule format, it reads a file line by line and adds its events to an {@link EventStore}
+ * <p>
+ * Event lines are in fixed columns: the weekday at 0, the month at 6–7 and the day of
+ * the month at 13–14 (blank if the same as on the line above), the attendance marker
+ * at 16, the start time at 17–21, the end time at 23–27, the type marker at 29, the
+ * type at 30–42, the course at 43–52, the room at 53–70 and the comment after that.
+ * Tabs are expanded to the next multiple of eight columns before the columns are read.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class ScheduleParser
+{
+    /**
+     * Constructor
+     *
+     * @param  store   The store to add events to, may be {@code null} to only track sections and week headers
+     * @param  index   The index to add week headers and dates to, may be {@code null}
+     * @param  search  The index to add courses, rooms, types and comments to, may be {@code null}
+     * @param  blocks  The map to add the context of each line to, may be {@code null}
+     */
+    public ScheduleParser(final EventStore store, final WeekIndex index, final SearchIndex search, final BlockMap blocks)
+    {
+        this.store = store;
+        this.index = index;
+        this.search = search;
+        this.blocks = blocks;
+    }
+
+
+
+    /**
+     * Section: before the legend
+     */
+    public static final int SECTION_HEAD = 0;
+
+    /**
+     * Section: in the legend
+     */
+    public static final int SECTION_LEGEND = 1;
+
+    /**
+     * Section: after the legend, where the events are
+     */
+    public static final int SECTION_SCHEDULE = 2;
+
+    /**
+     * The column where the room starts
+     */
+    static final int ROOM_COLUMN = 53;
+
+    /**
+     * The column where the comment starts
+     */
+    static final int COMMENT_COLUMN = 71;
+
+
+
+    /**
+     * The store to add events to, {@code null} if events are not parsed
+     */
+    private final EventStore store;
+
+    /**
+     * The index to add week headers and dates to, may be {@code null}
+     */
+    private final WeekIndex index;
+
+    /**
+     * The index to add courses, rooms, types and comments to, may be {@code null}
+     */
+    private final SearchIndex search;
+
+    /**
+     * The map to add the context of each line to, may be {@code null}
+     */
+    private final BlockMap blocks;
+
+    /**
+     * The current {@code SECTION_*} section
+     */
+    private int section = SECTION_HEAD;
+
+    /**
+     * The week of the last week header, -1 if none
+     */
+    private int week = -1;
+
+    /**
+     * The year of the last week header, -1 if none
+     */
+    private int weekYear = -1;
+
+    /**
+     * The date of the last dated event in the current week, as {@code yyyymmdd}, 0 if none
+     */
+    private int date = 0;
+
+
+
+    /**
+     * Parses an entire file, and seals the indices
+     *
+     * @param  file  The file
+     */
+    public void parse(final ScheduleFile file)
+    {
+        for (int i = 0, n = file.getLineCount(); i < n; i++)
+            this.parseLine(file, i);
+        this.seal(file.getLineCount());
+    }
+
+    /**
+     * Seals the indices, after the last line has been parsed
+     *
+     * @param  lineCount  The number of lines in the file
+     */
+    public void seal(final int lineCount)
+    {
+        if (this.index != null)
+            this.index.seal();
+        if (this.search != null)
+            this.search.seal();
+        if (this.blocks != null)
+            this.blocks.seal(lineCount);
+    }
+
+    /**
+     * Parses the next line of a file, lines must be parsed in order
+     *
+     * @param   file   The file
+     * @param   index  The line's index
+     * @return         The index of the event the line added to the store, -1 if the line is not an event
+     */
+    public int parseLine(final ScheduleFile file, final int index)
+    {
+        final int event = this.parseContent(file, index);
+        if (this.blocks != null)
+            this.blocks.add(index, this.section, this.weekYear, this.week);
+        return event;
+    }
+
+    /**
+     * Parses the next line of a file by copying the event of an identical line that has already been parsed,
+     * lines must be parsed in order
+     *
+     * @param   file   The file
+     * @param   index  The line's index
+     * @param   from   The store with the identical line's event, it must use the same string pool as this parser's store
+     * @param   event  The identical line's event in {@code from}, -1 if the line is not an event
+     * @return         The index of the event the line added to the store, -1 if the line is not an event
+     */
+    public int copyLine(final ScheduleFile file, final int index, final EventStore from, final int event)
+    {
+        if ((event < 0) || (this.section < SECTION_SCHEDULE))
+            return this.parseLine(file, index);
+        if ((from.getFlags(event) & EventStore.FLAG_DATED) != 0)
+        {
+            this.date = from.getDate(event);
+            if (this.index != null)
+                this.index.addDate(this.date, index);
+        }
+        if (this.search != null)
+        {
+            final StringPool strings = from.getStrings();
+            this.search.add(index, strings.get(from.getType(event)));
+            this.search.add(index, strings.get(from.getCourse(event)));
+            this.search.add(index, strings.get(from.getRoom(event)));
+            this.search.add(index, strings.get(from.getComment(event)));
+        }
+        final int copy = this.store.copy(from, event, index, this.date);
+        if (this.blocks != null)
+            this.blocks.add(index, this.section, this.weekYear, this.week);
+        return copy;
+    }
+
+    /**
+     * Gets the section of the last parsed line
+     *
+     * @return  The {@code SECTION_*} section
+     */
+    public int getSection()
+    {
+        return this.section;
+    }
+
+    /**
+     * Gets the week of the last week header
+     *
+     * @return  The week, -1 if none
+     */
+    public int getWeek()
+    {
+        return this.week;
+    }
+
+    /**
+     * Gets the year of the last week header
+     *
+     * @return  The year, -1 if none
+     */
+    public int getWeekYear()
+    {
+        return this.weekYear;
+    }
+
+
+    /**
+     * Parses the next line of a file, and updates the section and week header
+     *
+     * @param   file   The file
+     * @param   index  The line's index
+     * @return         The index of the event the line added to the store, -1 if the line is not an event
+     */
+    private int parseContent(final ScheduleFile file, final int index)
+    {
+        if (file.startsWith(index, "--- "))
+        {
+            if (file.startsWith(index, "--- Legend ---"))
+                this.section = SECTION_LEGEND;
+            else if (this.section == SECTION_LEGEND)
+                this.section = SECTION_SCHEDULE;
+            /* A section header ends the week, the lines up to the next week header are in no week */
+            this.date = 0;
+            this.week = this.weekYear = -1;
+        }
+        else if (this.section < SECTION_SCHEDULE)
+            ;
+        else if (file.startsWith(index, "::"))
+        {
+            this.parseHeader(file.getLine(index));
+            if ((this.index != null) && (this.week >= 0) && (this.weekYear >= 0))
+                this.index.addWeek(this.weekYear, this.week, index);
+        }
+        else if (file.startsWith(index, ">>") || file.startsWith(index, "#"))
+        {
+            if (this.search != null)
+                this.search.add(index, file.getLine(index));
+        }
+        else if ((this.store != null) && (file.getByteLength(index) * 8 > ROOM_COLUMN))
+        {
+            /* The columns are as the line is shown, a tab is up to eight columns wide */
+            final String line = expandTabs(file.getLine(index));
+            if (line.length() > ROOM_COLUMN)
+                return this.parseEvent(index, line);
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a week header, on the form {@code ::Vecka NN, YYYY}
+     *
+     * @param  line  The line
+     */
+    private void parseHeader(final String line)
+    {
+        this.date = 0;
+        this.week = this.weekYear = -1;
+        final int comma = line.indexOf(',');
+        if (comma < 0)
+            return;
+        this.week = parseNumber(line, line.lastIndexOf(' ', comma) + 1, comma);
+        this.weekYear = parseNumber(line, comma + 1, line.length());
+    }
+
+    /**
+     * Parses an event line
+     *
+     * @param   index  The line's index
+     * @param   line   The line
+     * @return         The index of the event in the store
+     */
+    private int parseEvent(final int index, final String line)
+    {
+        byte flags = 0;
+        final int date = parseDate(line, this.weekYear, this.week);
+        if (date > 0)
+        {
+            this.date = date;
+            flags |= EventStore.FLAG_DATED;
+            if (this.index != null)
+                this.index.addDate(this.date, index);
+        }
+
+        final String typeColumn = line.substring(30, 41);
+        final String lower = typeColumn.toLowerCase(), upper = typeColumn.toUpperCase();
+        final byte typeCase;
+        if (lower.equals(upper))            typeCase = EventStore.TYPE_NO_LETTERS;
+        else if (typeColumn.equals(upper))  typeCase = EventStore.TYPE_UPPER_CASE;
+        else if (typeColumn.equals(lower))  typeCase = EventStore.TYPE_LOWER_CASE;
+        else                                typeCase = EventStore.TYPE_MIXED_CASE;
+
+        if (line.charAt(43) == '<')
+            flags |= EventStore.FLAG_COURSE_MARKED;
+        if (line.charAt(ROOM_COLUMN) == '?')
+            flags |= EventStore.FLAG_UNKNOWN_ROOM;
+
+        final int roomEnd = roomEnd(line);
+
+        final StringPool strings = this.store.getStrings();
+        final String type    = line.substring(30, 43).trim();
+        final String course  = line.substring(43, ROOM_COLUMN).trim();
+        final String room    = line.substring(ROOM_COLUMN, roomEnd).trim();
+        final String comment = line.substring(roomEnd).trim();
+        if (this.search != null)
+        {
+            this.search.add(index, type);
+            this.search.add(index, course);
+            this.search.add(index, room);
+            this.search.add(index, comment);
+        }
+        return this.store.add(index, this.date, parseTime(line, 17), parseTime(line, 23),
+                              marker(line.charAt(16)), marker(line.charAt(29)), flags, typeCase,
+                              strings.intern(type), strings.intern(course), strings.intern(room), strings.intern(comment));
+    }
+
+    /**
+     * Converts a marker character to a byte
+     *
+     * @param   c  The character
+     * @return     The character as a byte, '?' if it is not in ASCII
+     */
+    private static byte marker(final char c)
+    {
+        return (byte)(c < 128 ? c : '?');
+    }
+
+    /**
+     * Parses the date of an event line, the year is that of the week header,
+     * adjusted for weeks that span the turn of the year
+     *
+     * @param   line      The line
+     * @param   weekYear  The year of the week header
+     * @param   week      The week of the week header
+     * @return            The date, as {@code yyyymmdd}, 0 if the line has no date
+     */
+    static int parseDate(final String line, final int weekYear, final int week)
+    {
+        final int month = parseNumber(line, 6, 8);
+        final int day = parseNumber(line, 13, 15);
+        if ((month <= 0) || (day <= 0))
+            return 0;
+        int year = weekYear;
+        if ((week >= 52) && (month == 1))
+            year++;
+        else if ((week == 1) && (month == 12))
+            year--;
+        return year * 10000 + month * 100 + day;
+    }
+
+    /**
+     * Parses a non-negative decimal number, surrounding spaces are ignored
+     *
+     * @param   line   The line
+     * @param   start  The start of the number
+     * @param   end    The end of the number, exclusive
+     * @return         The number, -1 if there is no number or if there is something else
+     */
+    static int parseNumber(final String line, final int start, final int end)
+    {
+        int rc = -1;
+        for (int i = start, n = Math.min(end, line.length()); i < n; i++)
+        {
+            final char c = line.charAt(i);
+            if (('0' <= c) && (c <= '9'))
+                rc = (rc < 0 ? 0 : rc * 10) + (c - '0');
+            else if (c != ' ')
+                return -1;
+        }
+        return rc;
+    }
+
+    /**
+     * Finds the end of the room column of an event line, the room column
+     * extends into the comment column until the first space
+     *
+     * @param   line  The line
+     * @return        The index after the room column
+     */
+    static int roomEnd(final String line)
+    {
+        int end = Math.min(COMMENT_COLUMN, line.length());
+        while ((end < line.length()) && (line.charAt(end) != ' '))
+            end++;
+        return end;
+    }
+
+    /**
+     * Replaces tabs with spaces up to the next multiple of eight columns, as they are shown
+     *
+     * @param   line  The line
+     * @return        The line without tabs
+     */
+    static String expandTabs(final String line)
+    {
+        if (line.indexOf('\t') < 0)
+            return line;
+        final StringBuilder rc = new StringBuilder(line.length() + 16);
+        for (int i = 0, n = line.length(); i < n; i++)
+            if (line.charAt(i) == '\t')
+                do
+                    rc.append(' ');
+                while ((rc.length() & 7) != 0);
+            else
+                rc.append(line.charAt(i));
+        return rc.toString();
+    }
+
+    /**
+     * Parses a time on the form {@code HH:MM}
+     *
+     * @param   line   The line
+     * @param   start  The start of the time
+     * @return         The time in minutes after midnight, -1 if malformatted
+     */
+    static int parseTime(final String line, final int start)
+    {
+        if (line.charAt(start + 2) != ':')
+            return -1;
+        final int h = parseNumber(line, start, start + 2);
+        final int m = parseNumber(line, start + 3, start + 5);
+        return (h < 0) || (m < 0) ? -1 : (h * 60 + m);
+    }
+    
+}
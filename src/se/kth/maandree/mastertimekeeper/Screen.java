@@ -0,0 +1,455 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.util.*;
+
+
+/**
+ * Double-buffered screen: rows are drawn to a back buffer of cells, and a flush
+ * compares it with the front buffer, which mirrors the terminal, and sends only
+ * the spans of cells that differ. Scrolling is done with scroll regions, so that
+ * rows that are still visible after a move do not have to be sent again.
+ * <p>
+ * A cell is a character and its attributes: foreground and background colour,
+ * bold, dim and reverse video. Rows are set with text that may contain the SGR
+ * escape sequences and the erase line sequence that {@link Program} produces.
+ * Each character is assumed to occupy one column; text beyond the last column
+ * is clipped rather than wrapped.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class Screen
+{
+    /**
+     * Constructor
+     *
+     * @param  width   The width of the terminal
+     * @param  height  The height of the terminal
+     */
+    public Screen(final int width, final int height)
+    {
+        this.resize(width, height);
+    }
+
+
+
+    /**
+     * Attribute bit: bold
+     */
+    static final int BOLD = 1 << 8;
+
+    /**
+     * Attribute bit: dim
+     */
+    static final int DIM = 1 << 9;
+
+    /**
+     * Attribute bit: reverse video
+     */
+    static final int REVERSE = 1 << 10;
+
+    /**
+     * Mask for the foreground colour in an attribute, 0 for default, otherwise the colour plus one
+     */
+    static final int FOREGROUND = 0x0F;
+
+    /**
+     * Mask for the background colour in an attribute, 0 for default, otherwise the colour plus one
+     */
+    static final int BACKGROUND = 0xF0;
+
+    /**
+     * Unchanged cells in a changed span shorter than this are sent rather than skipped with a cursor movement
+     */
+    private static final int GAP = 8;
+
+    /**
+     * Resets the attributes, homes the cursor and clears the terminal
+     */
+    private static final byte[] CLEAR = OutputBuffer.encode("\033[0m\033[H\033[2J");
+
+    /**
+     * Resets the attributes
+     */
+    private static final byte[] RESET = OutputBuffer.encode("\033[0m");
+
+    /**
+     * Resets the attributes and starts a scroll region escape sequence
+     */
+    private static final byte[] REGION = OutputBuffer.encode("\033[0m\033[");
+
+    /**
+     * Resets the scroll region to the whole terminal
+     */
+    private static final byte[] UNREGION = OutputBuffer.encode("\033[r");
+
+    /**
+     * Starts a control sequence
+     */
+    private static final byte[] CSI = OutputBuffer.encode("\033[");
+
+    /**
+     * Erases to the end of the line
+     */
+    private static final byte[] ERASE = OutputBuffer.encode("\033[K");
+
+    /**
+     * Starts an SGR escape sequence that resets the attributes
+     */
+    private static final byte[] SGR = OutputBuffer.encode("\033[0");
+
+
+
+    /**
+     * The width of the screen
+     */
+    private int width;
+
+    /**
+     * The height of the screen
+     */
+    private int height;
+
+    /**
+     * The characters of each cell on the terminal
+     */
+    private int[][] frontChars;
+
+    /**
+     * The attributes of each cell on the terminal
+     */
+    private int[][] frontAttrs;
+
+    /**
+     * The characters of each cell in the frame being drawn
+     */
+    private int[][] backChars;
+
+    /**
+     * The attributes of each cell in the frame being drawn
+     */
+    private int[][] backAttrs;
+
+    /**
+     * The text each row in the back buffer was last set from, so that setting it again is free
+     */
+    private String[] backTexts;
+
+    /**
+     * Whether the terminal's content is unknown and must be cleared on the next flush
+     */
+    private boolean invalid;
+
+
+
+    /**
+     * Resizes the screen, this clears the screen on the next flush
+     *
+     * @param  width   The width of the terminal
+     * @param  height  The height of the terminal
+     */
+    public void resize(final int width, final int height)
+    {
+        this.width = width;
+        this.height = height;
+        this.frontChars = new int[height][width];
+        this.frontAttrs = new int[height][width];
+        this.backChars  = new int[height][width];
+        this.backAttrs  = new int[height][width];
+        this.backTexts  = new String[height];
+        for (int y = 0; y < height; y++)
+        {
+            Arrays.fill(this.backChars[y], ' ');
+            Arrays.fill(this.frontChars[y], ' ');
+        }
+        this.invalid = true;
+    }
+
+    /**
+     * Marks a row as unknown on the terminal, because something else has been written to it,
+     * rows outside the screen, which may have been resized since, are ignored
+     *
+     * @param  row  The row
+     */
+    public void invalidate(final int row)
+    {
+        if ((0 <= row) && (row < this.height))
+            Arrays.fill(this.frontChars[row], -1);
+    }
+
+    /**
+     * Sets the content of a row in the back buffer
+     *
+     * @param  row   The row
+     * @param  text  The text, may contain SGR escape sequences and {@code ESC [2K}, a trailing line feed is ignored
+     */
+    public void setRow(final int row, final String text)
+    {
+        if (this.backTexts[row] == text)
+            return;
+        this.backTexts[row] = text;
+
+        final int[] chars = this.backChars[row];
+        final int[] attrs = this.backAttrs[row];
+        Arrays.fill(chars, ' ');
+        Arrays.fill(attrs, 0);
+
+        int attr = 0, x = 0;
+        for (int i = 0, n = text.length(); i < n;)
+        {
+            final char c = text.charAt(i);
+            if (c == '\033')
+            {
+                int end = i + 1;
+                if ((end < n) && (text.charAt(end) == '['))
+                    for (end++; (end < n) && ((text.charAt(end) < '@') || (text.charAt(end) > '~')); end++)
+                        ;
+                if (end < n)
+                {
+                    if (text.charAt(end) == 'm')
+                        attr = applySGR(attr, text, i + 2, end);
+                    else if ((text.charAt(end) == 'K') && (end == i + 3) && (text.charAt(i + 2) == '2'))
+                    {
+                        Arrays.fill(chars, ' ');
+                        Arrays.fill(attrs, attr);
+                    }
+                }
+                i = end + 1;
+            }
+            else if ((c == '\n') || (c == '\r'))
+                i++;
+            else
+            {
+                final int cp = text.codePointAt(i);
+                i += Character.charCount(cp);
+                if (x < this.width)
+                {
+                    chars[x] = cp;
+                    attrs[x++] = attr;
+                }
+            }
+        }
+    }
+
+    /**
+     * Scrolls rows on the terminal and in the front buffer, this is sent immediately
+     *
+     * @param  out     Output buffer for the terminal
+     * @param  top     The first row of the scrolled region
+     * @param  bottom  The row after the last row of the scrolled region
+     * @param  n       The number of rows to scroll the content up, negative to scroll down
+     */
+    public void scroll(final OutputBuffer out, final int top, final int bottom, final int n)
+    {
+        final int rows = bottom - top;
+        if (this.invalid || (n == 0) || (Math.abs(n) >= rows))
+            return;
+
+        out.append(REGION);
+        out.appendNumber(top + 1);
+        out.append(';');
+        out.appendNumber(bottom);
+        out.append('r');
+        out.append(CSI);
+        out.appendNumber(Math.abs(n));
+        out.append(n > 0 ? 'S' : 'T');
+        out.append(UNREGION);
+
+        /* Rotate the rows in place, as the reversal of two reversed parts */
+        final int split = n > 0 ? top + n : bottom + n;
+        reverse(this.frontChars, top, split);
+        reverse(this.frontChars, split, bottom);
+        reverse(this.frontChars, top, bottom);
+        reverse(this.frontAttrs, top, split);
+        reverse(this.frontAttrs, split, bottom);
+        reverse(this.frontAttrs, top, bottom);
+        for (int y = n > 0 ? bottom - n : top, end = n > 0 ? bottom : top - n; y < end; y++)
+            this.blankFront(y);
+    }
+
+    /**
+     * Sends the differences between the back buffer and the front buffer
+     *
+     * @param  out  Output buffer for the terminal
+     */
+    public void flush(final OutputBuffer out)
+    {
+        int attr = -1;
+        if (this.invalid)
+        {
+            out.append(CLEAR);
+            attr = 0;
+            for (int y = 0; y < this.height; y++)
+                this.blankFront(y);
+            this.invalid = false;
+        }
+
+        for (int y = 0; y < this.height; y++)
+        {
+            final int[] bc = this.backChars[y], ba = this.backAttrs[y];
+            final int[] fc = this.frontChars[y], fa = this.frontAttrs[y];
+
+            int blank = this.width;
+            while ((blank > 0) && (bc[blank - 1] == ' ') && (ba[blank - 1] == 0))
+                blank--;
+
+            for (int x = 0; x < this.width;)
+            {
+                if ((bc[x] == fc[x]) && (ba[x] == fa[x]))
+                {
+                    x++;
+                    continue;
+                }
+                int end = x + 1, same = 0;
+                for (int i = end; (i < this.width) && (same < GAP); i++)
+                    if ((bc[i] == fc[i]) && (ba[i] == fa[i]))
+                        same++;
+                    else
+                    {
+                        end = i + 1;
+                        same = 0;
+                    }
+
+                out.append(CSI);
+                out.appendNumber(y + 1);
+                out.append(';');
+                out.appendNumber(x + 1);
+                out.append('H');
+                for (; (x < end) && (x < blank); x++)
+                {
+                    if (ba[x] != attr)
+                        appendSGR(out, attr = ba[x]);
+                    out.appendCodePoint(bc[x]);
+                    fc[x] = bc[x];
+                    fa[x] = ba[x];
+                }
+                if (x < end)
+                {
+                    if (attr != 0)
+                        out.append(RESET);
+                    attr = 0;
+                    out.append(ERASE);
+                    for (; x < this.width; x++)
+                    {
+                        fc[x] = ' ';
+                        fa[x] = 0;
+                    }
+                }
+            }
+        }
+        if ((attr != 0) && (attr != -1))
+            out.append(RESET);
+    }
+
+
+    /**
+     * Fills a row in the front buffer with blank cells
+     *
+     * @param  row  The row
+     */
+    private void blankFront(final int row)
+    {
+        Arrays.fill(this.frontChars[row], ' ');
+        Arrays.fill(this.frontAttrs[row], 0);
+    }
+
+    /**
+     * Reverses the order of a range of rows
+     *
+     * @param  rows   The rows
+     * @param  start  The first row in the range
+     * @param  end    The row after the last row in the range
+     */
+    private static void reverse(final int[][] rows, final int start, final int end)
+    {
+        for (int i = start, j = end - 1; i < j; i++, j--)
+        {
+            final int[] row = rows[i];
+            rows[i] = rows[j];
+            rows[j] = row;
+        }
+    }
+
+    /**
+     * Applies the parameters of an SGR escape sequence to an attribute
+     *
+     * @param   attr   The attribute
+     * @param   text   The text with the escape sequence
+     * @param   start  The start of the parameters
+     * @param   end    The end of the parameters, the position of the 'm'
+     * @return         The new attribute
+     */
+    static int applySGR(int attr, final String text, final int start, final int end)
+    {
+        int value = 0;
+        for (int i = start; i <= end; i++)
+        {
+            final char c = i < end ? text.charAt(i) : ';';
+            if (('0' <= c) && (c <= '9'))
+            {
+                value = value * 10 + (c - '0');
+                continue;
+            }
+            if (c != ';')
+                return attr;
+            if (value == 0)                          attr = 0;
+            else if (value == 1)                     attr |= BOLD;
+            else if (value == 2)                     attr |= DIM;
+            else if (value == 7)                     attr |= REVERSE;
+            else if (value == 21)                    attr &= ~BOLD;
+            else if (value == 22)                    attr &= ~(BOLD | DIM);
+            else if (value == 27)                    attr &= ~REVERSE;
+            else if ((30 <= value) && (value < 38))  attr = (attr & ~FOREGROUND) | (value - 29);
+            else if (value == 39)                    attr &= ~FOREGROUND;
+            else if ((40 <= value) && (value < 48))  attr = (attr & ~BACKGROUND) | ((value - 39) << 4);
+            else if (value == 49)                    attr &= ~BACKGROUND;
+            value = 0;
+        }
+        return attr;
+    }
+
+    /**
+     * Appends the SGR escape sequence that sets an attribute
+     *
+     * @param  out   Output buffer for the terminal
+     * @param  attr  The attribute
+     */
+    private static void appendSGR(final OutputBuffer out, final int attr)
+    {
+        out.append(SGR);
+        if ((attr & BOLD) != 0)     { out.append(';');  out.append('1'); }
+        if ((attr & DIM) != 0)      { out.append(';');  out.append('2'); }
+        if ((attr & REVERSE) != 0)  { out.append(';');  out.append('7'); }
+        if ((attr & FOREGROUND) != 0)
+        {
+            out.append(';');
+            out.append('3');
+            out.appendNumber((attr & FOREGROUND) - 1);
+        }
+        if ((attr & BACKGROUND) != 0)
+        {
+            out.append(';');
+            out.append('4');
+            out.appendNumber(((attr & BACKGROUND) >> 4) - 1);
+        }
+        out.append('m');
+    }
+    
+}
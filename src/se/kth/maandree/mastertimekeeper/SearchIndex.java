@@ -0,0 +1,296 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+
+/**
+ * Inverted index from the words of courses, rooms, types and comments to the lines they are on
+ * <p>
+ * A search is a list of words, each of which must be a prefix of a word on a matching line;
+ * it is answered from the index, with binary searches, so that it can be repeated for every
+ * keystroke while the search is typed.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class SearchIndex
+{
+    /**
+     * Constructor
+     */
+    public SearchIndex()
+    {
+        //Nothing to initialise
+    }
+
+
+
+    /**
+     * Empty result
+     */
+    private static final int[] NO_LINES = {};
+
+
+
+    /**
+     * The lines of each word, while the index is being built
+     */
+    private HashMap<String, Postings> building = new HashMap<String, Postings>();
+
+    /**
+     * The words of already seen texts, while the index is being built
+     */
+    private HashMap<String, String[]> tokenised = new HashMap<String, String[]>();
+
+    /**
+     * The words, sorted, once sealed
+     */
+    private String[] words;
+
+    /**
+     * The lines of each word in {@link #words}, sorted
+     */
+    private int[][] lines;
+
+
+
+    /**
+     * Indexes the words of a text, texts must be added in line order
+     *
+     * @param  line  The line the text is on
+     * @param  text  The text
+     */
+    public void add(final int line, final String text)
+    {
+        String[] words = this.tokenised.get(text);
+        if (words == null)
+            this.tokenised.put(text, words = tokenise(text));
+        for (final String word : words)
+        {
+            Postings postings = this.building.get(word);
+            if (postings == null)
+                this.building.put(word, postings = new Postings());
+            postings.add(line);
+        }
+    }
+
+    /**
+     * Sorts the index, this must be done after everything has been added and before any search
+     */
+    public void seal()
+    {
+        final int n = this.building.size();
+        this.words = this.building.keySet().toArray(new String[n]);
+        Arrays.sort(this.words);
+        this.lines = new int[n][];
+        for (int i = 0; i < n; i++)
+        {
+            final Postings postings = this.building.get(this.words[i]);
+            this.lines[i] = Arrays.copyOf(postings.lines, postings.size);
+        }
+        this.building = null;
+        this.tokenised = null;
+    }
+
+    /**
+     * Writes the sealed index to a {@link ScheduleCache}
+     *
+     * @param   out          The output stream
+     * @throws  IOException  On I/O error
+     */
+    public void write(final DataOutputStream out) throws IOException
+    {
+        out.writeInt(this.words.length);
+        for (int i = 0; i < this.words.length; i++)
+        {
+            ScheduleCache.writeString(out, this.words[i]);
+            out.writeInt(this.lines[i].length);
+            ScheduleCache.writeInts(out, this.lines[i], this.lines[i].length);
+        }
+    }
+
+    /**
+     * Replaces the index with a sealed index read from a {@link ScheduleCache}
+     *
+     * @param  in  The cache, positioned at the index
+     */
+    public void read(final ByteBuffer in)
+    {
+        final int n = in.getInt();
+        this.words = new String[n];
+        this.lines = new int[n][];
+        for (int i = 0; i < n; i++)
+        {
+            this.words[i] = ScheduleCache.readString(in);
+            this.lines[i] = ScheduleCache.readInts(in, in.getInt());
+        }
+        this.building = null;
+        this.tokenised = null;
+    }
+
+    /**
+     * Searches the index
+     *
+     * @param   query  The search, words that must be prefixes of words on the lines
+     * @return         The matching lines, sorted
+     */
+    public int[] find(final String query)
+    {
+        final String[] terms = tokenise(query);
+        if (terms.length == 0)
+            return NO_LINES;
+
+        int[] rc = null;
+        for (final String term : terms)
+        {
+            final int[] found = this.findPrefix(term);
+            rc = rc == null ? found : intersect(rc, found);
+            if (rc.length == 0)
+                break;
+        }
+        return rc;
+    }
+
+    /**
+     * Finds the lines with a word starting with a prefix
+     *
+     * @param   prefix  The prefix, in lower case
+     * @return          The lines, sorted
+     */
+    private int[] findPrefix(final String prefix)
+    {
+        int start = Arrays.binarySearch(this.words, prefix);
+        if (start < 0)
+            start = ~start;
+        int end = start, total = 0;
+        while ((end < this.words.length) && this.words[end].startsWith(prefix))
+            total += this.lines[end++].length;
+        if (end - start == 1)
+            return this.lines[start];
+
+        final int[] rc = new int[total];
+        int ptr = 0;
+        for (int i = start; i < end; i++)
+        {
+            System.arraycopy(this.lines[i], 0, rc, ptr, this.lines[i].length);
+            ptr += this.lines[i].length;
+        }
+        Arrays.sort(rc);
+        int n = 0;
+        for (int i = 0; i < total; i++)
+            if ((n == 0) || (rc[n - 1] != rc[i]))
+                rc[n++] = rc[i];
+        return Arrays.copyOf(rc, n);
+    }
+
+    /**
+     * Intersects two sorted arrays
+     *
+     * @param   a  The first array
+     * @param   b  The second array
+     * @return     The elements in both arrays, sorted
+     */
+    private static int[] intersect(final int[] a, final int[] b)
+    {
+        final int[] rc = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        for (int i = 0, j = 0; (i < a.length) && (j < b.length);)
+            if (a[i] < b[j])
+                i++;
+            else if (a[i] > b[j])
+                j++;
+            else
+            {
+                rc[n++] = a[i++];
+                j++;
+            }
+        return Arrays.copyOf(rc, n);
+    }
+
+    /**
+     * Splits a text into words, in lower case; a word is a run of letters and digits
+     *
+     * @param   text  The text
+     * @return        The words
+     */
+    public static String[] tokenise(final String text)
+    {
+        final ArrayList<String> words = new ArrayList<String>();
+        final int n = text.length();
+        for (int i = 0; i < n;)
+        {
+            while ((i < n) && (Character.isLetterOrDigit(text.charAt(i)) == false))
+                i++;
+            final int start = i;
+            while ((i < n) && Character.isLetterOrDigit(text.charAt(i)))
+                i++;
+            if (start < i)
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+
+
+    /**
+     * Growable list of lines
+     */
+    private static class Postings
+    {
+        /**
+         * Constructor
+         */
+        Postings()
+        {
+            //Nothing to initialise
+        }
+
+
+
+        /**
+         * The lines
+         */
+        int[] lines = new int[4];
+
+        /**
+         * The number of lines
+         */
+        int size = 0;
+
+
+
+        /**
+         * Adds a line, unless it was the last added line
+         *
+         * @param  line  The line
+         */
+        void add(final int line)
+        {
+            if ((this.size > 0) && (this.lines[this.size - 1] == line))
+                return;
+            if (this.size == this.lines.length)
+                this.lines = Arrays.copyOf(this.lines, this.size << 1);
+            this.lines[this.size++] = line;
+        }
+    }
+    
+}
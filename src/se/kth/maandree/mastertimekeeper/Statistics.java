@@ -0,0 +1,509 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+
+/**
+ * Statistics over schedules: per course the credits, the number of events, the
+ * booked hours, the lectures, and how many events were missed ({@code >}) or
+ * skipped ({@code /}, {@code -} or {@code ~}); and the booked hours per week.
+ * Events marked {@code #} and cancelled events are not counted, and skipped
+ * events are not booked.
+ * <p>
+ * The figures are gathered in one pass over each file's events, into arrays
+ * indexed by the interned course, so files can be gathered in parallel, with
+ * a shared {@link StringPool}, and merged. Courses with a group suffix, such as
+ * {@code DH1603a}, are counted under the course in the header when the report
+ * is made.
+ * <p>
+ * Usage: {@code --stats FILE...}
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class Statistics
+{
+    /**
+     * Constructor
+     *
+     * @param  strings  The pool in which courses are interned
+     */
+    public Statistics(final StringPool strings)
+    {
+        this.strings = strings;
+    }
+
+
+
+    /**
+     * A course in the header: credits, the course and its name
+     */
+    private static final Pattern HEADER_COURSE = Pattern.compile("^\\s*([0-9]+(?:[,.][0-9])?)\\s*hp\\s+(\\S+)\\s+\\S\\s+(.*?)\\s*$");
+
+    /**
+     * The width of the longest bar in the weekly load
+     */
+    private static final int BAR_WIDTH = 40;
+
+
+
+    /**
+     * The pool in which courses are interned
+     */
+    private final StringPool strings;
+
+    /**
+     * The number of courses the arrays have room for
+     */
+    private int capacity = 0;
+
+    /**
+     * The credits of each course, in tenths, -1 if not in a header
+     */
+    private int[] credits = {};
+
+    /**
+     * The interned name of each course, -1 if not in a header
+     */
+    private int[] names = {};
+
+    /**
+     * The number of events of each course
+     */
+    private int[] events = {};
+
+    /**
+     * The booked minutes of each course
+     */
+    private long[] minutes = {};
+
+    /**
+     * The number of lectures of each course
+     */
+    private int[] lectures = {};
+
+    /**
+     * The number of missed lectures of each course
+     */
+    private int[] missedLectures = {};
+
+    /**
+     * The number of missed events of each course
+     */
+    private int[] missed = {};
+
+    /**
+     * The number of skipped events of each course
+     */
+    private int[] skipped = {};
+
+    /**
+     * Whether each interned type is a lecture: 0 if not yet known, 1 if it is, 2 if it is not
+     */
+    private byte[] lectureTypes = {};
+
+    /**
+     * The booked minutes per week, as {@code (yyyyww << 32) | minutes}, in the order the weeks were seen
+     */
+    private long[] weeks = new long[16];
+
+    /**
+     * The number of elements in {@link #weeks}
+     */
+    private int weekCount = 0;
+
+
+
+    /**
+     * Gathers statistics for schedule files, in parallel
+     *
+     * @param   files        The schedule files
+     * @param   pool         The pool the files are gathered in
+     * @return               The statistics
+     * @throws  IOException  On I/O error
+     */
+    public static Statistics gather(final List<File> files, final ForkJoinPool pool) throws IOException
+    {
+        final StringPool strings = new StringPool();
+        final ArrayList<ForkJoinTask<Statistics>> tasks = new ArrayList<ForkJoinTask<Statistics>>();
+        for (final File file : files)
+            tasks.add(pool.submit(new Callable<Statistics>()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        @Override
+                        public Statistics call() throws IOException
+                        {
+                            final ScheduleFile schedule = new ScheduleFile(file);
+                            final EventStore events = new EventStore(strings);
+                            final BlockMap blocks = new BlockMap();
+                            ScheduleCache.parse(schedule, events, null, null, blocks);
+                            final Statistics statistics = new Statistics(strings);
+                            statistics.add(schedule, events, blocks);
+                            return statistics;
+                        }
+                    }));
+        final Statistics rc = new Statistics(strings);
+        for (final ForkJoinTask<Statistics> task : tasks)
+            rc.merge(Program.join(task));
+        return rc;
+    }
+
+    /**
+     * Prints statistics for schedule files
+     *
+     * @param   args         The schedule files
+     * @param   pool         The pool the files are gathered in
+     * @return               The exit value
+     * @throws  IOException  On I/O error
+     */
+    public static int run(final String[] args, final ForkJoinPool pool) throws IOException
+    {
+        if (args.length == 0)
+        {
+            System.err.println("usage: mastertimekeeper --stats FILE...");
+            return 2;
+        }
+        final ArrayList<File> files = new ArrayList<File>();
+        for (final String arg : args)
+            files.add(new File(arg));
+        final Statistics statistics;
+        try
+        {
+            statistics = gather(files, pool);
+        }
+        catch (final IOException err)
+        {
+            System.err.println("mastertimekeeper: " + err.getMessage());
+            return 2;
+        }
+        final OutputBuffer buf = new OutputBuffer(1 << 12);
+        for (final String line : statistics.format())
+        {
+            buf.append(line);
+            buf.append('\n');
+        }
+        buf.writeTo(new FileOutputStream(FileDescriptor.out).getChannel());
+        return 0;
+    }
+
+
+    /**
+     * Adds the courses in a file's header and the events of the file
+     *
+     * @param  file    The schedule file
+     * @param  events  The file's events, interned in this object's pool
+     * @param  blocks  The file's blocks
+     */
+    public void add(final ScheduleFile file, final EventStore events, final BlockMap blocks)
+    {
+        for (int block = 0; (block < blocks.size()) && (blocks.getSection(block) == ScheduleParser.SECTION_HEAD); block++)
+            for (int line = blocks.getStart(block), end = blocks.getEnd(block); line < end; line++)
+            {
+                final Matcher matcher = HEADER_COURSE.matcher(file.getLine(line));
+                if (matcher.matches() == false)
+                    continue;
+                final int course = this.strings.intern(matcher.group(2));
+                this.ensureCapacity(course + 1);
+                this.credits[course] = (int)(Double.parseDouble(matcher.group(1).replace(',', '.')) * 10 + 0.5);
+                this.names[course] = this.strings.intern(matcher.group(3));
+            }
+
+        int block = 0, week = -1;
+        for (int event = 0, n = events.size(); event < n; event++)
+        {
+            final int line = events.getLine(event);
+            if ((block + 1 < blocks.size()) && (blocks.getStart(block + 1) <= line))
+            {
+                while ((block + 1 < blocks.size()) && (blocks.getStart(block + 1) <= line))
+                    block++;
+                week = blocks.getWeek(block) < 0 ? -1 : blocks.getWeekYear(block) * 100 + blocks.getWeek(block);
+            }
+
+            final byte attendance = events.getAttendance(event);
+            if ((attendance == '#') || (events.getTypeMarker(event) == '-'))
+                continue;
+            final int course = events.getCourse(event);
+            this.ensureCapacity(course + 1);
+            this.events[course]++;
+            final boolean lecture = this.isLecture(events.getType(event));
+            if (lecture)
+                this.lectures[course]++;
+            if ((attendance == '/') || (attendance == '-') || (attendance == '~'))
+            {
+                this.skipped[course]++;
+                continue;
+            }
+            if (attendance == '>')
+            {
+                this.missed[course]++;
+                if (lecture)
+                    this.missedLectures[course]++;
+            }
+
+            final int start = events.getStart(event), end = events.getEnd(event);
+            final int length = (start >= 0) && (end > start) ? end - start : 0;
+            this.minutes[course] += length;
+            if (week >= 0)
+                this.addWeek(week, length);
+        }
+    }
+
+    /**
+     * Adds the statistics of another object that uses the same string pool
+     *
+     * @param  other  The other statistics
+     */
+    public void merge(final Statistics other)
+    {
+        this.ensureCapacity(other.capacity);
+        for (int course = 0; course < other.capacity; course++)
+        {
+            if (other.credits[course] >= 0)
+            {
+                this.credits[course] = other.credits[course];
+                this.names[course] = other.names[course];
+            }
+            this.events[course]         += other.events[course];
+            this.minutes[course]        += other.minutes[course];
+            this.lectures[course]       += other.lectures[course];
+            this.missedLectures[course] += other.missedLectures[course];
+            this.missed[course]         += other.missed[course];
+            this.skipped[course]        += other.skipped[course];
+        }
+        for (int i = 0; i < other.weekCount; i++)
+            this.addWeek((int)(other.weeks[i] >>> 32), (int)(other.weeks[i]));
+    }
+
+    /**
+     * Formats the statistics
+     *
+     * @return  The lines of the report
+     */
+    public String[] format()
+    {
+        /* Count each course under the course in the header it is a group of */
+        final Statistics courses = new Statistics(this.strings);
+        courses.ensureCapacity(this.capacity);
+        for (int course = 0; course < this.capacity; course++)
+        {
+            if ((this.events[course] == 0) && (this.credits[course] < 0))
+                continue;
+            int into = course;
+            if (this.credits[course] < 0)
+            {
+                final String base = this.strings.get(course).replaceFirst("[\\p{Ll}]+$", "");
+                final int id = this.strings.lookup(base);
+                if ((id >= 0) && (id < this.capacity) && (this.credits[id] >= 0))
+                    into = id;
+            }
+            if (courses.credits[into] < 0)
+            {
+                courses.credits[into] = this.credits[into];
+                courses.names[into] = this.names[into];
+            }
+            courses.events[into]         += this.events[course];
+            courses.minutes[into]        += this.minutes[course];
+            courses.lectures[into]       += this.lectures[course];
+            courses.missedLectures[into] += this.missedLectures[course];
+            courses.missed[into]         += this.missed[course];
+            courses.skipped[into]        += this.skipped[course];
+        }
+
+        final ArrayList<String> rc = new ArrayList<String>();
+        rc.add(String.format("%-10s %5s %7s %8s %9s %7s %8s %8s  %s",
+                             "Course", "hp", "Events", "Hours", "Lectures", "Missed", "Skipped", "Missed%", "Name"));
+        /* Courses are listed by code, so that the order does not depend on the order they were interned in */
+        final ArrayList<Integer> order = new ArrayList<Integer>();
+        for (int course = 0; course < courses.capacity; course++)
+            if ((courses.events[course] > 0) || (courses.credits[course] >= 0))
+                order.add(Integer.valueOf(course));
+        Collections.sort(order, new Comparator<Integer>()
+                {
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    public int compare(final Integer a, final Integer b)
+                    {
+                        final String x = Statistics.this.strings.get(a.intValue());
+                        final String y = Statistics.this.strings.get(b.intValue());
+                        if (x.isEmpty() != y.isEmpty())
+                            return x.isEmpty() ? 1 : -1;
+                        return x.compareTo(y);
+                    }
+                });
+        int credits = 0, events = 0, lectures = 0, missedLectures = 0, missed = 0, skipped = 0;
+        long minutes = 0;
+        for (final Integer id : order)
+        {
+            final int course = id.intValue();
+            final String name = this.strings.get(course);
+            rc.add(String.format("%-10s %5s %7d %8s %9d %7d %8d %8s  %s",
+                                 name.isEmpty() ? "-" : name, formatCredits(courses.credits[course]), courses.events[course],
+                                 formatHours(courses.minutes[course]), courses.lectures[course], courses.missed[course],
+                                 courses.skipped[course], formatShare(courses.missedLectures[course], courses.lectures[course]),
+                                 courses.names[course] < 0 ? "" : this.strings.get(courses.names[course])).trim());
+            credits        += Math.max(courses.credits[course], 0);
+            events         += courses.events[course];
+            minutes        += courses.minutes[course];
+            lectures       += courses.lectures[course];
+            missedLectures += courses.missedLectures[course];
+            missed         += courses.missed[course];
+            skipped        += courses.skipped[course];
+        }
+        rc.add(String.format("%-10s %5s %7d %8s %9d %7d %8d %8s", "Total", formatCredits(credits), events,
+                             formatHours(minutes), lectures, missed, skipped, formatShare(missedLectures, lectures)));
+
+        rc.add("");
+        rc.add(String.format("%-10s %7s", "Week", "Hours"));
+        final long[] weeks = this.getWeeks();
+        long most = 1;
+        for (final long week : weeks)
+            most = Math.max(most, (int)week);
+        for (final long week : weeks)
+        {
+            final int key = (int)(week >>> 32), length = (int)week;
+            final char[] bar = new char[(int)(length * BAR_WIDTH / most)];
+            Arrays.fill(bar, '#');
+            rc.add(String.format("%04d v%02d %9s  %s", key / 100, key % 100, formatHours(length), new String(bar)).trim());
+        }
+        return rc.toArray(new String[rc.size()]);
+    }
+
+    /**
+     * Gets the booked minutes per week
+     *
+     * @return  The booked minutes per week, as {@code (yyyyww << 32) | minutes}, sorted by week
+     */
+    public long[] getWeeks()
+    {
+        final long[] sorted = Arrays.copyOf(this.weeks, this.weekCount);
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++)
+            if ((n > 0) && ((sorted[n - 1] >>> 32) == (sorted[i] >>> 32)))
+                sorted[n - 1] += (int)(sorted[i]);
+            else
+                sorted[n++] = sorted[i];
+        return Arrays.copyOf(sorted, n);
+    }
+
+
+    /**
+     * Adds booked minutes to a week
+     *
+     * @param  week     The week, as {@code yyyyww}
+     * @param  minutes  The number of minutes
+     */
+    private void addWeek(final int week, final int minutes)
+    {
+        /* Events come in file order, so consecutive events are usually in the same week */
+        if ((this.weekCount > 0) && ((this.weeks[this.weekCount - 1] >>> 32) == week))
+        {
+            this.weeks[this.weekCount - 1] += minutes;
+            return;
+        }
+        if (this.weekCount == this.weeks.length)
+            this.weeks = Arrays.copyOf(this.weeks, this.weekCount << 1);
+        this.weeks[this.weekCount++] = ((long)week << 32) | minutes;
+    }
+
+    /**
+     * Checks whether a type is a lecture
+     *
+     * @param   type  The interned type
+     * @return        Whether the type is a lecture
+     */
+    private boolean isLecture(final int type)
+    {
+        if (type >= this.lectureTypes.length)
+            this.lectureTypes = Arrays.copyOf(this.lectureTypes, Math.max(type + 1, this.lectureTypes.length << 1));
+        if (this.lectureTypes[type] == 0)
+        {
+            final String name = this.strings.get(type).toLowerCase(Locale.ROOT);
+            this.lectureTypes[type] = (byte)(name.startsWith("föreläsning") || name.startsWith("lecture") ? 1 : 2);
+        }
+        return this.lectureTypes[type] == 1;
+    }
+
+    /**
+     * Makes sure that the arrays have room for a number of courses
+     *
+     * @param  n  The number of courses
+     */
+    private void ensureCapacity(final int n)
+    {
+        if (n <= this.capacity)
+            return;
+        final int capacity = Math.max(n, this.capacity << 1);
+        this.credits        = Arrays.copyOf(this.credits,        capacity);
+        this.names          = Arrays.copyOf(this.names,          capacity);
+        this.events         = Arrays.copyOf(this.events,         capacity);
+        this.minutes        = Arrays.copyOf(this.minutes,        capacity);
+        this.lectures       = Arrays.copyOf(this.lectures,       capacity);
+        this.missedLectures = Arrays.copyOf(this.missedLectures, capacity);
+        this.missed         = Arrays.copyOf(this.missed,         capacity);
+        this.skipped        = Arrays.copyOf(this.skipped,        capacity);
+        Arrays.fill(this.credits, this.capacity, capacity, -1);
+        Arrays.fill(this.names,   this.capacity, capacity, -1);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Formats credits as in the header of a schedule
+     *
+     * @param   tenths  The credits, in tenths, -1 if unknown
+     * @return          The credits, for example {@code 7,5}
+     */
+    private static String formatCredits(final int tenths)
+    {
+        return tenths < 0 ? "" : (tenths / 10 + "," + tenths % 10);
+    }
+
+    /**
+     * Formats minutes as hours
+     *
+     * @param   minutes  The number of minutes
+     * @return           The number of hours, with one decimal
+     */
+    private static String formatHours(final long minutes)
+    {
+        final long tenths = (minutes + 3) / 6;
+        return tenths / 10 + "," + tenths % 10;
+    }
+
+    /**
+     * Formats a share as a percentage
+     *
+     * @param   part   The part
+     * @param   whole  The whole
+     * @return         The percentage, empty if the whole is zero
+     */
+    private static String formatShare(final int part, final int whole)
+    {
+        return whole == 0 ? "" : ((part * 100 + whole / 2) / whole + "%");
+    }
+    
+}
@@ -0,0 +1,132 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+
+/**
+ * Interns strings as small integer identifiers
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class StringPool
+{
+    /**
+     * Constructor
+     */
+    public StringPool()
+    {
+        //Nothing to initialise
+    }
+
+
+
+    /**
+     * Map from string to identifier
+     */
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+    /**
+     * Map from identifier to string
+     */
+    private final ArrayList<String> strings = new ArrayList<String>();
+
+
+
+    /**
+     * Gets the identifier of a string, assigning a new identifier if the string has not been seen before
+     *
+     * @param   string  The string
+     * @return          The string's identifier
+     */
+    public synchronized int intern(final String string)
+    {
+        final Integer id = this.ids.get(string);
+        if (id != null)
+            return id.intValue();
+        final int rc = this.strings.size();
+        this.strings.add(string);
+        this.ids.put(string, Integer.valueOf(rc));
+        return rc;
+    }
+
+    /**
+     * Gets the identifier of a string without assigning a new identifier
+     *
+     * @param   string  The string
+     * @return          The string's identifier, -1 if the string has not been interned
+     */
+    public synchronized int lookup(final String string)
+    {
+        final Integer id = this.ids.get(string);
+        return id == null ? -1 : id.intValue();
+    }
+
+    /**
+     * Gets an interned string
+     *
+     * @param   id  The string's identifier
+     * @return      The string
+     */
+    public synchronized String get(final int id)
+    {
+        return this.strings.get(id);
+    }
+
+    /**
+     * Gets the number of interned strings
+     *
+     * @return  The number of interned strings
+     */
+    public synchronized int size()
+    {
+        return this.strings.size();
+    }
+
+    /**
+     * Writes the strings to a {@link ScheduleCache}
+     *
+     * @param   out          The output stream
+     * @throws  IOException  On I/O error
+     */
+    public synchronized void write(final DataOutputStream out) throws IOException
+    {
+        out.writeInt(this.strings.size());
+        for (final String string : this.strings)
+            ScheduleCache.writeString(out, string);
+    }
+
+    /**
+     * Interns the strings of a {@link ScheduleCache}
+     *
+     * @param   in  The cache, positioned at the strings
+     * @return      The identifier in this pool of each string, by its identifier in the cache
+     */
+    public int[] read(final ByteBuffer in)
+    {
+        final int[] ids = new int[in.getInt()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = this.intern(ScheduleCache.readString(in));
+        return ids;
+    }
+    
+}
@@ -19,6 +19,7 @@
 package se.kth.maandree.mastertimekeeper;
 
 import java.io.*;
+import java.lang.reflect.*;
 
 
 /**
@@ -85,6 +86,49 @@ public class Terminal
     private static boolean signalFlag = true;
 
 
+    /**
+     * The minimum number of milliseconds between two size queries when SIGWINCH cannot be caught
+     */
+    private static final long SIZE_POLL_INTERVAL = 1000;
+
+    /**
+     * The cached width of the terminal, -1 if unknown
+     */
+    private static volatile int cachedWidth = -1;
+
+    /**
+     * The cached height of the terminal, -1 if unknown
+     */
+    private static volatile int cachedHeight = -1;
+
+    /**
+     * Whether the terminal may have been resized since the size was last queried
+     */
+    private static volatile boolean resizePending = true;
+
+    /**
+     * Whether SIGWINCH is caught, if not the size is polled with at least {@link #SIZE_POLL_INTERVAL} in between
+     */
+    private static boolean winchCaught = false;
+
+    /**
+     * When the size was last queried, in milliseconds
+     */
+    private static long lastSizeQuery = 0;
+
+
+    /**
+     * The terminal's settings, as printed by {@code stty -g}, from before the
+     * mode session was opened, {@code null} if no session is open
+     */
+    private static String savedMode = null;
+
+    /**
+     * Shutdown hook that closes the mode session if the program does not
+     */
+    private static Thread modeRestorer = null;
+
+
 
     /**
      * Class initialiser
@@ -305,6 +349,217 @@ public class Terminal
         return Integer.parseInt(rcs);
     }
 
+
+    /**
+     * Starts watching the terminal's size, after this call the size is cached and
+     * only queried again when the terminal sends SIGWINCH. If the JVM does not let
+     * us catch SIGWINCH, the size will be polled, but at most once per second.
+     *
+     * @throws  IOException  Should not be thrown in GNU.
+     */
+    public static void watchTerminalSize() throws IOException
+    {
+        if (Terminal.winchCaught == false)
+            try
+            {
+                final Class<?> signalClass = Class.forName("sun.misc.Signal");
+                final Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+                final Object signal = signalClass.getConstructor(String.class).newInstance("WINCH");
+                final Object handler = Proxy.newProxyInstance(handlerClass.getClassLoader(), new Class<?>[] { handlerClass }, new InvocationHandler()
+                        {
+                            /**
+                             * {@inheritDoc}
+                             */
+                            @Override
+                            public Object invoke(final Object proxy, final Method method, final Object[] args)
+                            {
+                                switch (method.getName())
+                                {
+                                    case "hashCode":  return Integer.valueOf(System.identityHashCode(proxy));
+                                    case "equals":    return Boolean.valueOf(proxy == args[0]);
+                                    case "toString":  return "SIGWINCH handler";
+                                    default:
+                                        Terminal.resizePending = true;
+                                        return null;
+                                }
+                            }
+                        });
+                signalClass.getMethod("handle", signalClass, handlerClass).invoke(null, signal, handler);
+                Terminal.winchCaught = true;
+            }
+            catch (final Throwable err)
+            {
+                Terminal.winchCaught = false;
+            }
+
+        Terminal.resizePending = true;
+        Terminal.updateTerminalSize();
+    }
+
+    /**
+     * Queries the terminal's size if it may have changed since the last query.
+     * This is cheap when the terminal has not been resized.
+     *
+     * @return               Whether the size of the terminal has changed.
+     * @throws  IOException  Should not be thrown in GNU.
+     */
+    public static boolean updateTerminalSize() throws IOException
+    {
+        if (Terminal.winchCaught == false)
+        {
+            final long now = System.currentTimeMillis();
+            if (now - Terminal.lastSizeQuery >= SIZE_POLL_INTERVAL)
+                Terminal.resizePending = true;
+        }
+        if (Terminal.resizePending == false)
+            return false;
+        Terminal.resizePending = false;
+        Terminal.lastSizeQuery = System.currentTimeMillis();
+
+        int width = -1, height = -1;
+        try
+        {
+            final String rcs = Terminal.stty("stty size < " + Terminal.tty + " 2> /dev/null");
+            final int space = rcs.indexOf(' ');
+            height = Integer.parseInt(rcs.substring(0, space));
+            width = Integer.parseInt(rcs.substring(space + 1));
+        }
+        catch (final Throwable err)
+        {
+            width = Terminal.getTerminalWidth();
+            height = Terminal.getTerminalHeight();
+        }
+
+        final boolean changed = (width != Terminal.cachedWidth) || (height != Terminal.cachedHeight);
+        Terminal.cachedWidth = width;
+        Terminal.cachedHeight = height;
+        return changed;
+    }
+
+    /**
+     * Gets the terminal's width as of the last size query, see {@link #updateTerminalSize()}.
+     *
+     * @return  The terminal's width, -1 if it has not been queried.
+     */
+    public static int getCachedTerminalWidth()
+    {
+        return Terminal.cachedWidth;
+    }
+
+    /**
+     * Gets the terminal's height as of the last size query, see {@link #updateTerminalSize()}.
+     *
+     * @return  The terminal's height, -1 if it has not been queried.
+     */
+    public static int getCachedTerminalHeight()
+    {
+        return Terminal.cachedHeight;
+    }
+
+
+    /**
+     * Opens a mode session: saves the terminal's settings and sets the ECHO, ICANON and ISIG
+     * flags, all with one {@code stty} invocation that is waited upon. The saved settings are
+     * restored by {@link #closeModeSession()}, or when the JVM exits if that is never called.
+     *
+     * @param   echo         Whether the ECHO flag should be on.
+     * @param   buffer       Whether the ICANON flag should be on.
+     * @param   signal       Whether the ISIG flag should be on.
+     * @throws  IOException  Should not be thrown in GNU.
+     */
+    public static synchronized void openModeSession(final boolean echo, final boolean buffer, final boolean signal) throws IOException
+    {
+        if (Terminal.savedMode != null)
+            throw new IllegalStateException("A mode session is already open");
+
+        final String flags = (echo ? "echo" : "-echo") + (buffer ? " icanon" : " -icanon min 1 time 0") + (signal ? " isig" : " -isig");
+        final String rcs = Terminal.stty("stty -g < " + Terminal.tty + " && stty " + flags + " < " + Terminal.tty);
+        if (rcs.matches("[0-9a-fA-F:]+") == false)
+            throw new IOException("Unable to read terminal settings");
+
+        Terminal.savedMode = rcs;
+        Terminal.echoFlag = echo;
+        Terminal.bufferFlag = buffer;
+        Terminal.signalFlag = signal;
+
+        Terminal.modeRestorer = new Thread()
+                {
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            Terminal.closeModeSession();
+                        }
+                        catch (final Throwable err)
+                        {
+                            //Nothing more can be done
+                        }
+                    }
+                };
+        Runtime.getRuntime().addShutdownHook(Terminal.modeRestorer);
+    }
+
+    /**
+     * Closes the mode session, restoring the terminal's settings from before
+     * {@link #openModeSession(boolean, boolean, boolean)} with one {@code stty} invocation.
+     * Nothing is done if no session is open.
+     *
+     * @throws  IOException  Should not be thrown in GNU.
+     */
+    public static synchronized void closeModeSession() throws IOException
+    {
+        if (Terminal.savedMode == null)
+            return;
+
+        final String mode = Terminal.savedMode;
+        Terminal.savedMode = null;
+        if (Thread.currentThread() != Terminal.modeRestorer)
+            try
+            {
+                Runtime.getRuntime().removeShutdownHook(Terminal.modeRestorer);
+            }
+            catch (final IllegalStateException err)
+            {
+                //The JVM is shutting down, the hook is harmless since the session is closed
+            }
+        Terminal.modeRestorer = null;
+
+        Terminal.stty("stty " + mode + " < " + Terminal.tty);
+        Terminal.echoFlag = Terminal.bufferFlag = Terminal.signalFlag = true;
+    }
+
+    /**
+     * Runs {@code stty} commands and waits for them to finish
+     *
+     * @param   command      The shell command line.
+     * @return               The first line the command printed.
+     * @throws  IOException  Should not be thrown in GNU.
+     */
+    private static String stty(final String command) throws IOException
+    {
+        final Process process = (new ProcessBuilder("/bin/sh", "-c", command)).start();
+        String rcs = new String();
+        final InputStream stream = process.getInputStream();
+        int c;
+        while (((c = stream.read()) != '\n') && (c != -1))
+            rcs += (char)c;
+        try
+        {
+            if (process.waitFor() != 0)
+                throw new IOException("stty failed");
+        }
+        catch (final InterruptedException err)
+        {
+            throw new InterruptedIOException();
+        }
+        return rcs;
+    }
+
+
     /**
      * Sets the value of the ECHO flag; iff on the input to the terminal will be echoed back while typing.
      * This can be used to hide what the user is type, for exempel when a password is requested.
@@ -0,0 +1,152 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.util.*;
+
+
+/**
+ * The attended events of a schedule sorted by date and start time, for
+ * answering agenda queries with binary searches. Events that are not
+ * attended, marked {@code /}, {@code -} or {@code #} before the time, or
+ * cancelled, marked {@code -} before the type, are left out.
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class Timeline
+{
+    /**
+     * Constructor
+     *
+     * @param  events  The events
+     */
+    public Timeline(final EventStore events)
+    {
+        this.events = events;
+        long[] order = new long[events.size()];
+        int n = 0;
+        for (int event = 0, size = events.size(); event < size; event++)
+        {
+            final byte attendance = events.getAttendance(event);
+            if ((attendance == '/') || (attendance == '-') || (attendance == '#') || (events.getTypeMarker(event) == '-'))
+                continue;
+            if (events.getDate(event) <= 0)
+                continue;
+            order[n++] = (key(events.getDate(event), Math.max(events.getStart(event), 0)) << EVENT_BITS) | event;
+        }
+        order = Arrays.copyOf(order, n);
+        Arrays.sort(order);
+        this.order = order;
+    }
+
+
+
+    /**
+     * The number of bits the event index is stored in, in {@link #order}
+     */
+    private static final int EVENT_BITS = 24;
+
+    /**
+     * The number of bits the time of day is stored in, in keys
+     */
+    private static final int MINUTE_BITS = 11;
+
+
+
+    /**
+     * The events
+     */
+    private final EventStore events;
+
+    /**
+     * The events, as {@code (key << EVENT_BITS) | event}, sorted
+     */
+    private final long[] order;
+
+
+
+    /**
+     * Gets the number of events in the timeline
+     *
+     * @return  The number of events
+     */
+    public int size()
+    {
+        return this.order.length;
+    }
+
+    /**
+     * Gets an event in the timeline
+     *
+     * @param   position  The position in the timeline
+     * @return            The event's index in the {@link EventStore}
+     */
+    public int getEvent(final int position)
+    {
+        return (int)(this.order[position] & ((1L << EVENT_BITS) - 1));
+    }
+
+    /**
+     * Finds the first event that starts at or after a point in time
+     *
+     * @param   date    The date, as {@code yyyymmdd}
+     * @param   minute  The time, in minutes after midnight
+     * @return          The event's position in the timeline, {@link #size()} if there is none
+     */
+    public int find(final int date, final int minute)
+    {
+        final int i = Arrays.binarySearch(this.order, key(date, minute) << EVENT_BITS);
+        return i < 0 ? ~i : i;
+    }
+
+    /**
+     * Finds the position after the last event on a date
+     *
+     * @param   date  The date, as {@code yyyymmdd}
+     * @return        The position after the date's last event
+     */
+    public int findEnd(final int date)
+    {
+        return this.find(date, (1 << MINUTE_BITS) - 1);
+    }
+
+    /**
+     * Gets the events the timeline was built from
+     *
+     * @return  The events
+     */
+    public EventStore getEvents()
+    {
+        return this.events;
+    }
+
+
+    /**
+     * Creates the sort key of a point in time
+     *
+     * @param   date    The date, as {@code yyyymmdd}
+     * @param   minute  The time, in minutes after midnight
+     * @return          The key
+     */
+    private static long key(final int date, final int minute)
+    {
+        return ((long)date << MINUTE_BITS) | minute;
+    }
+    
+}
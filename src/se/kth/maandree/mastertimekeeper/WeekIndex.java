@@ -0,0 +1,232 @@
+/**
+ * Master Time Keeper – The perfect graphical terminal schedule viewer
+ * 
+ * Copyright © 2012  Mattias Andrée (maandree@kth.se)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.kth.maandree.mastertimekeeper;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+
+/**
+ * Sorted index over the week headers and the dated events of a schedule, for jumping to a week or a date
+ *
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class WeekIndex
+{
+    /**
+     * Constructor
+     */
+    public WeekIndex()
+    {
+        //Nothing to initialise
+    }
+
+
+
+    /**
+     * The lines of the week headers, in line order
+     */
+    private int[] headerLines = new int[16];
+
+    /**
+     * The week headers, as {@code (yyyyww << 32) | line}, sorted once sealed
+     */
+    private long[] weeks = new long[16];
+
+    /**
+     * The number of week headers
+     */
+    private int weekCount = 0;
+
+    /**
+     * The dated events, as {@code (yyyymmdd << 32) | line}, sorted once sealed
+     */
+    private long[] dates = new long[64];
+
+    /**
+     * The number of dated events
+     */
+    private int dateCount = 0;
+
+
+
+    /**
+     * Adds a week header, headers must be added in line order
+     *
+     * @param  year  The year
+     * @param  week  The week of the year
+     * @param  line  The header's line
+     */
+    public void addWeek(final int year, final int week, final int line)
+    {
+        if (this.weekCount == this.weeks.length)
+        {
+            this.weeks = Arrays.copyOf(this.weeks, this.weekCount << 1);
+            this.headerLines = Arrays.copyOf(this.headerLines, this.weekCount << 1);
+        }
+        this.headerLines[this.weekCount] = line;
+        this.weeks[this.weekCount++] = ((long)(year * 100 + week) << 32) | line;
+    }
+
+    /**
+     * Adds an event's date
+     *
+     * @param  date  The date, as {@code yyyymmdd}
+     * @param  line  The event's line
+     */
+    public void addDate(final int date, final int line)
+    {
+        if (this.dateCount == this.dates.length)
+            this.dates = Arrays.copyOf(this.dates, this.dateCount << 1);
+        this.dates[this.dateCount++] = ((long)date << 32) | line;
+    }
+
+    /**
+     * Sorts the index, this must be done after everything has been added and before any lookup
+     */
+    public void seal()
+    {
+        Arrays.sort(this.weeks, 0, this.weekCount);
+        Arrays.sort(this.dates, 0, this.dateCount);
+    }
+
+    /**
+     * Writes the sealed index to a {@link ScheduleCache}
+     *
+     * @param   out          The output stream
+     * @throws  IOException  On I/O error
+     */
+    public void write(final DataOutputStream out) throws IOException
+    {
+        out.writeInt(this.weekCount);
+        ScheduleCache.writeInts(out, this.headerLines, this.weekCount);
+        ScheduleCache.writeLongs(out, this.weeks, this.weekCount);
+        out.writeInt(this.dateCount);
+        ScheduleCache.writeLongs(out, this.dates, this.dateCount);
+    }
+
+    /**
+     * Replaces the index with a sealed index read from a {@link ScheduleCache}
+     *
+     * @param  in  The cache, positioned at the index
+     */
+    public void read(final ByteBuffer in)
+    {
+        this.weekCount = in.getInt();
+        this.headerLines = ScheduleCache.readInts(in, this.weekCount);
+        this.weeks = ScheduleCache.readLongs(in, this.weekCount);
+        this.dateCount = in.getInt();
+        this.dates = ScheduleCache.readLongs(in, this.dateCount);
+    }
+
+
+    /**
+     * Finds the header of a week, or of the first week after it
+     *
+     * @param   year   The year
+     * @param   week   The week of the year
+     * @param   exact  Whether only the week itself may be found
+     * @return         The header's line, -1 if none
+     */
+    public int findWeek(final int year, final int week, final boolean exact)
+    {
+        final long key = (long)(year * 100 + week) << 32;
+        final int i = find(this.weeks, this.weekCount, key);
+        if ((i == this.weekCount) || (exact && ((this.weeks[i] >>> 32) != (key >>> 32))))
+            return -1;
+        return (int)(this.weeks[i]);
+    }
+
+    /**
+     * Finds the first event on a date, or on the first date after it
+     *
+     * @param   date   The date, as {@code yyyymmdd}
+     * @param   exact  Whether only the date itself may be found
+     * @return         The event's line, -1 if none
+     */
+    public int findDate(final int date, final boolean exact)
+    {
+        final long key = (long)date << 32;
+        final int i = find(this.dates, this.dateCount, key);
+        if ((i == this.dateCount) || (exact && ((this.dates[i] >>> 32) != date)))
+            return -1;
+        return (int)(this.dates[i]);
+    }
+
+    /**
+     * Finds the events that have a date written on their line, of a date
+     *
+     * @param   date  The date, as {@code yyyymmdd}
+     * @return        The events' lines, in line order
+     */
+    public int[] findDateLines(final int date)
+    {
+        final int first = find(this.dates, this.dateCount, (long)date << 32);
+        int last = first;
+        while ((last < this.dateCount) && ((this.dates[last] >>> 32) == date))
+            last++;
+        final int[] rc = new int[last - first];
+        for (int i = first; i < last; i++)
+            rc[i - first] = (int)(this.dates[i]);
+        return rc;
+    }
+
+    /**
+     * Finds the first week header after a line
+     *
+     * @param   line  The line
+     * @return        The header's line, -1 if none
+     */
+    public int nextWeek(final int line)
+    {
+        final int i = Arrays.binarySearch(this.headerLines, 0, this.weekCount, line + 1);
+        final int next = i < 0 ? ~i : i;
+        return next == this.weekCount ? -1 : this.headerLines[next];
+    }
+
+    /**
+     * Finds the last week header before a line, that is the header
+     * of the line's week unless the line is a header itself
+     *
+     * @param   line  The line
+     * @return        The header's line, -1 if none
+     */
+    public int previousWeek(final int line)
+    {
+        final int i = Arrays.binarySearch(this.headerLines, 0, this.weekCount, line);
+        final int previous = (i < 0 ? ~i : i) - 1;
+        return previous < 0 ? -1 : this.headerLines[previous];
+    }
+
+    /**
+     * Finds the first element that is at least a key
+     *
+     * @param   array  Sorted array
+     * @param   n      The number of used elements in the array
+     * @param   key    The key
+     * @return         The index of the element, {@code n} if none
+     */
+    private static int find(final long[] array, final int n, final long key)
+    {
+        final int i = Arrays.binarySearch(array, 0, n, key);
+        return i < 0 ? ~i : i;
+    }
+    
+}